@@ -0,0 +1,188 @@
+package org.nick.hce.pki;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Binary APDU trace. Each exchanged APDU is recorded as a fixed-size entry
+ * (timestamp, direction, INS, length, status word and optionally a hash of
+ * the payload) in a preallocated ring buffer, so tracing doesn't allocate or
+ * format anything on the hot path. Entries are only formatted when the trace
+ * is dumped. When disabled, record() only reads a volatile flag.
+ */
+public class ApduTrace {
+
+    public static final byte COMMAND = 0;
+    public static final byte RESPONSE = 1;
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final int OFFSET_INS = 1;
+
+    private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private static final ApduTrace INSTANCE = new ApduTrace(DEFAULT_CAPACITY);
+
+    private final long[] timestamps;
+    private final byte[] directions;
+    private final byte[] instructions;
+    private final int[] lengths;
+    private final short[] statusWords;
+    private final int[] payloadHashes;
+
+    // nanoTime() is cheaper and monotonic, convert to wall clock on dump
+    private final long baseMillis = System.currentTimeMillis();
+    private final long baseNanos = System.nanoTime();
+
+    private volatile boolean enabled;
+    private volatile boolean hashPayload;
+
+    private int next;
+    private long count;
+    // responses don't carry the INS, use the one of the last command
+    private byte lastIns;
+
+    public ApduTrace(int capacity) {
+        timestamps = new long[capacity];
+        directions = new byte[capacity];
+        instructions = new byte[capacity];
+        lengths = new int[capacity];
+        statusWords = new short[capacity];
+        payloadHashes = new int[capacity];
+    }
+
+    public static ApduTrace getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Also record a (non-cryptographic) hash of each APDU, to match entries
+     * against the other side's trace without keeping the data.
+     */
+    public void setHashPayload(boolean hashPayload) {
+        this.hashPayload = hashPayload;
+    }
+
+    public void record(byte direction, byte[] apdu) {
+        if (!enabled || apdu == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        int hash = hashPayload ? hash(apdu) : 0;
+        synchronized (this) {
+            int i = next;
+            timestamps[i] = now;
+            directions[i] = direction;
+            if (direction == COMMAND && apdu.length > OFFSET_INS) {
+                lastIns = apdu[OFFSET_INS];
+            }
+            instructions[i] = lastIns;
+            lengths[i] = apdu.length;
+            statusWords[i] = direction == RESPONSE ? statusWord(apdu) : 0;
+            payloadHashes[i] = hash;
+
+            next = (i + 1) % timestamps.length;
+            count++;
+        }
+    }
+
+    public synchronized void clear() {
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * Writes the recorded entries, oldest first, to <code>file</code> as
+     * text.
+     *
+     * @return number of entries written
+     */
+    public int dump(File file) throws IOException {
+        int size;
+        long[] ts;
+        byte[] dirs;
+        byte[] inss;
+        int[] lens;
+        short[] sws;
+        int[] hashes;
+        long dropped;
+        synchronized (this) {
+            size = (int) Math.min(count, timestamps.length);
+            dropped = count - size;
+            int first = (next - size + timestamps.length) % timestamps.length;
+            ts = new long[size];
+            dirs = new byte[size];
+            inss = new byte[size];
+            lens = new int[size];
+            sws = new short[size];
+            hashes = new int[size];
+            for (int i = 0; i < size; i++) {
+                int j = (first + i) % timestamps.length;
+                ts[i] = timestamps[j];
+                dirs[i] = directions[j];
+                inss[i] = instructions[j];
+                lens[i] = lengths[j];
+                sws[i] = statusWords[j];
+                hashes[i] = payloadHashes[j];
+            }
+        }
+
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS",
+                Locale.US);
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.printf("# %d entries, %d older entries dropped\n", size,
+                    dropped);
+            out.println("# time dir INS length SW hash");
+            for (int i = 0; i < size; i++) {
+                long nanos = ts[i] - baseNanos;
+                String time = df.format(new Date(baseMillis + nanos / 1000000));
+                if (dirs[i] == COMMAND) {
+                    out.printf("%s --> %02X %5d      %08X\n", time, inss[i],
+                            lens[i], hashes[i]);
+                } else {
+                    out.printf("%s <-- %02X %5d %04X %08X\n", time, inss[i],
+                            lens[i], sws[i], hashes[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        return size;
+    }
+
+    private static short statusWord(byte[] apdu) {
+        if (apdu.length < 2) {
+            return 0;
+        }
+
+        return (short) (((apdu[apdu.length - 2] & 0xff) << 8) | (apdu[apdu.length - 1] & 0xff));
+    }
+
+    // FNV-1a
+    private static int hash(byte[] data) {
+        int hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < data.length; i++) {
+            hash ^= data[i] & 0xff;
+            hash *= FNV_PRIME;
+        }
+
+        return hash;
+    }
+}
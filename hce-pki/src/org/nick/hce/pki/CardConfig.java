@@ -0,0 +1,46 @@
+package org.nick.hce.pki;
+
+/**
+ * Immutable snapshot of the card configuration: the key alias of each slot
+ * and the already decoded PIN verifier. Replaced as a whole when the
+ * configuration changes, so the APDU path can read it without locking.
+ */
+public final class CardConfig {
+
+    public static final CardConfig EMPTY = new CardConfig(
+            new String[PkiAppletEngine.SLOT_COUNT], null);
+
+    // indexed by slot number, null if the slot is empty
+    private final String[] aliases;
+    private final PinVerifier pinVerifier;
+
+    public CardConfig(String[] aliases, PinVerifier pinVerifier) {
+        this.aliases = aliases.clone();
+        this.pinVerifier = pinVerifier;
+    }
+
+    public String getAlias(int slot) {
+        return aliases[slot];
+    }
+
+    public PinVerifier getPinVerifier() {
+        return pinVerifier;
+    }
+
+    /**
+     * A PIN is set and at least one slot holds a key.
+     */
+    public boolean isInitialized() {
+        if (pinVerifier == null) {
+            return false;
+        }
+        for (String alias : aliases) {
+            if (alias != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+}
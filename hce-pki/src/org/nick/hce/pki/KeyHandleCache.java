@@ -0,0 +1,227 @@
+package org.nick.hce.pki;
+
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import android.content.Context;
+import android.security.KeyChain;
+import android.security.KeyChainException;
+import android.util.Log;
+
+/**
+ * Process-wide cache of KeyChain private key handles and certificate
+ * chains, indexed by key slot. KeyChain.getPrivateKey() is a binder call to
+ * the KeyChain service, so we only want to pay for it once per slot, not on
+ * every signature. Each entry remembers the alias it was loaded for and is
+ * reloaded when the slot is assigned another key.
+ */
+public class KeyHandleCache {
+
+    private static final String TAG = KeyHandleCache.class.getSimpleName();
+
+    private static final KeyHandleCache INSTANCE = new KeyHandleCache();
+
+    private static class Slot {
+        final String alias;
+        final PrivateKey key;
+        // looked up once, the engine asks for it on every SIGN
+        final String keyAlgorithm;
+        // PkiPath encoding, null if KeyChain has no chain for the key
+        final byte[] certificateChain;
+
+        Slot(String alias, PrivateKey key, byte[] certificateChain) {
+            this.alias = alias;
+            this.key = key;
+            this.keyAlgorithm = key.getAlgorithm();
+            this.certificateChain = certificateChain;
+        }
+    }
+
+    private final AtomicReferenceArray<Slot> slots = new AtomicReferenceArray<Slot>(
+            PkiAppletEngine.SLOT_COUNT);
+    // alias being loaded by warm(), so repeated calls start one thread
+    private final AtomicReferenceArray<String> warming = new AtomicReferenceArray<String>(
+            PkiAppletEngine.SLOT_COUNT);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private KeyHandleCache() {
+    }
+
+    public static KeyHandleCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the key handle for <code>alias</code>, assigned to
+     * <code>slot</code>. Must not be called on the main thread, may block on
+     * a cache miss.
+     */
+    public PrivateKey getPrivateKey(Context ctx, int slot, String alias)
+            throws KeyChainException, InterruptedException {
+        Slot s = getSlot(ctx, slot, alias);
+
+        return s == null ? null : s.key;
+    }
+
+    /**
+     * Algorithm of the key handle for <code>alias</code>, or
+     * <code>null</code> if there is no such key.
+     */
+    public String getKeyAlgorithm(Context ctx, int slot, String alias)
+            throws KeyChainException, InterruptedException {
+        Slot s = getSlot(ctx, slot, alias);
+
+        return s == null ? null : s.keyAlgorithm;
+    }
+
+    /**
+     * Certificate chain of the key <code>alias</code>, encoded as a PkiPath,
+     * or <code>null</code> if it has none. Must not be called on the main
+     * thread, may block on a cache miss.
+     */
+    public byte[] getCertificateChain(Context ctx, int slot, String alias)
+            throws KeyChainException, InterruptedException {
+        Slot s = getSlot(ctx, slot, alias);
+
+        return s == null ? null : s.certificateChain;
+    }
+
+    /**
+     * Like {@link #getCertificateChain(Context, int, String)}, but returns
+     * <code>null</code> instead of loading the chain if it isn't cached, so
+     * it can be called on the main thread.
+     */
+    public byte[] peekCertificateChain(int slot, String alias) {
+        Slot s = slots.get(slot);
+        if (alias == null || s == null || !s.alias.equals(alias)) {
+            return null;
+        }
+
+        return s.certificateChain;
+    }
+
+    private Slot getSlot(Context ctx, int slot, String alias)
+            throws KeyChainException, InterruptedException {
+        if (alias == null) {
+            return null;
+        }
+
+        Slot s = slots.get(slot);
+        if (s != null && s.alias.equals(alias)) {
+            hits.incrementAndGet();
+            return s;
+        }
+
+        misses.incrementAndGet();
+        s = load(ctx.getApplicationContext(), alias);
+        if (s != null) {
+            slots.set(slot, s);
+        }
+
+        return s;
+    }
+
+    private static Slot load(Context appCtx, String alias)
+            throws KeyChainException, InterruptedException {
+        PrivateKey pk = KeyChain.getPrivateKey(appCtx, alias);
+        if (pk == null) {
+            return null;
+        }
+
+        byte[] chain = null;
+        try {
+            X509Certificate[] certs = KeyChain.getCertificateChain(appCtx,
+                    alias);
+            if (certs != null && certs.length > 0) {
+                chain = PkiAppletEngine.encodeCertificateChain(certs);
+            }
+            if (chain != null
+                    && chain.length > PkiAppletEngine.MAX_CERTIFICATE_CHAIN_LENGTH) {
+                Log.w(TAG, "Certificate chain of " + alias + " too long: "
+                        + chain.length);
+                chain = null;
+            }
+        } catch (Exception e) {
+            // the key is still usable
+            Log.w(TAG, "Error loading certificate chain of " + alias + ": "
+                    + e.getMessage(), e);
+        }
+
+        return new Slot(alias, pk, chain);
+    }
+
+    /**
+     * Loads the key handle for <code>alias</code> into <code>slot</code> on
+     * a background thread, so that the first signature doesn't have to.
+     */
+    public void warm(Context ctx, final int slot, final String alias) {
+        final Slot current = slots.get(slot);
+        if (alias == null || (current != null && current.alias.equals(alias))) {
+            return;
+        }
+        String loading = warming.get(slot);
+        if (alias.equals(loading)
+                || !warming.compareAndSet(slot, loading, alias)) {
+            return;
+        }
+
+        final Context appCtx = ctx.getApplicationContext();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Slot s = load(appCtx, alias);
+                    // don't overwrite a handle loaded in the meantime
+                    if (s != null && slots.compareAndSet(slot, current, s)) {
+                        Log.d(TAG, "Cached key handle for " + alias
+                                + " in slot " + slot);
+                    }
+                } catch (Exception e) {
+                    Log.w(TAG, "Error loading key " + alias + ": "
+                            + e.getMessage(), e);
+                } finally {
+                    warming.compareAndSet(slot, alias, null);
+                }
+            }
+        });
+        t.setName("KeyHandleCache warm-up");
+        t.start();
+    }
+
+    /**
+     * Drops the handle for <code>alias</code> from every slot holding it.
+     */
+    public void invalidate(String alias) {
+        if (alias == null) {
+            return;
+        }
+        for (int i = 0; i < slots.length(); i++) {
+            Slot s = slots.get(i);
+            if (s != null && s.alias.equals(alias)
+                    && slots.compareAndSet(i, s, null)) {
+                Log.d(TAG, "Invalidated key handle for " + alias
+                        + " in slot " + i);
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+        Log.d(TAG, "Invalidated all key handles");
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+}
@@ -0,0 +1,26 @@
+package org.nick.hce.pki;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Drops cached key handles when keys are added to or removed from the
+ * KeyChain.
+ */
+public class KeyStorageChangedReceiver extends BroadcastReceiver {
+
+    private static final String TAG = KeyStorageChangedReceiver.class
+            .getSimpleName();
+
+    // KeyChain.ACTION_STORAGE_CHANGED, API 16
+    public static final String ACTION_STORAGE_CHANGED = "android.security.STORAGE_CHANGED";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Log.d(TAG, "KeyChain storage changed");
+        KeyHandleCache.getInstance().invalidateAll();
+    }
+
+}
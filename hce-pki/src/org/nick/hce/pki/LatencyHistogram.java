@@ -0,0 +1,113 @@
+package org.nick.hce.pki;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size latency histogram in the style of HdrHistogram: values are
+ * counted in log-linear buckets, 64 per power of two, so percentiles are
+ * accurate to within about 1.5% over the whole range with no allocation
+ * when recording. Values are in microseconds; anything above
+ * {@link #MAX_VALUE} is counted in the top bucket. Not thread-safe.
+ */
+public class LatencyHistogram {
+
+    // values below this have a bucket each
+    private static final int LINEAR_BUCKETS = 128;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // a bit over an hour
+    public static final long MAX_VALUE = (1L << 32) - 1;
+
+    private static final int MAX_SHIFT = 63 - Long
+            .numberOfLeadingZeros(MAX_VALUE) - SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[LINEAR_BUCKETS + MAX_SHIFT
+            * SUB_BUCKETS];
+
+    private long count;
+    private long sum;
+    private long max;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(Math.min(value, MAX_VALUE))]++;
+        count++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * The highest value in the bucket that the <code>percentile</code>
+     * (0-100) falls into, or 0 if the histogram is empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        rank = Math.max(1, Math.min(rank, count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        // value >> shift is in [64, 128)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS
+                + (int) (value >> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValue(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
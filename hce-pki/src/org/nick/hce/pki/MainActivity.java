@@ -2,19 +2,26 @@ package org.nick.hce.pki;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.preference.PreferenceManager;
 import android.security.KeyChain;
 import android.security.KeyChainAliasCallback;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.Window;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -26,16 +33,48 @@ public class MainActivity extends Activity implements OnClickListener,
     private static final int INSTALL_KEY_CODE = 42;
     private static final String SE_KEY_NAME = "my_se_key";
 
+    private static final String APDU_TRACE_FILENAME = "apdu-trace.txt";
+
+    private static final String PENDING_SLOT_KEY = "pendingSlot";
+
+    private static final long METRICS_REFRESH_INTERVAL = 1000;
+
     private TextView statusText;
+    private Spinner keySlotSpinner;
     private EditText pkcs12FilenameText;
     private Button installPkcs12Button;
+    private Button chooseKeyButton;
+    private Button clearSlotButton;
     private EditText pinText;
     private Button setPinButton;
+    private EditText pinGraceText;
+    private EditText pinGraceLifetimeText;
+    private EditText pinGraceSignaturesText;
+    private Button setPinGraceButton;
+    private Button revokePinGraceButton;
     private TextView message;
+    private TextView slotsText;
+    private TextView metricsText;
+
+    // slot the key being installed or chosen goes to. Saved with the
+    // instance state, the activity may be recreated while KeyChain runs.
+    private int pendingSlot;
+
+    private final Handler handler = new Handler();
+    private final Runnable metricsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            updateMetrics();
+            handler.postDelayed(this, METRICS_REFRESH_INTERVAL);
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (savedInstanceState != null) {
+            pendingSlot = savedInstanceState.getInt(PENDING_SLOT_KEY);
+        }
 
         requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
 
@@ -44,26 +83,135 @@ public class MainActivity extends Activity implements OnClickListener,
         setProgressBarIndeterminateVisibility(false);
 
         statusText = (TextView) findViewById(R.id.status_text);
+        keySlotSpinner = (Spinner) findViewById(R.id.key_slot_spinner);
         pkcs12FilenameText = (EditText) findViewById(R.id.pkcs12FilenameText);
         installPkcs12Button = (Button) findViewById(R.id.install_pkcs12_button);
         installPkcs12Button.setOnClickListener(this);
+        chooseKeyButton = (Button) findViewById(R.id.choose_key_button);
+        chooseKeyButton.setOnClickListener(this);
+        clearSlotButton = (Button) findViewById(R.id.clear_slot_button);
+        clearSlotButton.setOnClickListener(this);
         pinText = (EditText) findViewById(R.id.pin_text);
         setPinButton = (Button) findViewById(R.id.set_pin_button);
         setPinButton.setOnClickListener(this);
+        pinGraceText = (EditText) findViewById(R.id.pin_grace_text);
+        pinGraceLifetimeText = (EditText) findViewById(R.id.pin_grace_lifetime_text);
+        pinGraceSignaturesText = (EditText) findViewById(R.id.pin_grace_signatures_text);
+        setPinGraceButton = (Button) findViewById(R.id.set_pin_grace_button);
+        setPinGraceButton.setOnClickListener(this);
+        revokePinGraceButton = (Button) findViewById(R.id.revoke_pin_grace_button);
+        revokePinGraceButton.setOnClickListener(this);
+        showPinGrace();
         message = (TextView) findViewById(R.id.message);
+        slotsText = (TextView) findViewById(R.id.slots_text);
+        metricsText = (TextView) findViewById(R.id.metrics_text);
 
         message.setText(R.string.place_on_reader);
-        statusText
-                .setText(PkiHostApduService.isInitialized(this) ? R.string.applet_initialized
-                        : R.string.applet_not_initialized);
+        updateStatus();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(PENDING_SLOT_KEY, pendingSlot);
     }
 
     @Override
     public void onResume() {
         super.onResume();
+        updateStatus();
+
+        handler.post(metricsUpdater);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        handler.removeCallbacks(metricsUpdater);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main, menu);
+
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.action_trace).setChecked(
+                PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
+                        CardConfigStore.APDU_TRACE_KEY, false));
+
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+        case R.id.action_trace:
+            boolean trace = !item.isChecked();
+            PreferenceManager.getDefaultSharedPreferences(this).edit()
+                    .putBoolean(CardConfigStore.APDU_TRACE_KEY, trace).commit();
+            item.setChecked(trace);
+            return true;
+        case R.id.action_dump_trace:
+            dumpTrace();
+            return true;
+        case R.id.action_reset_metrics:
+            PkiMetrics.getInstance().reset();
+            updateMetrics();
+            return true;
+        default:
+            return super.onOptionsItemSelected(item);
+        }
+    }
+
+    private void updateStatus() {
         statusText
                 .setText(PkiHostApduService.isInitialized(this) ? R.string.applet_initialized
                         : R.string.applet_not_initialized);
+
+        StringBuilder sb = new StringBuilder("Key slots:\n");
+        for (int slot = 0; slot < PkiAppletEngine.SLOT_COUNT; slot++) {
+            String alias = PkiHostApduService.getAlias(slot, this);
+            sb.append(String.format("  %d %-15s %s\n", slot,
+                    PkiAppletEngine.SLOT_NAMES[slot], alias == null ? "-"
+                            : alias));
+        }
+        slotsText.setText(sb.toString());
+    }
+
+    private void showPinGrace() {
+        SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(this);
+        pinGraceText.setText(String.valueOf(prefs.getInt(
+                CardConfigStore.PIN_GRACE_KEY, 0)));
+        pinGraceLifetimeText.setText(String.valueOf(prefs.getInt(
+                CardConfigStore.PIN_GRACE_LIFETIME_KEY,
+                (int) (PinGrace.DEFAULT_LIFETIME_MILLIS / 1000))));
+        pinGraceSignaturesText.setText(String.valueOf(prefs.getInt(
+                CardConfigStore.PIN_GRACE_MAX_SIGNATURES_KEY,
+                PinGrace.DEFAULT_MAX_SIGNATURES)));
+    }
+
+    private void updateMetrics() {
+        metricsText.setText(PinGrace.getInstance().format() + "\n"
+                + PkiMetrics.getInstance().format());
+    }
+
+    private void dumpTrace() {
+        File f = new File(Environment.getExternalStorageDirectory(),
+                APDU_TRACE_FILENAME);
+        try {
+            int count = ApduTrace.getInstance().dump(f);
+            Toast.makeText(this,
+                    String.format("Wrote %d APDUs to %s", count, f),
+                    Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Error dumping APDU trace: " + e.getMessage(), e);
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+        }
     }
 
     @Override
@@ -71,14 +219,24 @@ public class MainActivity extends Activity implements OnClickListener,
         try {
             switch (v.getId()) {
             case R.id.install_pkcs12_button:
+                pendingSlot = keySlotSpinner.getSelectedItemPosition();
                 String pkcs12Filename = pkcs12FilenameText.getText().toString()
                         .trim();
                 Intent intent = KeyChain.createInstallIntent();
                 byte[] p12 = readFile(pkcs12Filename);
                 intent.putExtra(KeyChain.EXTRA_PKCS12, p12);
-                intent.putExtra(KeyChain.EXTRA_NAME, SE_KEY_NAME);
+                intent.putExtra(KeyChain.EXTRA_NAME, getKeyName(pendingSlot));
                 startActivityForResult(intent, INSTALL_KEY_CODE);
                 break;
+            case R.id.choose_key_button:
+                pendingSlot = keySlotSpinner.getSelectedItemPosition();
+                chooseKey();
+                break;
+            case R.id.clear_slot_button:
+                int slot = keySlotSpinner.getSelectedItemPosition();
+                PkiHostApduService.setAlias(slot, null, this);
+                updateStatus();
+                break;
             case R.id.set_pin_button:
                 String pin = pinText.getText().toString().trim();
                 if (pin != null && pin.length() != 0) {
@@ -91,6 +249,35 @@ public class MainActivity extends Activity implements OnClickListener,
                             Toast.LENGTH_SHORT).show();
                 }
                 break;
+            case R.id.set_pin_grace_button:
+                String grace = pinGraceText.getText().toString().trim();
+                String lifetime = pinGraceLifetimeText.getText().toString()
+                        .trim();
+                String signatures = pinGraceSignaturesText.getText()
+                        .toString().trim();
+                if (grace.length() != 0 && lifetime.length() != 0
+                        && signatures.length() != 0) {
+                    int graceSeconds = Integer.parseInt(grace);
+                    int lifetimeSeconds = Integer.parseInt(lifetime);
+                    int maxSignatures = Integer.parseInt(signatures);
+                    PkiHostApduService.setPinGrace(graceSeconds,
+                            lifetimeSeconds, maxSignatures, this);
+                    Toast.makeText(this,
+                            graceSeconds == 0 ? "PIN grace off"
+                                    : "PIN grace set", Toast.LENGTH_SHORT)
+                            .show();
+                } else {
+                    Toast.makeText(this,
+                            "Enter grace period, lifetime and signatures",
+                            Toast.LENGTH_SHORT).show();
+                }
+                break;
+            case R.id.revoke_pin_grace_button:
+                PinGrace.getInstance().revoke();
+                updateMetrics();
+                Toast.makeText(this, "PIN grace revoked", Toast.LENGTH_SHORT)
+                        .show();
+                break;
             default:
                 //
             }
@@ -112,8 +299,14 @@ public class MainActivity extends Activity implements OnClickListener,
     }
 
     private void chooseKey() {
-        KeyChain.choosePrivateKeyAlias(this, this, new String[] { "RSA" },
-                null, null, -1, SE_KEY_NAME);
+        String alias = PkiHostApduService.getAlias(pendingSlot, this);
+        KeyChain.choosePrivateKeyAlias(this, this,
+                new String[] { "RSA", "EC" }, null, null, -1,
+                alias != null ? alias : getKeyName(pendingSlot));
+    }
+
+    private static String getKeyName(int slot) {
+        return SE_KEY_NAME + "_" + PkiAppletEngine.SLOT_NAMES[slot];
     }
 
     private static byte[] readFile(String filename) throws Exception {
@@ -128,8 +321,20 @@ public class MainActivity extends Activity implements OnClickListener,
 
     @Override
     public void alias(final String alias) {
-        Log.d(TAG, "selected alias: " + alias);
-        PkiHostApduService.setAlias(alias, this);
+        Log.d(TAG, "selected alias for slot " + pendingSlot + ": " + alias);
+        // cancelled, keep the current key
+        if (alias == null) {
+            return;
+        }
+        PkiHostApduService.setAlias(pendingSlot, alias, this);
+        KeyHandleCache.getInstance().warm(this, pendingSlot, alias);
+        // not called on the main thread
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                updateStatus();
+            }
+        });
     }
 
 }
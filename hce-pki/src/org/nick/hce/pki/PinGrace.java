@@ -0,0 +1,230 @@
+package org.nick.hce.pki;
+
+import java.security.SecureRandom;
+
+/**
+ * Optional grace period for PIN verification across re-taps. A reader that
+ * asks for it gets a random token with a successful VERIFY PIN; if the link
+ * is lost, presenting the token within the grace period after deactivation
+ * authenticates the new session without the PIN (and the PBKDF2 run). The
+ * token is replaced on each use, so only the reader that verified the PIN
+ * (or last resumed) can resume.
+ *
+ * The grace also ends after an absolute lifetime counted from the PIN
+ * verification, after a number of signatures, when the policy changes, when
+ * a wrong token is presented and when it is revoked. Disabled (a grace
+ * period of 0) by default.
+ *
+ * Thread safe: the UI may revoke it while a session is signing.
+ */
+public class PinGrace {
+
+    public static final int TOKEN_LENGTH = 16;
+
+    public static final long DEFAULT_LIFETIME_MILLIS = 10 * 60 * 1000;
+    public static final int DEFAULT_MAX_SIGNATURES = 100;
+
+    private static final PinGrace INSTANCE = new PinGrace();
+
+    private final SecureRandom random = new SecureRandom();
+
+    // policy, guarded by this
+    private long graceMillis;
+    private long lifetimeMillis = DEFAULT_LIFETIME_MILLIS;
+    private int maxSignatures = DEFAULT_MAX_SIGNATURES;
+
+    // current grace, token is null if there is none. Guarded by this.
+    private byte[] token;
+    private long verifiedAt;
+    // 0 while the session holding the token is active
+    private long deactivatedAt;
+    private int signatures;
+
+    /**
+     * Process-wide grace, shared by the card front end and the UI.
+     */
+    public static PinGrace getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the policy, ending the current grace if it changes.
+     *
+     * @param graceMillis
+     *            how long after deactivation the token can be presented, 0
+     *            disables the grace
+     * @param lifetimeMillis
+     *            how long after the PIN verification the grace ends
+     * @param maxSignatures
+     *            signatures after the PIN verification after which the grace
+     *            ends
+     */
+    public synchronized void setPolicy(long graceMillis, long lifetimeMillis,
+            int maxSignatures) {
+        if (graceMillis < 0 || lifetimeMillis < 0 || maxSignatures < 0) {
+            throw new IllegalArgumentException("Invalid PIN grace policy");
+        }
+        if (graceMillis == this.graceMillis
+                && lifetimeMillis == this.lifetimeMillis
+                && maxSignatures == this.maxSignatures) {
+            return;
+        }
+        this.graceMillis = graceMillis;
+        this.lifetimeMillis = lifetimeMillis;
+        this.maxSignatures = maxSignatures;
+        revoke();
+    }
+
+    public synchronized boolean isEnabled() {
+        return graceMillis > 0;
+    }
+
+    /**
+     * Starts a new grace after a successful PIN verification, replacing any
+     * previous one, and writes its token to <code>out</code>.
+     *
+     * @return the token length, 0 if the grace is disabled
+     */
+    public synchronized int issue(byte[] out, int outOffset) {
+        if (graceMillis == 0) {
+            return 0;
+        }
+        token = new byte[TOKEN_LENGTH];
+        random.nextBytes(token);
+        verifiedAt = System.currentTimeMillis();
+        deactivatedAt = 0;
+        signatures = 0;
+        System.arraycopy(token, 0, out, outOffset, TOKEN_LENGTH);
+
+        return TOKEN_LENGTH;
+    }
+
+    /**
+     * Resumes the grace with the token in <code>buff</code>, writing the
+     * next token to <code>out</code>. A wrong or expired token ends the
+     * grace.
+     *
+     * @return the token length, 0 if the session can't be resumed
+     */
+    public synchronized int resume(byte[] buff, int offset, int length,
+            byte[] out, int outOffset) {
+        boolean match = token != null && length == TOKEN_LENGTH;
+        if (match) {
+            // constant time
+            int diff = 0;
+            for (int i = 0; i < TOKEN_LENGTH; i++) {
+                diff |= token[i] ^ buff[offset + i];
+            }
+            match = diff == 0;
+        }
+        if (!match || !isValid()) {
+            revoke();
+
+            return 0;
+        }
+        if (deactivatedAt != 0
+                && System.currentTimeMillis() - deactivatedAt > graceMillis) {
+            revoke();
+
+            return 0;
+        }
+
+        random.nextBytes(token);
+        deactivatedAt = 0;
+        System.arraycopy(token, 0, out, outOffset, TOKEN_LENGTH);
+
+        return TOKEN_LENGTH;
+    }
+
+    /**
+     * Whether a session resumed with the grace may still sign: within the
+     * lifetime and the signature count, and not revoked.
+     */
+    public synchronized boolean isValid() {
+        if (token == null) {
+            return false;
+        }
+        long elapsed = System.currentTimeMillis() - verifiedAt;
+        // clock set back
+        if (elapsed < 0 || elapsed > lifetimeMillis
+                || signatures >= maxSignatures) {
+            revoke();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Takes <code>count</code> signatures from the grace before a session
+     * resumed with it signs.
+     *
+     * @return false if the grace has ended or doesn't have that many left
+     */
+    public synchronized boolean reserveSignatures(int count) {
+        if (!isValid() || signatures + count > maxSignatures) {
+            return false;
+        }
+        signatures += count;
+
+        return true;
+    }
+
+    /**
+     * Counts signatures made by the session that verified the PIN.
+     */
+    public synchronized void recordSignatures(int count) {
+        if (token != null) {
+            signatures += count;
+        }
+    }
+
+    /**
+     * The session holding the token ended, the grace period starts.
+     */
+    public synchronized void deactivated() {
+        if (token != null && deactivatedAt == 0) {
+            deactivatedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Ends the current grace, the next session needs the PIN.
+     */
+    public synchronized void revoke() {
+        token = null;
+        verifiedAt = 0;
+        deactivatedAt = 0;
+        signatures = 0;
+    }
+
+    public synchronized boolean isActive() {
+        return token != null;
+    }
+
+    /**
+     * Human readable policy and state, for display.
+     */
+    public synchronized String format() {
+        if (graceMillis == 0) {
+            return "PIN grace: off";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("PIN grace: %d s, lifetime %d s, %d sigs",
+                graceMillis / 1000, lifetimeMillis / 1000, maxSignatures));
+        if (token == null) {
+            sb.append(", none active");
+        } else {
+            long left = lifetimeMillis
+                    - (System.currentTimeMillis() - verifiedAt);
+            sb.append(String.format(", active: %d s, %d sigs left",
+                    Math.max(left / 1000, 0),
+                    Math.max(maxSignatures - signatures, 0)));
+        }
+
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,175 @@
+package org.nick.hce.pki;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * PBKDF2 (PKCS#5 v2.0) PIN verifier. The HMAC is keyed once per PIN attempt,
+ * which computes the inner and outer pad state, and the same Mac instance
+ * and buffers are then reused for every iteration. Iteration count, salt and
+ * HMAC algorithm are stored with the verifier, so they can be calibrated
+ * per device.
+ */
+public class PinVerifier {
+
+    public static final String HMAC_SHA1 = "HmacSHA1";
+
+    // what Crypto.protectPassword() used before the count was calibrated
+    public static final int LEGACY_ITERATIONS = 5000;
+
+    public static final int MIN_ITERATIONS = 1000;
+    public static final int MAX_ITERATIONS = 200000;
+
+    private static final int CALIBRATION_ITERATIONS = 2000;
+
+    private final String macAlgorithm;
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] verifier;
+
+    // lazily initialized, guarded by this
+    private Mac mac;
+    private byte[] u;
+    private byte[] t;
+
+    public PinVerifier(String macAlgorithm, int iterations, byte[] salt,
+            byte[] verifier) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Invalid iteration count: "
+                    + iterations);
+        }
+        this.macAlgorithm = macAlgorithm;
+        this.iterations = iterations;
+        this.salt = salt;
+        this.verifier = verifier;
+    }
+
+    public String getMacAlgorithm() {
+        return macAlgorithm;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Shared, must not be modified.
+     */
+    public byte[] getSalt() {
+        return salt;
+    }
+
+    /**
+     * Shared, must not be modified.
+     */
+    public byte[] getVerifier() {
+        return verifier;
+    }
+
+    /**
+     * Checks <code>length</code> bytes of <code>pin</code> against the
+     * stored verifier, in time independent of where they differ.
+     */
+    public synchronized boolean verify(byte[] pin, int offset, int length) {
+        if (length == 0) {
+            return false;
+        }
+
+        try {
+            if (mac == null) {
+                mac = Mac.getInstance(macAlgorithm);
+                u = new byte[mac.getMacLength()];
+                t = new byte[verifier.length];
+            }
+            derive(mac, pin, offset, length, salt, iterations, u, t);
+
+            int diff = 0;
+            for (int i = 0; i < verifier.length; i++) {
+                diff |= verifier[i] ^ t[i];
+            }
+
+            return diff == 0;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Derives a verifier for <code>pin</code> and <code>salt</code>.
+     */
+    public static PinVerifier create(String macAlgorithm, int iterations,
+            byte[] salt, byte[] pin, int keyLength) {
+        try {
+            Mac mac = Mac.getInstance(macAlgorithm);
+            byte[] key = new byte[keyLength];
+            derive(mac, pin, 0, pin.length, salt, iterations,
+                    new byte[mac.getMacLength()], key);
+
+            return new PinVerifier(macAlgorithm, iterations, salt, key);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the iteration count that makes a single verification take
+     * about <code>targetMillis</code> on this device, within
+     * [MIN_ITERATIONS, MAX_ITERATIONS].
+     */
+    public static int calibrate(String macAlgorithm, long targetMillis) {
+        try {
+            Mac mac = Mac.getInstance(macAlgorithm);
+            byte[] pin = { '0', '0', '0', '0' };
+            byte[] salt = new byte[8];
+            byte[] u = new byte[mac.getMacLength()];
+            byte[] t = new byte[mac.getMacLength()];
+
+            // first run warms up the provider (and the JIT)
+            derive(mac, pin, 0, pin.length, salt, CALIBRATION_ITERATIONS, u, t);
+            long start = System.nanoTime();
+            derive(mac, pin, 0, pin.length, salt, CALIBRATION_ITERATIONS, u, t);
+            long elapsed = Math.max(1, System.nanoTime() - start);
+
+            long iterations = targetMillis * 1000L * 1000L
+                    * CALIBRATION_ITERATIONS / elapsed;
+
+            return (int) Math.max(MIN_ITERATIONS,
+                    Math.min(MAX_ITERATIONS, iterations));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // PBKDF2 as per RFC 2898, section 5.2. u must be mac length, result is
+    // written to out.
+    private static void derive(Mac mac, byte[] pin, int offset, int length,
+            byte[] salt, int iterations, byte[] u, byte[] out)
+            throws GeneralSecurityException {
+        mac.init(new SecretKeySpec(pin, offset, length, mac.getAlgorithm()));
+
+        int hLen = u.length;
+        int blocks = (out.length + hLen - 1) / hLen;
+        for (int block = 1; block <= blocks; block++) {
+            mac.update(salt);
+            mac.update((byte) (block >>> 24));
+            mac.update((byte) (block >>> 16));
+            mac.update((byte) (block >>> 8));
+            mac.update((byte) block);
+            mac.doFinal(u, 0);
+
+            int outOffset = (block - 1) * hLen;
+            int n = Math.min(hLen, out.length - outOffset);
+            System.arraycopy(u, 0, out, outOffset, n);
+            for (int i = 1; i < iterations; i++) {
+                mac.update(u);
+                mac.doFinal(u, 0);
+                for (int j = 0; j < n; j++) {
+                    out[outOffset + j] ^= u[j];
+                }
+            }
+        }
+    }
+
+}
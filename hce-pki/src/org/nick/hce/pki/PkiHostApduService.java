@@ -1,214 +1,425 @@
 package org.nick.hce.pki;
 
-import static org.nick.hce.pki.ISO7816.CLA_ISO7816;
-import static org.nick.hce.pki.ISO7816.FILE_NOT_FOUND;
-import static org.nick.hce.pki.ISO7816.INS_SELECT;
-import static org.nick.hce.pki.ISO7816.OFFSET_CDATA;
-import static org.nick.hce.pki.ISO7816.OFFSET_CLA;
-import static org.nick.hce.pki.ISO7816.OFFSET_INS;
-import static org.nick.hce.pki.ISO7816.OFFSET_LC;
-import static org.nick.hce.pki.ISO7816.SW_CLA_NOT_SUPPORTED;
-import static org.nick.hce.pki.ISO7816.SW_CONDITIONS_NOT_SATISFIED;
-import static org.nick.hce.pki.ISO7816.SW_INS_NOT_SUPPORTED;
-import static org.nick.hce.pki.ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED;
-import static org.nick.hce.pki.ISO7816.SW_SUCCESS;
-import static org.nick.hce.pki.ISO7816.SW_UNKNOWN;
-import static org.nick.hce.pki.ISO7816.SW_WRONG_LENGTH;
-
-import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
-import java.util.Arrays;
+import java.security.Signature;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.nfc.cardemulation.HostApduService;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
-import android.security.KeyChain;
+import android.security.KeyChainException;
 import android.util.Log;
 
-public class PkiHostApduService extends HostApduService {
+public class PkiHostApduService extends HostApduService implements
+        PkiAppletEngine.Backend {
 
     private static final String TAG = PkiHostApduService.class.getSimpleName();
 
-    private static final String PIN_KEY = "pin";
-    private static final String KEY_ALIAS_KEY = "key_alias";
+    // the reader waits for each response, so a queued signing command
+    // means something is wrong on the other end
+    private static final int SIGNING_THREADS = 1;
+    // waiting behind the one being processed
+    private static final int MAX_QUEUED_SIGN_COMMANDS = 1;
+    // a queued signing command and an engine reset
+    private static final int MAX_QUEUED_TASKS = MAX_QUEUED_SIGN_COMMANDS + 1;
 
-    private static final byte[] SELECT_PKI_APPLET_CMD = { 0x00, (byte) 0xA4,
-            0x04, 0x00, 0x06, (byte) 0xA0, 0x00, 0x00, 0x00, 0x01, 0x01, 0x01 };
+    private final PkiAppletEngine engine = new PkiAppletEngine(this);
 
-    // applet commands
-    private final static byte PKI_APPLET_CLA = (byte) 0x80;
-    private final static byte INS_VERIFY_PIN = (byte) 0x01;
-    private final static byte INS_SIGN_DATA = (byte) 0x02;
+    private final ApduTrace trace = ApduTrace.getInstance();
 
-    private boolean selected = false;
-    private boolean authenticated = false;
+    private final PkiMetrics metrics = PkiMetrics.getInstance();
 
-    @Override
-    public void onDeactivated(int reason) {
-        Log.d(TAG, "deactivated. reason=" + reason);
-        selected = false;
-        authenticated = false;
-    }
+    private ThreadPoolExecutor signingExecutor;
 
-    @Override
-    public byte[] processCommandApdu(byte[] cmd, Bundle extras) {
-        Log.d(TAG, "APDU: " + Crypto.toHex(cmd));
+    private CardConfigStore configStore;
 
-        if (!selected) {
-            if (Arrays.equals(cmd, SELECT_PKI_APPLET_CMD)) {
-                selected = true;
-                Log.d(TAG, "SELECT success");
+    // multi-part signatures, only used on the signing thread
+    private Signature streamSigner;
+    // algorithm streamSigner was created for; getAlgorithm() may return
+    // another name, e.g. RSASSA-PSS
+    private String streamAlgorithm;
 
-                return toBytes(SW_SUCCESS);
-            }
+    // when the first command of the current session arrived, 0 between
+    // sessions. Only used on the main thread.
+    private long sessionStart;
 
-            if (cmd[OFFSET_CLA] == CLA_ISO7816 && cmd[OFFSET_INS] == INS_SELECT) {
-                Log.e(TAG, "Invalid AID: " + Crypto.toHex(cmd));
+    // Incremented on the main thread when the reader goes away. Commands
+    // still queued for an earlier session are dropped.
+    private volatile int session;
+    // commands and resets handed to the signing thread and not done yet.
+    // While there are any, all commands go there to keep them in order.
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    // set when the reset of an ended session didn't fit in the queue, the
+    // next task or command does it
+    private final AtomicBoolean resetPending = new AtomicBoolean();
 
-                return toBytes(FILE_NOT_FOUND);
-            }
-
-            Log.e(TAG, "First command must be a SELECT: " + Crypto.toHex(cmd));
-            return toBytes(SW_UNKNOWN);
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        configStore = new CardConfigStore(this);
+        configStore.register();
+        // a process-wide grace survives the service being recreated
+        engine.setPinGrace(PinGrace.getInstance());
+        for (int slot = 0; slot < PkiAppletEngine.SLOT_COUNT; slot++) {
+            KeyHandleCache.getInstance().warm(this, slot, getAlias(slot));
         }
 
-        if (Arrays.equals(cmd, SELECT_PKI_APPLET_CMD)) {
-            return toBytes(SW_SUCCESS);
-        }
+        signingExecutor = new ThreadPoolExecutor(SIGNING_THREADS,
+                SIGNING_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_TASKS),
+                new ThreadFactory() {
+                    private int count = 0;
 
-        if (!isInitialized()) {
-            Log.e(TAG, "Applet not initialized");
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setName("PKI signing thread#" + count++);
 
-            return toBytes(SW_CONDITIONS_NOT_SATISFIED);
+                        return t;
+                    }
+                });
+        signingExecutor.prestartAllCoreThreads();
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                warmSigner();
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        configStore.unregister();
+        if (signingExecutor != null) {
+            signingExecutor.shutdownNow();
         }
+    }
 
-        if (cmd[OFFSET_CLA] != PKI_APPLET_CLA) {
-            Log.e(TAG, "Unsupported command class: " + Crypto.toHex(cmd));
-            return toBytes(SW_CLA_NOT_SUPPORTED);
+    @Override
+    public void onDeactivated(int reason) {
+        Log.d(TAG, "deactivated. reason=" + reason);
+        metrics.recordDeactivation(reason);
+        if (sessionStart != 0) {
+            metrics.recordLatency(PkiMetrics.LATENCY_SESSION, sessionStart);
+            sessionStart = 0;
         }
+        session++;
+        // the engine isn't thread safe, reset it after whatever the signing
+        // thread is doing
+        boolean submitted = submit(new Runnable() {
+            @Override
+            public void run() {
+                engine.reset();
+            }
+        });
+        if (!submitted && !signingExecutor.isShutdown()) {
+            resetPending.set(true);
+        }
+    }
 
-        if (cmd[OFFSET_INS] != INS_VERIFY_PIN
-                && cmd[OFFSET_INS] != INS_SIGN_DATA) {
-            Log.e(TAG, "Unsupported instruction: " + Crypto.toHex(cmd));
-            return toBytes(SW_INS_NOT_SUPPORTED);
+    @Override
+    public byte[] processCommandApdu(final byte[] cmd, Bundle extras) {
+        final long start = System.nanoTime();
+        if (sessionStart == 0) {
+            sessionStart = start;
         }
+        trace.record(ApduTrace.COMMAND, cmd);
+
+        boolean longRunning = PkiAppletEngine.isLongRunning(cmd);
+        if (longRunning || pendingTasks.get() > 0) {
+            // pending tasks include the one running
+            if (longRunning && pendingTasks.get() >= SIGNING_THREADS
+                    + MAX_QUEUED_SIGN_COMMANDS) {
+                Log.w(TAG, "Too many pending signing commands, rejecting");
+                return reject(cmd, start);
+            }
 
-        byte ins = cmd[OFFSET_INS];
-        switch (ins) {
-        case INS_VERIFY_PIN:
-            if (cmd.length < 5) {
-                Log.e(TAG, "Expecting command with data: " + Crypto.toHex(cmd));
-                return toBytes(SW_WRONG_LENGTH);
+            final int commandSession = session;
+            Runnable r = new Runnable() {
+                @Override
+                public void run() {
+                    if (commandSession != session) {
+                        // nobody is waiting for the response, and it
+                        // mustn't go to the next reader
+                        Log.d(TAG, "Dropping command of an ended session");
+                        return;
+                    }
+                    byte[] response = engine.process(cmd);
+                    logResult();
+                    trace.record(ApduTrace.RESPONSE, response);
+                    // includes the wait for the signing thread
+                    metrics.recordCommand(cmd, response, start);
+                    // the reader may have gone away while signing
+                    if (commandSession == session) {
+                        sendResponseApdu(response);
+                    }
+                }
+            };
+            if (!submit(r)) {
+                Log.w(TAG, "Signing thread stopped or busy, rejecting");
+                return reject(cmd, start);
             }
 
-            int dataLen = cmd[OFFSET_LC];
-            byte[] pinData = Arrays.copyOfRange(cmd, OFFSET_CDATA, OFFSET_CDATA
-                    + dataLen);
-            String pin = asciiBytesToStr(pinData);
-            if (Crypto.checkPassword(getPin(), pin)) {
-                Log.d(TAG, "VERIFY PIN success");
-                authenticated = true;
+            return null;
+        }
 
-                return toBytes(SW_SUCCESS);
-            }
+        // nothing pending, the engine is ours
+        if (resetPending.getAndSet(false)) {
+            engine.reset();
+        }
+        byte[] response = engine.process(cmd);
+        logResult();
+        trace.record(ApduTrace.RESPONSE, response);
+        metrics.recordCommand(cmd, response, start);
 
-            Log.w(TAG, "Invalid PIN");
-            return toBytes(SW_SECURITY_STATUS_NOT_SATISFIED);
-        case INS_SIGN_DATA:
-            if (cmd.length < 5) {
-                Log.e(TAG, "Expecting command with data: " + Crypto.toHex(cmd));
-                return toBytes(SW_WRONG_LENGTH);
-            }
+        return response;
+    }
 
-            if (!authenticated) {
-                Log.w(TAG, "Need to authenticate first");
-                return toBytes(SW_SECURITY_STATUS_NOT_SATISFIED);
-            }
+    private byte[] reject(byte[] cmd, long start) {
+        byte[] response = PkiAppletEngine
+                .statusResponse(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        trace.record(ApduTrace.RESPONSE, response);
+        metrics.recordCommand(cmd, response, start);
 
-            dataLen = cmd[OFFSET_LC];
-            final byte[] signedData = Arrays.copyOfRange(cmd, OFFSET_CDATA,
-                    OFFSET_CDATA + dataLen);
+        return response;
+    }
 
-            Runnable r = new Runnable() {
+    // Runs r on the signing thread, after anything submitted before.
+    // Returns false if the executor has been shut down or its queue is
+    // full.
+    private boolean submit(final Runnable r) {
+        pendingTasks.incrementAndGet();
+        try {
+            signingExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
                     try {
-                        PrivateKey pk = KeyChain.getPrivateKey(
-                                PkiHostApduService.this, getAlias());
-                        byte[] signature = Crypto.sign(pk, signedData);
-
-                        byte[] response = new byte[signature.length + 2];
-                        System.arraycopy(signature, 0, response, 0,
-                                signature.length);
-                        System.arraycopy(toBytes(SW_SUCCESS), 0, response,
-                                signature.length, 2);
-                        Log.d(TAG, "SIGN DATA success");
-                        Log.d(TAG, "response: " + Crypto.toHex(response));
-                        sendResponseApdu(response);
-                    } catch (Exception e) {
-                        Log.d(TAG, "Error: " + e.getMessage(), e);
-                        sendResponseApdu(toBytes(SW_UNKNOWN));
+                        if (resetPending.getAndSet(false)) {
+                            engine.reset();
+                        }
+                        r.run();
+                    } finally {
+                        pendingTasks.decrementAndGet();
                     }
                 }
+            });
 
-            };
-            Thread t = new Thread(r);
-            t.start();
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingTasks.decrementAndGet();
 
-            return null;
+            return false;
+        }
+    }
+
+    private void logResult() {
+        if (engine.getLastError() != null) {
+            Log.e(TAG, "Error: " + engine.getLastMessage(),
+                    engine.getLastError());
+        } else if (engine.getLastMessage() != null) {
+            Log.d(TAG, engine.getLastMessage());
+        }
+    }
+
+    private void warmSigner() {
+        try {
+            boolean warmed = false;
+            for (int slot = 0; slot < PkiAppletEngine.SLOT_COUNT; slot++) {
+                PrivateKey pk = KeyHandleCache.getInstance().getPrivateKey(
+                        this, slot, getAlias(slot));
+                if (pk != null) {
+                    warmSigner(pk.getAlgorithm(), pk);
+                    warmed = true;
+                }
+            }
+            if (!warmed) {
+                warmSigner(PkiAppletEngine.KEY_ALGORITHM_RSA, null);
+            }
+            Log.d(TAG, "Signer warmed up");
+        } catch (Exception e) {
+            Log.w(TAG, "Error warming up signer: " + e.getMessage(), e);
         }
+    }
 
-        return toBytes(ISO7816.SW_UNKNOWN);
+    private static void warmSigner(String keyAlgorithm, PrivateKey pk) {
+        // every algorithm P1 can select, so switching never costs a
+        // provider lookup
+        for (String algorithm : PkiAppletEngine
+                .getSignatureAlgorithms(keyAlgorithm)) {
+            try {
+                SignatureCache.warm(algorithm, pk);
+            } catch (GeneralSecurityException e) {
+                Log.d(TAG, "Signature algorithm not available: " + algorithm);
+            }
+        }
     }
 
-    private String asciiBytesToStr(byte[] pinData) {
+    @Override
+    public boolean verifyPin(byte[] buff, int offset, int length) {
+        PinVerifier pinVerifier = configStore.get().getPinVerifier();
+        if (pinVerifier == null) {
+            return false;
+        }
+
+        long start = System.nanoTime();
         try {
-            return new String(pinData, "ASCII");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+            return pinVerifier.verify(buff, offset, length);
+        } finally {
+            metrics.recordLatency(PkiMetrics.LATENCY_PIN_VERIFY, start);
         }
     }
 
-    private static byte[] toBytes(short s) {
-        return new byte[] { (byte) ((s & 0xff00) >> 8), (byte) (s & 0xff) };
+    @Override
+    public String getKeyAlgorithm(int slot) throws Exception {
+        // cached with the handle, so this is cheap
+        return KeyHandleCache.getInstance().getKeyAlgorithm(this, slot,
+                getAlias(slot));
     }
 
-    public String getAlias() {
-        return getAlias(this);
+    @Override
+    public int sign(int slot, String algorithm, byte[] buff, int offset,
+            int length, byte[] out, int outOffset) throws Exception {
+        String alias = getAlias(slot);
+        PrivateKey pk = getPrivateKey(slot, alias);
+        long start = System.nanoTime();
+        try {
+            return Crypto.sign(pk, algorithm, buff, offset, length, out,
+                    outOffset);
+        } catch (RuntimeException e) {
+            // handle may be stale, reload on next try
+            KeyHandleCache.getInstance().invalidate(alias);
+            throw e;
+        } finally {
+            metrics.recordLatency(PkiMetrics.LATENCY_SIGN, start);
+        }
     }
 
-    public static String getAlias(Context ctx) {
-        return PreferenceManager.getDefaultSharedPreferences(ctx).getString(
-                KEY_ALIAS_KEY, null);
+    private PrivateKey getPrivateKey(int slot, String alias)
+            throws KeyChainException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            return KeyHandleCache.getInstance().getPrivateKey(this, slot,
+                    alias);
+        } finally {
+            metrics.recordLatency(PkiMetrics.LATENCY_KEY_RETRIEVAL, start);
+        }
     }
 
-    public static void setAlias(String alias, Context ctx) {
-        PreferenceManager.getDefaultSharedPreferences(ctx).edit()
-                .putString(KEY_ALIAS_KEY, alias).commit();
+    @Override
+    public void signInit(int slot, String algorithm) throws Exception {
+        PrivateKey pk = getPrivateKey(slot, getAlias(slot));
+        // not shared with the cache, an aborted signature leaves data behind
+        if (streamSigner == null || !algorithm.equals(streamAlgorithm)) {
+            streamSigner = PkiAppletEngine.newSignature(algorithm);
+            streamAlgorithm = algorithm;
+        }
+        // also resets an unfinished signature
+        streamSigner.initSign(pk);
     }
 
-    public String getPin() {
-        return getPin(this);
+    @Override
+    public void signUpdate(byte[] buff, int offset, int length)
+            throws Exception {
+        streamSigner.update(buff, offset, length);
+    }
+
+    @Override
+    public int signFinal(byte[] out, int outOffset) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return streamSigner.sign(out, outOffset, out.length - outOffset);
+        } finally {
+            metrics.recordLatency(PkiMetrics.LATENCY_SIGN, start);
+        }
+    }
+
+    @Override
+    public byte[] getCertificateChain(int slot) {
+        // SELECT is processed on the main thread, which can't wait for
+        // KeyChain. Chains are loaded at startup and when a key is chosen,
+        // so a miss is rare; the reader gets it on the next tap.
+        String alias = getAlias(slot);
+        byte[] chain = KeyHandleCache.getInstance().peekCertificateChain(
+                slot, alias);
+        if (chain == null) {
+            KeyHandleCache.getInstance().warm(this, slot, alias);
+        }
+
+        return chain;
+    }
+
+    public String getAlias(int slot) {
+        return configStore.get().getAlias(slot);
+    }
+
+    public static String getAlias(int slot, Context ctx) {
+        return PreferenceManager.getDefaultSharedPreferences(ctx).getString(
+                CardConfigStore.getAliasKey(slot), null);
+    }
+
+    /**
+     * Assigns the KeyChain key <code>alias</code> to <code>slot</code>, or
+     * empties the slot if <code>alias</code> is null. The cached handle for
+     * the slot is reloaded on the next use.
+     */
+    public static void setAlias(int slot, String alias, Context ctx) {
+        PreferenceManager.getDefaultSharedPreferences(ctx).edit()
+                .putString(CardConfigStore.getAliasKey(slot), alias).commit();
     }
 
     public static String getPin(Context ctx) {
         return PreferenceManager.getDefaultSharedPreferences(ctx).getString(
-                PIN_KEY, null);
+                CardConfigStore.PIN_KEY, null);
     }
 
     public static void setPin(String pin, Context ctx) {
         String protectedPin = Crypto.protectPassword(pin);
         PreferenceManager.getDefaultSharedPreferences(ctx).edit()
-                .putString(PIN_KEY, protectedPin).commit();
+                .putString(CardConfigStore.PIN_KEY, protectedPin).commit();
+        // also when the service isn't listening for changes
+        PinGrace.getInstance().revoke();
+    }
+
+    /**
+     * Sets the PIN grace policy, see {@link PinGrace}. A
+     * <code>graceSeconds</code> of 0 disables it.
+     */
+    public static void setPinGrace(int graceSeconds, int lifetimeSeconds,
+            int maxSignatures, Context ctx) {
+        PreferenceManager.getDefaultSharedPreferences(ctx).edit()
+                .putInt(CardConfigStore.PIN_GRACE_KEY, graceSeconds)
+                .putInt(CardConfigStore.PIN_GRACE_LIFETIME_KEY, lifetimeSeconds)
+                .putInt(CardConfigStore.PIN_GRACE_MAX_SIGNATURES_KEY,
+                        maxSignatures).commit();
+        PinGrace.getInstance().setPolicy(graceSeconds * 1000L,
+                lifetimeSeconds * 1000L, maxSignatures);
     }
 
+    @Override
     public boolean isInitialized() {
-        return getAlias() != null && getPin() != null;
+        return configStore.get().isInitialized();
     }
 
     public static boolean isInitialized(Context ctx) {
-        return getAlias(ctx) != null && getPin(ctx) != null;
+        if (getPin(ctx) == null) {
+            return false;
+        }
+        for (int slot = 0; slot < PkiAppletEngine.SLOT_COUNT; slot++) {
+            if (getAlias(slot, ctx) != null) {
+                return true;
+            }
+        }
+
+        return false;
     }
 
 }
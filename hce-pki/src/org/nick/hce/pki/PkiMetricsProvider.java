@@ -0,0 +1,134 @@
+package org.nick.hce.pki;
+
+import java.util.Map;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+/**
+ * Read-only view of {@link PkiMetrics}, so devices can be polled for
+ * performance data, e.g.:
+ *
+ * <pre>
+ * adb shell content query --uri content://&lt;package&gt;.metrics/latency
+ * </pre>
+ *
+ * Tables are <code>instructions</code>, <code>status_words</code>,
+ * <code>latency</code> (microseconds) and <code>deactivations</code>.
+ * Deleting any of them resets all metrics and returns the number of rows
+ * with data in all tables. Requires the DUMP permission, which the shell
+ * has.
+ */
+public class PkiMetricsProvider extends ContentProvider {
+
+    public static final String INSTRUCTIONS = "instructions";
+    public static final String STATUS_WORDS = "status_words";
+    public static final String LATENCY = "latency";
+    public static final String DEACTIVATIONS = "deactivations";
+
+    private static final int MATCH_INSTRUCTIONS = 1;
+    private static final int MATCH_STATUS_WORDS = 2;
+    private static final int MATCH_LATENCY = 3;
+    private static final int MATCH_DEACTIVATIONS = 4;
+
+    private static final String[] INSTRUCTION_COLUMNS = { "ins", "count" };
+    private static final String[] STATUS_WORD_COLUMNS = { "sw", "count" };
+    private static final String[] LATENCY_COLUMNS = { "name", "count",
+            "mean", "p50", "p99", "p999", "max" };
+    private static final String[] DEACTIVATION_COLUMNS = { "reason", "count" };
+
+    private final UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    private final PkiMetrics metrics = PkiMetrics.getInstance();
+
+    public static String getAuthority(String packageName) {
+        return packageName + ".metrics";
+    }
+
+    @Override
+    public boolean onCreate() {
+        String authority = getAuthority(getContext().getPackageName());
+        matcher.addURI(authority, INSTRUCTIONS, MATCH_INSTRUCTIONS);
+        matcher.addURI(authority, STATUS_WORDS, MATCH_STATUS_WORDS);
+        matcher.addURI(authority, LATENCY, MATCH_LATENCY);
+        matcher.addURI(authority, DEACTIVATIONS, MATCH_DEACTIVATIONS);
+
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        MatrixCursor result;
+        switch (matcher.match(uri)) {
+        case MATCH_INSTRUCTIONS:
+            result = new MatrixCursor(INSTRUCTION_COLUMNS);
+            long[] ins = metrics.getInstructionCounts();
+            for (int i = 0; i < ins.length; i++) {
+                if (ins[i] > 0) {
+                    result.addRow(new Object[] { String.format("%02X", i),
+                            ins[i] });
+                }
+            }
+            return result;
+        case MATCH_STATUS_WORDS:
+            result = new MatrixCursor(STATUS_WORD_COLUMNS);
+            for (Map.Entry<Integer, Long> e : metrics.getStatusWordCounts()
+                    .entrySet()) {
+                String sw = e.getKey() < 0 ? "other" : String.format("%04X",
+                        e.getKey());
+                result.addRow(new Object[] { sw, e.getValue() });
+            }
+            return result;
+        case MATCH_LATENCY:
+            result = new MatrixCursor(LATENCY_COLUMNS);
+            for (int i = 0; i < PkiMetrics.LATENCY_NAMES.length; i++) {
+                LatencyHistogram h = metrics.getLatency(i);
+                result.addRow(new Object[] { PkiMetrics.LATENCY_NAMES[i],
+                        h.getCount(), Math.round(h.getMean()),
+                        h.getValueAtPercentile(50),
+                        h.getValueAtPercentile(99),
+                        h.getValueAtPercentile(99.9), h.getMax() });
+            }
+            return result;
+        case MATCH_DEACTIVATIONS:
+            result = new MatrixCursor(DEACTIVATION_COLUMNS);
+            long[] deactivations = metrics.getDeactivationCounts();
+            for (int i = 0; i < deactivations.length; i++) {
+                result.addRow(new Object[] { PkiMetrics.DEACTIVATION_NAMES[i],
+                        deactivations[i] });
+            }
+            return result;
+        default:
+            throw new IllegalArgumentException("Unknown URI: " + uri);
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        if (matcher.match(uri) == UriMatcher.NO_MATCH) {
+            throw new IllegalArgumentException("Unknown URI: " + uri);
+        }
+        return metrics.reset();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+}
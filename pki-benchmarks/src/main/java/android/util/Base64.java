@@ -0,0 +1,26 @@
+package android.util;
+
+/**
+ * Stand-in for the Android class, backed by java.util.Base64. Only the
+ * flags the applet code uses are supported.
+ */
+public class Base64 {
+
+    public static final int DEFAULT = 0;
+    public static final int NO_WRAP = 2;
+
+    private Base64() {
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        if (flags == NO_WRAP) {
+            return java.util.Base64.getEncoder().encodeToString(input);
+        }
+
+        return java.util.Base64.getMimeEncoder().encodeToString(input) + "\n";
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getMimeDecoder().decode(str);
+    }
+}
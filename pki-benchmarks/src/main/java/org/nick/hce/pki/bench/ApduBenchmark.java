@@ -0,0 +1,97 @@
+package org.nick.hce.pki.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.nick.hce.pki.ApduTrace;
+import org.nick.hce.pki.PinVerifier;
+import org.nick.hce.pki.PkiAppletEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * APDU parsing and dispatch in {@link PkiAppletEngine#process(byte[])}, with
+ * a backend that doesn't actually sign. Run with <code>-prof gc</code> to see
+ * the allocation rate per command.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ApduBenchmark {
+
+    private static final byte[] PIN = "1234".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({ "false", "true" })
+    public boolean trace;
+
+    private PkiAppletEngine engine;
+    private byte[] signCmd;
+    private byte[] prehashedSignCmd;
+    private byte[] unknownCmd;
+
+    @Setup
+    public void setup() {
+        PinVerifier verifier = PinVerifier.create(PinVerifier.HMAC_SHA1,
+                PinVerifier.MIN_ITERATIONS, new byte[8], PIN, 20);
+        engine = new PkiAppletEngine(new SoftwareBackend(null, verifier));
+        engine.process(PkiAppletEngine.SELECT_PKI_APPLET_CMD);
+
+        byte[] verifyCmd = command(PkiAppletEngine.INS_VERIFY_PIN, 0, PIN);
+        engine.process(verifyCmd);
+        if (!engine.isAuthenticated()) {
+            throw new IllegalStateException("PIN not verified");
+        }
+
+        signCmd = command(PkiAppletEngine.INS_SIGN_DATA, 0, new byte[32]);
+        prehashedSignCmd = command(PkiAppletEngine.INS_SIGN_DATA, 0x81,
+                new byte[32]);
+        unknownCmd = command((byte) 0x7f, 0, new byte[0]);
+
+        ApduTrace.getInstance().setEnabled(trace);
+    }
+
+    private static byte[] command(byte ins, int p1, byte[] data) {
+        byte[] cmd = new byte[5 + data.length];
+        cmd[0] = PkiAppletEngine.PKI_APPLET_CLA;
+        cmd[1] = ins;
+        cmd[2] = (byte) p1;
+        cmd[4] = (byte) data.length;
+        System.arraycopy(data, 0, cmd, 5, data.length);
+
+        return cmd;
+    }
+
+    private byte[] process(byte[] cmd) {
+        ApduTrace.getInstance().record(ApduTrace.COMMAND, cmd);
+        byte[] response = engine.process(cmd);
+        ApduTrace.getInstance().record(ApduTrace.RESPONSE, response);
+
+        return response;
+    }
+
+    @Benchmark
+    public byte[] select() {
+        return process(PkiAppletEngine.SELECT_PKI_APPLET_CMD);
+    }
+
+    @Benchmark
+    public byte[] sign() {
+        return process(signCmd);
+    }
+
+    @Benchmark
+    public byte[] signPrehashed() {
+        return process(prehashedSignCmd);
+    }
+
+    @Benchmark
+    public byte[] unknownInstruction() {
+        return process(unknownCmd);
+    }
+}
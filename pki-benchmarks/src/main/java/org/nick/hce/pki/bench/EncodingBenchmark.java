@@ -0,0 +1,53 @@
+package org.nick.hce.pki.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.nick.hce.pki.Crypto;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Hex and Base64 encoding. Base64 goes through the android.util.Base64 stub,
+ * so it only shows the cost of the calls around it, not Android's encoder.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class EncodingBenchmark {
+
+    // typical command APDU and 2048-bit signature response sizes
+    @Param({ "16", "258" })
+    public int length;
+
+    private byte[] bytes;
+    private String base64;
+
+    @Setup
+    public void setup() {
+        bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        base64 = Crypto.toBase64(bytes);
+    }
+
+    @Benchmark
+    public String toHex() {
+        return Crypto.toHex(bytes);
+    }
+
+    @Benchmark
+    public String toBase64() {
+        return Crypto.toBase64(bytes);
+    }
+
+    @Benchmark
+    public byte[] fromBase64() {
+        return Crypto.fromBase64(base64);
+    }
+}
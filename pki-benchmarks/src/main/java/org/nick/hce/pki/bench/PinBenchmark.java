@@ -0,0 +1,65 @@
+package org.nick.hce.pki.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.nick.hce.pki.Crypto;
+import org.nick.hce.pki.PinVerifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * PIN verification latency. <code>verify</code> is what VERIFY PIN costs
+ * with a parsed verifier, <code>checkPassword</code> also parses the stored
+ * string.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class PinBenchmark {
+
+    private static final String PIN = "1234";
+
+    @Param({ "5000", "20000" })
+    public int iterations;
+
+    private PinVerifier verifier;
+    private String protectedPin;
+    private byte[] pin;
+
+    @Setup
+    public void setup() {
+        pin = PIN.getBytes(StandardCharsets.US_ASCII);
+        verifier = PinVerifier.create(PinVerifier.HMAC_SHA1, iterations,
+                Crypto.generateSalt(), pin, 20);
+        protectedPin = String.format("2]%s]%d]%s]%s",
+                verifier.getMacAlgorithm(), iterations,
+                Crypto.toBase64(verifier.getSalt()),
+                Crypto.toBase64(verifier.getVerifier()));
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return verifier.verify(pin, 0, pin.length);
+    }
+
+    @Benchmark
+    public boolean checkPassword() {
+        return Crypto.checkPassword(protectedPin, PIN);
+    }
+
+    /**
+     * Uses the calibrated iteration count, so doesn't depend on the
+     * parameter.
+     */
+    @Benchmark
+    public String protectPassword() {
+        return Crypto.protectPassword(PIN);
+    }
+}
@@ -0,0 +1,84 @@
+package org.nick.hce.pki.bench;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.util.concurrent.TimeUnit;
+
+import org.nick.hce.pki.Crypto;
+import org.nick.hce.pki.PkiAppletEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Signing throughput per key and hash algorithm. The signature algorithm is
+ * <code>&lt;hash&gt;withRSA</code> or <code>&lt;hash&gt;withECDSA</code>,
+ * depending on the key. NONE signs a SHA-256 DigestInfo (RSA) or digest
+ * (EC), as in pre-hashed mode.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class SignBenchmark {
+
+    // DER DigestInfo prefix for SHA-256
+    private static final byte[] SHA256_DIGEST_INFO_PREFIX = { 0x30, 0x31,
+            0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65,
+            0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20 };
+
+    // algorithm-size
+    @Param({ "RSA-1024", "RSA-2048", "RSA-4096", "EC-256" })
+    public String key;
+
+    @Param({ "SHA1", "SHA256", "NONE" })
+    public String hash;
+
+    @Param({ "32" })
+    public int dataLength;
+
+    private PrivateKey privateKey;
+    private String algorithm;
+    private byte[] data;
+    private final byte[] out = new byte[512];
+
+    @Setup
+    public void setup() throws Exception {
+        String[] keyParams = key.split("-");
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance(keyParams[0]);
+        kpg.initialize(Integer.parseInt(keyParams[1]));
+        KeyPair kp = kpg.generateKeyPair();
+        privateKey = kp.getPrivate();
+        boolean ec = PkiAppletEngine.KEY_ALGORITHM_EC.equals(keyParams[0]);
+        algorithm = hash + (ec ? "withECDSA" : "withRSA");
+
+        data = new byte[dataLength];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        if ("NONE".equals(hash)) {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            if (ec) {
+                data = digest;
+                return;
+            }
+            data = new byte[SHA256_DIGEST_INFO_PREFIX.length + digest.length];
+            System.arraycopy(SHA256_DIGEST_INFO_PREFIX, 0, data, 0,
+                    SHA256_DIGEST_INFO_PREFIX.length);
+            System.arraycopy(digest, 0, data,
+                    SHA256_DIGEST_INFO_PREFIX.length, digest.length);
+        }
+    }
+
+    @Benchmark
+    public int sign() {
+        return Crypto.sign(privateKey, algorithm, data, 0, data.length, out,
+                0);
+    }
+}
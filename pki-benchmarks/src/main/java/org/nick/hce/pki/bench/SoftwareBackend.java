@@ -0,0 +1,94 @@
+package org.nick.hce.pki.bench;
+
+import java.security.PrivateKey;
+import java.security.Signature;
+
+import org.nick.hce.pki.Crypto;
+import org.nick.hce.pki.PinVerifier;
+import org.nick.hce.pki.PkiAppletEngine;
+
+/**
+ * Applet backend with a software key, doing what the Android backends do
+ * minus the key store. The same key serves every slot. With a
+ * <code>null</code> key, signing returns a fixed dummy signature so that only
+ * command processing is measured.
+ */
+public class SoftwareBackend implements PkiAppletEngine.Backend {
+
+    private static final int DUMMY_SIGNATURE_LENGTH = 256;
+
+    private final PrivateKey privateKey;
+    private final PinVerifier pinVerifier;
+
+    private Signature streamSigner;
+    private String streamAlgorithm;
+
+    public SoftwareBackend(PrivateKey privateKey, PinVerifier pinVerifier) {
+        this.privateKey = privateKey;
+        this.pinVerifier = pinVerifier;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return true;
+    }
+
+    @Override
+    public boolean verifyPin(byte[] buff, int offset, int length) {
+        return pinVerifier.verify(buff, offset, length);
+    }
+
+    @Override
+    public String getKeyAlgorithm(int slot) {
+        if (privateKey == null) {
+            return PkiAppletEngine.KEY_ALGORITHM_RSA;
+        }
+
+        return privateKey.getAlgorithm();
+    }
+
+    @Override
+    public int sign(int slot, String algorithm, byte[] buff, int offset,
+            int length, byte[] out, int outOffset) throws Exception {
+        if (privateKey == null) {
+            return DUMMY_SIGNATURE_LENGTH;
+        }
+
+        return Crypto.sign(privateKey, algorithm, buff, offset, length, out,
+                outOffset);
+    }
+
+    @Override
+    public void signInit(int slot, String algorithm) throws Exception {
+        if (privateKey == null) {
+            return;
+        }
+        if (streamSigner == null || !algorithm.equals(streamAlgorithm)) {
+            streamSigner = PkiAppletEngine.newSignature(algorithm);
+            streamAlgorithm = algorithm;
+        }
+        streamSigner.initSign(privateKey);
+    }
+
+    @Override
+    public byte[] getCertificateChain(int slot) {
+        return null;
+    }
+
+    @Override
+    public void signUpdate(byte[] buff, int offset, int length)
+            throws Exception {
+        if (privateKey != null) {
+            streamSigner.update(buff, offset, length);
+        }
+    }
+
+    @Override
+    public int signFinal(byte[] out, int outOffset) throws Exception {
+        if (privateKey == null) {
+            return DUMMY_SIGNATURE_LENGTH;
+        }
+
+        return streamSigner.sign(out, outOffset, out.length - outOffset);
+    }
+}
@@ -0,0 +1,242 @@
+package org.nick.hce.pki.bench;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nick.hce.pki.PinGrace;
+import org.nick.hce.pki.PinVerifier;
+import org.nick.hce.pki.PkiAppletEngine;
+
+/**
+ * Command processing of {@link PkiAppletEngine} with a backend that doesn't
+ * actually sign.
+ */
+public class PkiAppletEngineTest {
+
+    private static final byte[] PIN = "1234".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int SW_SUCCESS = 0x9000;
+    private static final int SW_END_OF_FILE = 0x6282;
+    private static final int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+    private static final int SW_WRONG_LENGTH = 0x6700;
+    private static final int SW_INCORRECT_P1P2 = 0x6A86;
+
+    private byte[] chain;
+    private int signatures;
+    // returned by the backend instead of a dummy signature, if not 0
+    private int signatureLength;
+    private PkiAppletEngine engine;
+
+    @Before
+    public void setup() {
+        chain = new byte[755];
+        for (int i = 0; i < chain.length; i++) {
+            chain[i] = (byte) i;
+        }
+        PinVerifier verifier = PinVerifier.create(PinVerifier.HMAC_SHA1,
+                PinVerifier.MIN_ITERATIONS, new byte[8], PIN, 20);
+        engine = new PkiAppletEngine(new SoftwareBackend(null, verifier) {
+            @Override
+            public byte[] getCertificateChain(int slot) {
+                return slot == PkiAppletEngine.SLOT_AUTHENTICATION ? chain
+                        : null;
+            }
+
+            @Override
+            public int sign(int slot, String algorithm, byte[] buff,
+                    int offset, int length, byte[] out, int outOffset)
+                    throws Exception {
+                signatures++;
+                if (signatureLength != 0) {
+                    return signatureLength;
+                }
+
+                return super.sign(slot, algorithm, buff, offset, length, out,
+                        outOffset);
+            }
+        });
+        assertEquals(SW_SUCCESS,
+                sw(engine.process(PkiAppletEngine.SELECT_PKI_APPLET_CMD)));
+    }
+
+    @After
+    public void teardown() {
+        PinGrace.getInstance().setPolicy(0, PinGrace.DEFAULT_LIFETIME_MILLIS,
+                PinGrace.DEFAULT_MAX_SIGNATURES);
+    }
+
+    @Test
+    public void readBinaryEndsWithEndOfFile() {
+        byte[] response = engine.process(readBinary(
+                PkiAppletEngine.P1_SFI | 1, 0, 0));
+        assertEquals(SW_SUCCESS, sw(response));
+        assertEquals(256, response.length - 2);
+
+        response = engine.process(readBinary(0x02, 0x00, 0));
+        assertEquals(SW_END_OF_FILE, sw(response));
+        assertEquals(chain.length - 512, response.length - 2);
+    }
+
+    @Test
+    public void readBinaryBelowLinkLimitReadsWholeFile() {
+        // the last read has 253 bytes left: more than the link carries,
+        // less than Le
+        engine.setMaxResponseLength(251);
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] response = engine.process(readBinary(
+                PkiAppletEngine.P1_SFI | 1, 0, 0));
+        while (sw(response) == SW_SUCCESS) {
+            assertEquals(251, response.length - 2);
+            read.write(response, 0, response.length - 2);
+            int offset = read.size();
+            response = engine.process(readBinary(offset >> 8, offset, 0));
+        }
+        assertEquals(SW_END_OF_FILE, sw(response));
+        read.write(response, 0, response.length - 2);
+
+        assertArrayEquals(chain, read.toByteArray());
+    }
+
+    @Test
+    public void resumedBatchNeedsGraceForAllItems() {
+        resumeWithGrace(2);
+
+        // 3 items, the grace covers 2
+        byte[] batch = { 0x00, 0x01, 0x01, 0x00, 0x01, 0x02, 0x00, 0x01,
+                0x03 };
+        byte[] response = engine.process(command(
+                PkiAppletEngine.INS_SIGN_BATCH, 0, batch));
+        assertEquals(SW_SECURITY_STATUS_NOT_SATISFIED, sw(response));
+    }
+
+    @Test
+    public void rejectedRequestsDontUseGrace() {
+        resumeWithGrace(1);
+
+        byte[] data = new byte[32];
+        for (int i = 0; i < 3; i++) {
+            assertEquals(SW_INCORRECT_P1P2, sw(engine.process(command(
+                    PkiAppletEngine.INS_SIGN_DATA,
+                    PkiAppletEngine.P1_RESERVED, data))));
+        }
+        assertEquals(SW_SUCCESS, sw(engine.process(command(
+                PkiAppletEngine.INS_SIGN_DATA, 0, data))));
+    }
+
+    @Test
+    public void chainedBatchNeedsAuthentication() {
+        byte[] cmd = command(PkiAppletEngine.INS_SIGN_BATCH, 0, new byte[] {
+                0x00, 0x01, 0x01 });
+        cmd[0] |= 0x10;
+        assertEquals(SW_SECURITY_STATUS_NOT_SATISFIED,
+                sw(engine.process(cmd)));
+    }
+
+    @Test
+    public void tooLargeBatchIsRejectedBeforeSigning() {
+        assertEquals(SW_SUCCESS, sw(engine.process(command(
+                PkiAppletEngine.INS_VERIFY_PIN, PkiAppletEngine.P1_PIN, PIN))));
+
+        // the signatures of 128 items could take more than 64K
+        byte[] batch = new byte[128 * 3];
+        for (int i = 0; i < batch.length; i += 3) {
+            batch[i + 1] = 1;
+            batch[i + 2] = (byte) i;
+        }
+        byte[] cmd = new byte[7 + batch.length];
+        cmd[0] = PkiAppletEngine.PKI_APPLET_CLA;
+        cmd[1] = PkiAppletEngine.INS_SIGN_BATCH;
+        cmd[5] = (byte) (batch.length >> 8);
+        cmd[6] = (byte) batch.length;
+        System.arraycopy(batch, 0, cmd, 7, batch.length);
+
+        assertEquals(SW_WRONG_LENGTH, sw(engine.process(cmd)));
+        assertEquals(0, signatures);
+    }
+
+    @Test
+    public void responsesOfVaryingLengthAreReused() {
+        assertEquals(SW_SUCCESS, sw(engine.process(command(
+                PkiAppletEngine.INS_VERIFY_PIN, PkiAppletEngine.P1_PIN, PIN))));
+
+        // DER encoded P-256 signatures
+        byte[] sign = command(PkiAppletEngine.INS_SIGN_DATA, 0, new byte[32]);
+        byte[][] responses = new byte[3][];
+        for (int i = 0; i < responses.length; i++) {
+            signatureLength = 70 + i;
+            responses[i] = engine.process(sign);
+            assertEquals(SW_SUCCESS, sw(responses[i]));
+            assertEquals(signatureLength, responses[i].length - 2);
+        }
+        for (int i = 0; i < responses.length; i++) {
+            signatureLength = 70 + i;
+            assertSame(responses[i], engine.process(sign));
+        }
+    }
+
+    @Test
+    public void wrongDigestLengthIsRejectedBeforeSigning() {
+        assertEquals(SW_SUCCESS, sw(engine.process(command(
+                PkiAppletEngine.INS_VERIFY_PIN, PkiAppletEngine.P1_PIN, PIN))));
+
+        // a SHA-256 digest, then a SHA-1 one
+        byte[] batch = new byte[2 + 32 + 2 + 20];
+        batch[1] = 32;
+        batch[2 + 32 + 1] = 20;
+        byte[] response = engine.process(command(
+                PkiAppletEngine.INS_SIGN_BATCH,
+                PkiAppletEngine.P1_PREHASHED | PkiAppletEngine.HASH_SHA256,
+                batch));
+        assertEquals(SW_WRONG_LENGTH, sw(response));
+        assertEquals(0, signatures);
+    }
+
+    // verifies the PIN with a grace of maxSignatures and resumes it in a
+    // new session
+    private void resumeWithGrace(int maxSignatures) {
+        PinGrace.getInstance().setPolicy(60 * 1000,
+                PinGrace.DEFAULT_LIFETIME_MILLIS, maxSignatures);
+        engine.setPinGrace(PinGrace.getInstance());
+        byte[] response = engine.process(command(
+                PkiAppletEngine.INS_VERIFY_PIN,
+                PkiAppletEngine.P1_REQUEST_GRACE, PIN));
+        assertEquals(SW_SUCCESS, sw(response));
+        assertEquals(PinGrace.TOKEN_LENGTH, response.length - 2);
+        byte[] token = Arrays.copyOf(response, PinGrace.TOKEN_LENGTH);
+
+        engine.reset();
+        engine.process(PkiAppletEngine.SELECT_PKI_APPLET_CMD);
+        response = engine.process(command(PkiAppletEngine.INS_VERIFY_PIN,
+                PkiAppletEngine.P1_RESUME_GRACE, token));
+        assertEquals(SW_SUCCESS, sw(response));
+    }
+
+    private static byte[] command(int ins, int p1, byte[] data) {
+        byte[] cmd = new byte[5 + data.length];
+        cmd[0] = PkiAppletEngine.PKI_APPLET_CLA;
+        cmd[1] = (byte) ins;
+        cmd[2] = (byte) p1;
+        cmd[4] = (byte) data.length;
+        System.arraycopy(data, 0, cmd, 5, data.length);
+
+        return cmd;
+    }
+
+    private static byte[] readBinary(int p1, int p2, int le) {
+        return new byte[] { 0x00, (byte) 0xB0, (byte) p1, (byte) p2,
+                (byte) le };
+    }
+
+    private static int sw(byte[] response) {
+        return ((response[response.length - 2] & 0xff) << 8)
+                | (response[response.length - 1] & 0xff);
+    }
+}
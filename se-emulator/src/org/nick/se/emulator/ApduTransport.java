@@ -0,0 +1,30 @@
+package org.nick.se.emulator;
+
+import java.io.IOException;
+
+/**
+ * Card side of the link to a reader. The card speaks second: each call
+ * sends the response to the previous command and returns the next one.
+ */
+public interface ApduTransport {
+
+    /**
+     * Sends <code>response</code> and waits for the next command.
+     *
+     * @return the next command, or <code>null</code> if the reader went away
+     */
+    byte[] transceive(byte[] response) throws IOException;
+
+    /**
+     * Largest APDU the link can carry, as negotiated with the reader.
+     */
+    int getMaxTransceiveLength();
+
+    boolean isConnected();
+
+    /**
+     * Ends the session. May be called from another thread, in which case a
+     * pending {@link #transceive(byte[])} must return or throw.
+     */
+    void close() throws IOException;
+}
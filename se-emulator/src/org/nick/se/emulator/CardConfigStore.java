@@ -0,0 +1,119 @@
+package org.nick.se.emulator;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Keeps a {@link CardConfig} snapshot of the card settings stored in the
+ * default shared preferences, and swaps it whenever they change. Also
+ * switches APDU tracing on and off and applies the {@link PinGrace} policy.
+ */
+public class CardConfigStore implements OnSharedPreferenceChangeListener {
+
+    private static final String TAG = CardConfigStore.class.getSimpleName();
+
+    public static final String PIN_KEY = "pin";
+    // slot 0, the other slots get a suffix
+    public static final String KEY_ALIAS_KEY = "key_alias";
+    public static final String APDU_TRACE_KEY = "apdu_trace";
+    // PIN grace policy, in seconds and signatures
+    public static final String PIN_GRACE_KEY = "pin_grace";
+    public static final String PIN_GRACE_LIFETIME_KEY = "pin_grace_lifetime";
+    public static final String PIN_GRACE_MAX_SIGNATURES_KEY = "pin_grace_max_signatures";
+
+    private final SharedPreferences prefs;
+
+    private volatile CardConfig config;
+
+    public CardConfigStore(Context ctx) {
+        prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        config = load(prefs);
+    }
+
+    /**
+     * Starts tracking preference changes. Preferences only keep a weak
+     * reference to listeners, so the caller needs to hold on to this object.
+     */
+    public void register() {
+        prefs.registerOnSharedPreferenceChangeListener(this);
+        config = load(prefs);
+        ApduTrace.getInstance().setEnabled(
+                prefs.getBoolean(APDU_TRACE_KEY, false));
+        applyPinGrace(prefs);
+    }
+
+    public void unregister() {
+        prefs.unregisterOnSharedPreferenceChangeListener(this);
+    }
+
+    public CardConfig get() {
+        return config;
+    }
+
+    /**
+     * Preference key holding the key alias of <code>slot</code>. Slot 0
+     * keeps the key used before there were slots.
+     */
+    public static String getAliasKey(int slot) {
+        return slot == 0 ? KEY_ALIAS_KEY : KEY_ALIAS_KEY + "_" + slot;
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+        if (key == null) {
+            // Editor.clear() on Android 11+, anything may have changed
+            config = load(prefs);
+            PinGrace.getInstance().revoke();
+            applyPinGrace(prefs);
+            ApduTrace.getInstance().setEnabled(
+                    prefs.getBoolean(APDU_TRACE_KEY, false));
+            Log.d(TAG, "Card configuration reloaded");
+        } else if (PIN_KEY.equals(key) || key.startsWith(KEY_ALIAS_KEY)) {
+            config = load(prefs);
+            if (PIN_KEY.equals(key)) {
+                // the old PIN shouldn't keep working
+                PinGrace.getInstance().revoke();
+            }
+            Log.d(TAG, "Card configuration reloaded");
+        } else if (key.startsWith(PIN_GRACE_KEY)) {
+            applyPinGrace(prefs);
+        } else if (APDU_TRACE_KEY.equals(key)) {
+            ApduTrace.getInstance().setEnabled(
+                    prefs.getBoolean(APDU_TRACE_KEY, false));
+        }
+    }
+
+    private static void applyPinGrace(SharedPreferences prefs) {
+        PinGrace.getInstance().setPolicy(
+                prefs.getInt(PIN_GRACE_KEY, 0) * 1000L,
+                prefs.getInt(PIN_GRACE_LIFETIME_KEY,
+                        (int) (PinGrace.DEFAULT_LIFETIME_MILLIS / 1000)) * 1000L,
+                prefs.getInt(PIN_GRACE_MAX_SIGNATURES_KEY,
+                        PinGrace.DEFAULT_MAX_SIGNATURES));
+        Log.d(TAG, PinGrace.getInstance().format());
+    }
+
+    private static CardConfig load(SharedPreferences prefs) {
+        String[] aliases = new String[PkiAppletEngine.SLOT_COUNT];
+        for (int slot = 0; slot < aliases.length; slot++) {
+            aliases[slot] = prefs.getString(getAliasKey(slot), null);
+        }
+        String protectedPin = prefs.getString(PIN_KEY, null);
+        if (protectedPin == null) {
+            return new CardConfig(aliases, null);
+        }
+
+        try {
+            return new CardConfig(aliases,
+                    Crypto.parseProtectedPassword(protectedPin));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid stored PIN: " + e.getMessage(), e);
+
+            return new CardConfig(aliases, null);
+        }
+    }
+
+}
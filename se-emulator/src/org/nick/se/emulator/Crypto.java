@@ -1,104 +1,127 @@
-package org.nick.se.emulator;
-
-import java.security.GeneralSecurityException;
-import java.security.PrivateKey;
-import java.security.SecureRandom;
-import java.security.Signature;
-import java.security.spec.KeySpec;
-import java.util.Arrays;
-
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
-
-import android.util.Base64;
-
-public class Crypto {
-
-    public static final String PBKDF2_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA1";
-
-    private static String DELIMITER = "]";
-
-    // SHA-1 output length
-    private static int KEY_LENGTH = 160;
-    private static int ITERATION_COUNT = 5000;
-    private static final int PKCS5_SALT_LENGTH = 8;
-
-    private static SecureRandom random = new SecureRandom();
-
-    private Crypto() {
-    }
-
-    public static String protectPassword(String password) {
-        byte[] salt = generateSalt();
-        byte[] keyBytes = pbkdf2(password, salt);
-
-        return String.format("%s%s%s", toBase64(salt), DELIMITER,
-                toBase64(keyBytes));
-    }
-
-    private static byte[] pbkdf2(String password, byte[] salt) {
-        try {
-            KeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt,
-                    ITERATION_COUNT, KEY_LENGTH);
-            SecretKeyFactory keyFactory = SecretKeyFactory
-                    .getInstance(PBKDF2_DERIVATION_ALGORITHM);
-
-            return keyFactory.generateSecret(keySpec).getEncoded();
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    public static boolean checkPassword(String protectedPassword,
-            String password) {
-        String[] fields = protectedPassword.split(DELIMITER);
-        if (fields.length != 2) {
-            throw new IllegalArgumentException(
-                    "Invalid protected password format");
-        }
-
-        byte[] salt = fromBase64(fields[0]);
-        byte[] keyBytes = fromBase64(fields[1]);
-
-        byte[] derivedKeyBytes = pbkdf2(password, salt);
-
-        return Arrays.equals(keyBytes, derivedKeyBytes);
-    }
-
-    public static byte[] generateSalt() {
-        byte[] salt = new byte[PKCS5_SALT_LENGTH];
-        random.nextBytes(salt);
-
-        return salt;
-    }
-
-    public static byte[] sign(PrivateKey privateKey, byte[] signedData) {
-        try {
-            Signature sig = Signature.getInstance("SHA1withRSA");
-            sig.initSign(privateKey);
-            sig.update(signedData);
-
-            return sig.sign();
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    public static String toHex(byte[] bytes) {
-        StringBuffer buff = new StringBuffer();
-        for (byte b : bytes) {
-            buff.append(String.format("%02X", b));
-        }
-
-        return buff.toString();
-    }
-
-    public static String toBase64(byte[] bytes) {
-        return Base64.encodeToString(bytes, Base64.NO_WRAP);
-    }
-
-    public static byte[] fromBase64(String base64) {
-        return Base64.decode(base64, Base64.NO_WRAP);
-    }
-
-}
+package org.nick.se.emulator;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+
+import android.util.Base64;
+
+public class Crypto {
+
+    private static String DELIMITER = "]";
+    private static final String VERIFIER_FORMAT_VERSION = "2";
+
+    // SHA-1 output length
+    private static int KEY_LENGTH = 160;
+    private static final int PKCS5_SALT_LENGTH = 8;
+
+    // how long a single PIN verification should take
+    private static final long TARGET_VERIFY_MILLIS = 100;
+
+    private static SecureRandom random = new SecureRandom();
+
+    private Crypto() {
+    }
+
+    /**
+     * Returns a versioned verifier string for <code>password</code>:
+     * <code>2]algorithm]iterations]salt]hash</code>, with the iteration count
+     * calibrated for this device. Calibrated on each call (setting a PIN is
+     * rare), so that a slow run, e.g. right after a cold start, doesn't fix
+     * the cost of every later PIN.
+     */
+    public static String protectPassword(String password) {
+        byte[] salt = generateSalt();
+        int iterations = PinVerifier.calibrate(PinVerifier.HMAC_SHA1,
+                TARGET_VERIFY_MILLIS);
+        PinVerifier verifier = PinVerifier.create(PinVerifier.HMAC_SHA1,
+                iterations, salt, asciiBytes(password), KEY_LENGTH / 8);
+
+        return String.format("%s%s%s%s%d%s%s%s%s", VERIFIER_FORMAT_VERSION,
+                DELIMITER, verifier.getMacAlgorithm(), DELIMITER,
+                verifier.getIterations(), DELIMITER, toBase64(salt),
+                DELIMITER, toBase64(verifier.getVerifier()));
+    }
+
+    public static boolean checkPassword(String protectedPassword,
+            String password) {
+        byte[] pin = asciiBytes(password);
+
+        return parseProtectedPassword(protectedPassword).verify(pin, 0,
+                pin.length);
+    }
+
+    /**
+     * Parses both the versioned verifier format and the legacy
+     * <code>salt]hash</code> one.
+     */
+    public static PinVerifier parseProtectedPassword(String protectedPassword) {
+        String[] fields = protectedPassword.split(DELIMITER);
+        if (fields.length == 2) {
+            return new PinVerifier(PinVerifier.HMAC_SHA1,
+                    PinVerifier.LEGACY_ITERATIONS, fromBase64(fields[0]),
+                    fromBase64(fields[1]));
+        }
+
+        if (fields.length != 5 || !VERIFIER_FORMAT_VERSION.equals(fields[0])) {
+            throw new IllegalArgumentException(
+                    "Invalid protected password format");
+        }
+
+        try {
+            return new PinVerifier(fields[1], Integer.parseInt(fields[2]),
+                    fromBase64(fields[3]), fromBase64(fields[4]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "Invalid protected password format", e);
+        }
+    }
+
+    private static byte[] asciiBytes(String str) {
+        try {
+            return str.getBytes("ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static byte[] generateSalt() {
+        byte[] salt = new byte[PKCS5_SALT_LENGTH];
+        random.nextBytes(salt);
+
+        return salt;
+    }
+
+    public static int sign(PrivateKey privateKey, String algorithm,
+            byte[] buff, int offset, int length, byte[] out, int outOffset) {
+        try {
+            Signature sig = SignatureCache.getSigner(algorithm, privateKey);
+            sig.update(buff, offset, length);
+
+            return sig.sign(out, outOffset, out.length - outOffset);
+        } catch (GeneralSecurityException e) {
+            SignatureCache.remove(algorithm);
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuffer buff = new StringBuffer();
+        for (byte b : bytes) {
+            buff.append(String.format("%02X", b));
+        }
+
+        return buff.toString();
+    }
+
+    public static String toBase64(byte[] bytes) {
+        return Base64.encodeToString(bytes, Base64.NO_WRAP);
+    }
+
+    public static byte[] fromBase64(String base64) {
+        return Base64.decode(base64, Base64.NO_WRAP);
+    }
+
+}
@@ -2,6 +2,9 @@ package org.nick.se.emulator;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.Arrays;
 import java.util.List;
 
@@ -11,21 +14,27 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.preference.PreferenceManager;
 import android.security.KeyChain;
 import android.security.KeyChainAliasCallback;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.Window;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -37,14 +46,43 @@ public class MainActivity extends Activity implements OnClickListener,
     private static final int INSTALL_KEY_CODE = 42;
     private static final String SE_KEY_NAME = "my_se_key";
 
+    private static final String APDU_TRACE_FILENAME = "apdu-trace.txt";
+
+    private static final String PENDING_SLOT_KEY = "pendingSlot";
+
+    private static final long METRICS_REFRESH_INTERVAL = 1000;
+
     private static final String TECH_ISO_PCDA = "android.nfc.tech.IsoPcdA";
 
     private TextView statusText;
+    private Spinner keySlotSpinner;
     private EditText pkcs12FilenameText;
     private Button installPkcs12Button;
+    private Button chooseKeyButton;
+    private Button clearSlotButton;
     private EditText pinText;
     private Button setPinButton;
+    private EditText pinGraceText;
+    private EditText pinGraceLifetimeText;
+    private EditText pinGraceSignaturesText;
+    private Button setPinGraceButton;
+    private Button revokePinGraceButton;
     private TextView message;
+    private TextView slotsText;
+    private TextView metricsText;
+
+    // slot the key being installed or chosen goes to. Saved with the
+    // instance state, the activity may be recreated while KeyChain runs.
+    private int pendingSlot;
+
+    private final Handler handler = new Handler();
+    private final Runnable metricsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            updateMetrics();
+            handler.postDelayed(this, METRICS_REFRESH_INTERVAL);
+        }
+    };
 
     private NfcAdapter adapter;
 
@@ -53,6 +91,9 @@ public class MainActivity extends Activity implements OnClickListener,
     private String[][] techLists;
 
     private PkiApplet pkiApplet;
+
+    // serves the applet to remote readers over TCP when not null
+    private volatile ServerSocket tcpServer;
     private WakeLock wakeLock;
 
     private PowerManager powerManager;
@@ -61,6 +102,9 @@ public class MainActivity extends Activity implements OnClickListener,
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (savedInstanceState != null) {
+            pendingSlot = savedInstanceState.getInt(PENDING_SLOT_KEY);
+        }
 
         requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
 
@@ -71,13 +115,28 @@ public class MainActivity extends Activity implements OnClickListener,
         powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
 
         statusText = (TextView) findViewById(R.id.status_text);
+        keySlotSpinner = (Spinner) findViewById(R.id.key_slot_spinner);
         pkcs12FilenameText = (EditText) findViewById(R.id.pkcs12FilenameText);
         installPkcs12Button = (Button) findViewById(R.id.install_pkcs12_button);
         installPkcs12Button.setOnClickListener(this);
+        chooseKeyButton = (Button) findViewById(R.id.choose_key_button);
+        chooseKeyButton.setOnClickListener(this);
+        clearSlotButton = (Button) findViewById(R.id.clear_slot_button);
+        clearSlotButton.setOnClickListener(this);
         pinText = (EditText) findViewById(R.id.pin_text);
         setPinButton = (Button) findViewById(R.id.set_pin_button);
         setPinButton.setOnClickListener(this);
+        pinGraceText = (EditText) findViewById(R.id.pin_grace_text);
+        pinGraceLifetimeText = (EditText) findViewById(R.id.pin_grace_lifetime_text);
+        pinGraceSignaturesText = (EditText) findViewById(R.id.pin_grace_signatures_text);
+        setPinGraceButton = (Button) findViewById(R.id.set_pin_grace_button);
+        setPinGraceButton.setOnClickListener(this);
+        revokePinGraceButton = (Button) findViewById(R.id.revoke_pin_grace_button);
+        revokePinGraceButton.setOnClickListener(this);
+        showPinGrace();
         message = (TextView) findViewById(R.id.message);
+        slotsText = (TextView) findViewById(R.id.slots_text);
+        metricsText = (TextView) findViewById(R.id.metrics_text);
 
         adapter = NfcAdapter.getDefaultAdapter(this);
         adapter.setNdefPushMessage(null, this);
@@ -92,9 +151,7 @@ public class MainActivity extends Activity implements OnClickListener,
         techLists = new String[][] { { "android.nfc.tech.IsoPcdA" } };
 
         pkiApplet = new PkiApplet(this);
-        statusText
-                .setText(pkiApplet.isInitialized() ? R.string.applet_initialized
-                        : R.string.applet_not_initialized);
+        updateStatus();
 
         Intent intent = getIntent();
         String action = intent.getAction();
@@ -107,6 +164,12 @@ public class MainActivity extends Activity implements OnClickListener,
 
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(PENDING_SLOT_KEY, pendingSlot);
+    }
+
     @Override
     public void onResume() {
         Log.d(TAG, "onResume()");
@@ -121,19 +184,22 @@ public class MainActivity extends Activity implements OnClickListener,
             adapter.enableForegroundDispatch(this, pendingIntent, filters,
                     techLists);
         }
+
+        handler.post(metricsUpdater);
     }
 
     @Override
     public void onPause() {
         Log.d(TAG, "onPause()");
         super.onPause();
+        handler.removeCallbacks(metricsUpdater);
         if (adapter != null) {
             Log.d(TAG, "disabling foreground dispatch");
             adapter.disableForegroundDispatch(this);
         }
 
-        // we don't try to stop the applet thread here, because it is blocked
-        // on I/O and there is really no way to interrupt it
+        // the current session keeps going, if the reader is gone the
+        // watchdog closes it
 
         if (wakeLock != null) {
             wakeLock.release();
@@ -144,8 +210,9 @@ public class MainActivity extends Activity implements OnClickListener,
     public void onDestroy() {
         Log.d(TAG, "onDestroy()");
         super.onDestroy();
+        stopTcpListener();
         if (pkiApplet != null) {
-            pkiApplet.stop();
+            pkiApplet.destroy();
         }
     }
 
@@ -190,38 +257,173 @@ public class MainActivity extends Activity implements OnClickListener,
 
             message.append("Max length: " + tw.getMaxTransceiveLength());
             message.append("\n");
-            message.append("Staring PKI applet thread...");
-
-            // stop and start a fresh thread for each new connection
-            // shouldn't be needed since onNewIntent() is called only
-            // after we enter the reader field again, and exiting it
-            // should kill the previous thread
-            if (pkiApplet != null) {
-                Log.d(TAG, "Applet running: " + pkiApplet.isRunning());
-                if (pkiApplet.isRunning()) {
-                    Log.d(TAG, "Applet thread alredy running, stopping");
-                    pkiApplet.stop();
-                }
-            }
+            message.append("Starting PKI applet session...");
+
+            // closes the previous session if the worker is still stuck on
+            // the old tag
+            Log.d(TAG, "Applet state: " + pkiApplet.getState());
             pkiApplet.start(tw);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main, menu);
+
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.action_trace).setChecked(
+                PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
+                        CardConfigStore.APDU_TRACE_KEY, false));
+        menu.findItem(R.id.action_tcp_listen).setChecked(tcpServer != null);
+
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+        case R.id.action_trace:
+            boolean trace = !item.isChecked();
+            PreferenceManager.getDefaultSharedPreferences(this).edit()
+                    .putBoolean(CardConfigStore.APDU_TRACE_KEY, trace).commit();
+            item.setChecked(trace);
+            return true;
+        case R.id.action_dump_trace:
+            dumpTrace();
+            return true;
+        case R.id.action_reset_metrics:
+            PkiMetrics.getInstance().reset();
+            updateMetrics();
+            return true;
+        case R.id.action_tcp_listen:
+            if (tcpServer == null) {
+                startTcpListener();
+            } else {
+                stopTcpListener();
+            }
+            return true;
+        default:
+            return super.onOptionsItemSelected(item);
+        }
+    }
+
+    private void startTcpListener() {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ServerSocket server = new ServerSocket(
+                            TcpTransport.DEFAULT_PORT);
+                    tcpServer = server;
+                    Log.d(TAG, "Listening on TCP port "
+                            + TcpTransport.DEFAULT_PORT);
+                    while (true) {
+                        Socket socket = server.accept();
+                        Log.d(TAG, "Reader connected from "
+                                + socket.getRemoteSocketAddress());
+                        // a new connection is a new tap
+                        pkiApplet.start(new TcpTransport(socket));
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, "TCP listener stopped: " + e.getMessage());
+                }
+                tcpServer = null;
+            }
+        });
+        t.setName("PKI applet TCP listener");
+        t.start();
+    }
+
+    private void stopTcpListener() {
+        ServerSocket server = tcpServer;
+        if (server == null) {
+            return;
+        }
+        tcpServer = null;
+        try {
+            server.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing TCP listener: " + e.getMessage(), e);
+        }
+    }
+
+    private void updateStatus() {
+        statusText
+                .setText(pkiApplet.isInitialized() ? R.string.applet_initialized
+                        : R.string.applet_not_initialized);
+
+        StringBuilder sb = new StringBuilder("Key slots:\n");
+        for (int slot = 0; slot < PkiAppletEngine.SLOT_COUNT; slot++) {
+            String alias = pkiApplet.getAlias(slot);
+            sb.append(String.format("  %d %-15s %s\n", slot,
+                    PkiAppletEngine.SLOT_NAMES[slot], alias == null ? "-"
+                            : alias));
+        }
+        slotsText.setText(sb.toString());
+    }
+
+    private void showPinGrace() {
+        SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(this);
+        pinGraceText.setText(String.valueOf(prefs.getInt(
+                CardConfigStore.PIN_GRACE_KEY, 0)));
+        pinGraceLifetimeText.setText(String.valueOf(prefs.getInt(
+                CardConfigStore.PIN_GRACE_LIFETIME_KEY,
+                (int) (PinGrace.DEFAULT_LIFETIME_MILLIS / 1000))));
+        pinGraceSignaturesText.setText(String.valueOf(prefs.getInt(
+                CardConfigStore.PIN_GRACE_MAX_SIGNATURES_KEY,
+                PinGrace.DEFAULT_MAX_SIGNATURES)));
+    }
+
+    private void updateMetrics() {
+        metricsText.setText(PinGrace.getInstance().format() + "\n"
+                + "Session: " + pkiApplet.getState() + "\n"
+                + PkiMetrics.getInstance().format());
+    }
+
+    private void dumpTrace() {
+        File f = new File(Environment.getExternalStorageDirectory(),
+                APDU_TRACE_FILENAME);
+        try {
+            int count = ApduTrace.getInstance().dump(f);
+            Toast.makeText(this,
+                    String.format("Wrote %d APDUs to %s", count, f),
+                    Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Error dumping APDU trace: " + e.getMessage(), e);
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+    }
+
     @Override
     public void onClick(View v) {
         try {
             switch (v.getId()) {
             case R.id.install_pkcs12_button:
+                pendingSlot = keySlotSpinner.getSelectedItemPosition();
                 String pkcs12Filename = pkcs12FilenameText.getText().toString()
                         .trim();
                 Intent intent = KeyChain.createInstallIntent();
                 byte[] p12 = readFile(pkcs12Filename);
                 intent.putExtra(KeyChain.EXTRA_PKCS12, p12);
-                intent.putExtra(KeyChain.EXTRA_NAME, SE_KEY_NAME);
+                intent.putExtra(KeyChain.EXTRA_NAME, getKeyName(pendingSlot));
                 startActivityForResult(intent, INSTALL_KEY_CODE);
                 break;
+            case R.id.choose_key_button:
+                pendingSlot = keySlotSpinner.getSelectedItemPosition();
+                chooseKey();
+                break;
+            case R.id.clear_slot_button:
+                pkiApplet.setAlias(keySlotSpinner.getSelectedItemPosition(),
+                        null);
+                updateStatus();
+                break;
             case R.id.set_pin_button:
                 String pin = pinText.getText().toString().trim();
                 if (pin != null && pin.length() != 0) {
@@ -234,6 +436,35 @@ public class MainActivity extends Activity implements OnClickListener,
                             Toast.LENGTH_SHORT).show();
                 }
                 break;
+            case R.id.set_pin_grace_button:
+                String grace = pinGraceText.getText().toString().trim();
+                String lifetime = pinGraceLifetimeText.getText().toString()
+                        .trim();
+                String signatures = pinGraceSignaturesText.getText()
+                        .toString().trim();
+                if (grace.length() != 0 && lifetime.length() != 0
+                        && signatures.length() != 0) {
+                    int graceSeconds = Integer.parseInt(grace);
+                    int lifetimeSeconds = Integer.parseInt(lifetime);
+                    int maxSignatures = Integer.parseInt(signatures);
+                    pkiApplet.setPinGrace(graceSeconds, lifetimeSeconds,
+                            maxSignatures);
+                    Toast.makeText(this,
+                            graceSeconds == 0 ? "PIN grace off"
+                                    : "PIN grace set", Toast.LENGTH_SHORT)
+                            .show();
+                } else {
+                    Toast.makeText(this,
+                            "Enter grace period, lifetime and signatures",
+                            Toast.LENGTH_SHORT).show();
+                }
+                break;
+            case R.id.revoke_pin_grace_button:
+                pkiApplet.revokePinGrace();
+                updateMetrics();
+                Toast.makeText(this, "PIN grace revoked", Toast.LENGTH_SHORT)
+                        .show();
+                break;
             default:
                 //
             }
@@ -255,8 +486,14 @@ public class MainActivity extends Activity implements OnClickListener,
     }
 
     private void chooseKey() {
-        KeyChain.choosePrivateKeyAlias(this, this, new String[] { "RSA" },
-                null, null, -1, SE_KEY_NAME);
+        String alias = pkiApplet.getAlias(pendingSlot);
+        KeyChain.choosePrivateKeyAlias(this, this,
+                new String[] { "RSA", "EC" }, null, null, -1,
+                alias != null ? alias : getKeyName(pendingSlot));
+    }
+
+    private static String getKeyName(int slot) {
+        return SE_KEY_NAME + "_" + PkiAppletEngine.SLOT_NAMES[slot];
     }
 
     private static byte[] readFile(String filename) throws Exception {
@@ -271,8 +508,20 @@ public class MainActivity extends Activity implements OnClickListener,
 
     @Override
     public void alias(final String alias) {
-        Log.d(TAG, "selected alias: " + alias);
-        pkiApplet.setAlias(alias);
+        Log.d(TAG, "selected alias for slot " + pendingSlot + ": " + alias);
+        // cancelled, keep the current key
+        if (alias == null) {
+            return;
+        }
+        pkiApplet.setAlias(pendingSlot, alias);
+        KeyHandleCache.getInstance().warm(this, pendingSlot, alias);
+        // not called on the main thread
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                updateStatus();
+            }
+        });
     }
 
 }
@@ -1,265 +1,445 @@
-package org.nick.se.emulator;
-
-import static org.nick.se.emulator.ISO7816.CLA_ISO7816;
-import static org.nick.se.emulator.ISO7816.FILE_NOT_FOUND;
-import static org.nick.se.emulator.ISO7816.INS_SELECT;
-import static org.nick.se.emulator.ISO7816.OFFSET_CDATA;
-import static org.nick.se.emulator.ISO7816.OFFSET_CLA;
-import static org.nick.se.emulator.ISO7816.OFFSET_INS;
-import static org.nick.se.emulator.ISO7816.OFFSET_LC;
-import static org.nick.se.emulator.ISO7816.SW_CLA_NOT_SUPPORTED;
-import static org.nick.se.emulator.ISO7816.SW_CONDITIONS_NOT_SATISFIED;
-import static org.nick.se.emulator.ISO7816.SW_INS_NOT_SUPPORTED;
-import static org.nick.se.emulator.ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED;
-import static org.nick.se.emulator.ISO7816.SW_SUCCESS;
-import static org.nick.se.emulator.ISO7816.SW_UNKNOWN;
-import static org.nick.se.emulator.ISO7816.SW_WRONG_LENGTH;
-
-import java.io.IOException;
-import java.security.PrivateKey;
-import java.util.Arrays;
-
-import android.content.Context;
-import android.preference.PreferenceManager;
-import android.security.KeyChain;
-import android.util.Log;
-
-public class PkiApplet {
-
-    private static final String TAG = PkiApplet.class.getSimpleName();
-
-    private static final String PIN_KEY = "pin";
-    private static final String KEY_ALIAS_KEY = "key_alias";
-
-    private static final byte[] SELECT_PKI_APPLET_CMD = { 0x00, (byte) 0xA4,
-            0x04, 0x00, 0x06, (byte) 0xA0, 0x00, 0x00, 0x00, 0x01, 0x01, 0x01 };
-
-    // applet commands
-    private final static byte PKI_APPLET_CLA = (byte) 0x80;
-    private final static byte INS_VERIFY_PIN = (byte) 0x01;
-    private final static byte INS_SIGN_DATA = (byte) 0x02;
-
-    private Context ctx;
-    private TagWrapper tag;
-
-    private boolean selected = false;
-    private boolean authenticated = false;
-
-    private volatile boolean isRunning = false;
-
-    private Thread appletThread;
-
-    public PkiApplet(Context ctx) {
-        this.ctx = ctx;
-    }
-
-    public void start(TagWrapper tag) throws IOException {
-        this.tag = tag;
-
-        Runnable r = new Runnable() {
-            public void run() {
-                try {
-                    // send dummy data to get first command APDU
-                    // at least two bytes to keep smartcardio happy
-                    byte[] cmd = transceive(new byte[] { (byte) 0x90, 0x00 });
-                    do {
-                        if (!selected) {
-                            if (Arrays.equals(cmd, SELECT_PKI_APPLET_CMD)) {
-                                selected = true;
-                                Log.d(TAG, "SELECT success");
-                                cmd = transceive(toBytes(SW_SUCCESS));
-                            } else {
-                                if (cmd[OFFSET_CLA] == CLA_ISO7816
-                                        && cmd[OFFSET_INS] == INS_SELECT) {
-                                    Log.e(TAG,
-                                            "Invalid AID: " + Crypto.toHex(cmd));
-                                    cmd = transceive(toBytes(FILE_NOT_FOUND));
-                                } else {
-                                    Log.e(TAG,
-                                            "First command must be a SELECT: "
-                                                    + Crypto.toHex(cmd));
-                                    cmd = transceive(toBytes(SW_UNKNOWN));
-                                }
-                                break;
-                            }
-                        } else {
-                            if (Arrays.equals(cmd, SELECT_PKI_APPLET_CMD)) {
-                                cmd = transceive(toBytes(SW_SUCCESS));
-                            }
-                        }
-
-                        if (!isInitialized()) {
-                            Log.e(TAG, "Applet not initialized");
-                            cmd = transceive(toBytes(SW_CONDITIONS_NOT_SATISFIED));
-                            break;
-                        }
-
-                        if (cmd[OFFSET_CLA] != PKI_APPLET_CLA) {
-                            Log.e(TAG,
-                                    "Unsupported command class: "
-                                            + Crypto.toHex(cmd));
-                            cmd = transceive(toBytes(SW_CLA_NOT_SUPPORTED));
-                            break;
-                        }
-
-                        if (cmd[OFFSET_INS] != INS_VERIFY_PIN
-                                && cmd[OFFSET_INS] != INS_SIGN_DATA) {
-                            Log.e(TAG,
-                                    "Unsupported instruction: "
-                                            + Crypto.toHex(cmd));
-                            cmd = transceive(toBytes(SW_INS_NOT_SUPPORTED));
-                            break;
-                        }
-
-                        byte ins = cmd[OFFSET_INS];
-                        switch (ins) {
-                        case INS_VERIFY_PIN:
-                            if (cmd.length < 5) {
-                                Log.e(TAG, "Expecting command with data: "
-                                        + Crypto.toHex(cmd));
-                                cmd = transceive(toBytes(SW_WRONG_LENGTH));
-                                break;
-                            }
-
-                            int dataLen = cmd[OFFSET_LC];
-                            byte[] pinData = Arrays.copyOfRange(cmd,
-                                    OFFSET_CDATA, OFFSET_CDATA + dataLen);
-                            String pin = new String(pinData, "ASCII");
-                            if (Crypto.checkPassword(getPin(), pin)) {
-                                Log.d(TAG, "VERIFY PIN success");
-                                cmd = transceive(toBytes(SW_SUCCESS));
-                                authenticated = true;
-                            } else {
-                                Log.w(TAG, "Invalid PIN");
-                                cmd = transceive(toBytes(SW_SECURITY_STATUS_NOT_SATISFIED));
-                            }
-                            break;
-                        case INS_SIGN_DATA:
-                            if (cmd.length < 5) {
-                                Log.e(TAG, "Expecting command with data: "
-                                        + Crypto.toHex(cmd));
-                                cmd = transceive(toBytes(SW_WRONG_LENGTH));
-                                break;
-                            }
-                            if (!authenticated) {
-                                Log.w(TAG, "Need to authenticate first");
-                                cmd = transceive(toBytes(SW_SECURITY_STATUS_NOT_SATISFIED));
-                                break;
-                            }
-
-                            dataLen = cmd[OFFSET_LC];
-                            byte[] signedData = Arrays.copyOfRange(cmd,
-                                    OFFSET_CDATA, OFFSET_CDATA + dataLen);
-                            try {
-                                PrivateKey pk = KeyChain.getPrivateKey(ctx,
-                                        getAlias());
-                                byte[] signature = Crypto.sign(pk, signedData);
-
-                                byte[] response = new byte[signature.length + 2];
-                                System.arraycopy(signature, 0, response, 0,
-                                        signature.length);
-                                System.arraycopy(toBytes(SW_SUCCESS), 0,
-                                        response, signature.length, 2);
-                                Log.d(TAG, "SIGN DATA success");
-                                cmd = transceive(response);
-                            } catch (Exception e) {
-                                Log.d(TAG, "Error: " + e.getMessage(), e);
-                                cmd = transceive(toBytes(SW_UNKNOWN));
-                            }
-                            break;
-                        }
-                    } while (cmd != null && !Thread.interrupted());
-                } catch (Exception e) {
-                    Log.e(TAG, "SE error: " + e.getMessage(), e);
-                    Log.d(TAG, String.format("Stopping applet thread '%s'",
-                            appletThread.getName()));
-                    resetState();
-                    // a bit more explicit
-                    isRunning = false;
-                    return;
-                }
-                // if interrupted
-                isRunning = false;
-            }
-        };
-
-        appletThread = new Thread(r);
-        appletThread.setName("PKI applet thread#" + appletThread.getId());
-        appletThread.start();
-        isRunning = true;
-        Log.d(TAG,
-                String.format("Started applet thread '%s'",
-                        appletThread.getName()));
-    }
-
-    public boolean isRunning() {
-        return isRunning;
-    }
-
-    public synchronized void stop() {
-        Log.d(TAG, "stopping applet thread");
-        if (appletThread != null) {
-            appletThread.interrupt();
-            Log.d(TAG, "applet thread running: " + isRunning);
-        }
-
-        Log.d(TAG, "Resetting applet state");
-        resetState();
-    }
-
-    private byte[] transceive(byte[] cmd) throws IOException {
-        Log.d(TAG,
-                String.format("[%s] --> %s", appletThread.getName(),
-                        Crypto.toHex(cmd)));
-        byte[] response = tag.transceive(cmd);
-        Log.d(TAG,
-                String.format("[%s] <-- %s", appletThread.getName(),
-                        Crypto.toHex(response)));
-
-        return response;
-    }
-
-    public String getAlias() {
-        return PreferenceManager.getDefaultSharedPreferences(ctx).getString(
-                KEY_ALIAS_KEY, null);
-    }
-
-    public void setAlias(String alias) {
-        PreferenceManager.getDefaultSharedPreferences(ctx).edit()
-                .putString(KEY_ALIAS_KEY, alias).commit();
-    }
-
-    public String getPin() {
-        return PreferenceManager.getDefaultSharedPreferences(ctx).getString(
-                PIN_KEY, null);
-    }
-
-    public void setPin(String pin) {
-        String protectedPin = Crypto.protectPassword(pin);
-        PreferenceManager.getDefaultSharedPreferences(ctx).edit()
-                .putString(PIN_KEY, protectedPin).commit();
-    }
-
-    private static byte[] toBytes(short s) {
-        return new byte[] { (byte) ((s & 0xff00) >> 8), (byte) (s & 0xff) };
-    }
-
-    public boolean isInitialized() {
-        return getAlias() != null && getPin() != null;
-    }
-
-    private void resetState() {
-        selected = false;
-        authenticated = false;
-        if (tag != null) {
-            try {
-                if (tag.isConnected()) {
-                    tag.close();
-                }
-                tag = null;
-            } catch (IOException e) {
-                Log.w(TAG, "Error closing tag: " + e.getMessage(), e);
-            }
-        }
-    }
-}
+package org.nick.se.emulator;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import android.security.KeyChainException;
+import android.util.Log;
+
+/**
+ * Serves reader sessions one at a time on a single long-lived worker thread.
+ * Each tag or connection handed to {@link #start(ApduTransport)} is a
+ * session; starting a new one closes the previous transport, which unblocks
+ * the worker if it is still waiting for a command that will never come.
+ * A watchdog closes the transport if the reader doesn't answer within
+ * {@link #IO_TIMEOUT_MILLIS}.
+ */
+public class PkiApplet implements PkiAppletEngine.Backend {
+
+    private static final String TAG = PkiApplet.class.getSimpleName();
+
+    public enum State {
+        IDLE, SELECTED, AUTHENTICATED, CLOSING
+    }
+
+    public static final long IO_TIMEOUT_MILLIS = 10 * 1000;
+
+    private static final long WATCHDOG_PERIOD_MILLIS = 1000;
+
+    private Context ctx;
+
+    private final CardConfigStore configStore;
+
+    // multi-part signatures
+    private Signature streamSigner;
+    // what streamSigner was created for
+    private String streamAlgorithm;
+
+    private final PkiAppletEngine engine = new PkiAppletEngine(this);
+
+    private final ApduTrace trace = ApduTrace.getInstance();
+
+    private final PkiMetrics metrics = PkiMetrics.getInstance();
+
+    private final BlockingQueue<ApduTransport> pendingSessions = new LinkedBlockingQueue<ApduTransport>();
+
+    private final Thread worker;
+
+    private final ScheduledExecutorService watchdog;
+
+    // set and cleared by the worker
+    private volatile ApduTransport transport;
+    private volatile State state = State.IDLE;
+    // deactivation reason to report when the session is closed from outside
+    private volatile int closeReason;
+    // when the worker started waiting for the reader, 0 if it isn't
+    private volatile long ioStart;
+
+    public PkiApplet(Context ctx) {
+        this.ctx = ctx;
+        configStore = new CardConfigStore(ctx);
+        configStore.register();
+        engine.setPinGrace(PinGrace.getInstance());
+        for (int slot = 0; slot < PkiAppletEngine.SLOT_COUNT; slot++) {
+            KeyHandleCache.getInstance().warm(ctx, slot, getAlias(slot));
+        }
+
+        worker = new Thread(new Runnable() {
+            public void run() {
+                serveSessions();
+            }
+        });
+        worker.setName("PKI applet worker");
+        worker.start();
+
+        watchdog = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setName("PKI applet watchdog");
+                        t.setDaemon(true);
+
+                        return t;
+                    }
+                });
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                checkTimeout();
+            }
+        }, WATCHDOG_PERIOD_MILLIS, WATCHDOG_PERIOD_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy() {
+        stop();
+        worker.interrupt();
+        watchdog.shutdownNow();
+        configStore.unregister();
+    }
+
+    /**
+     * Queues a session on <code>transport</code>, closing the current one,
+     * if any.
+     */
+    public void start(ApduTransport transport) {
+        // only the newest tag is still in the field
+        List<ApduTransport> stale = new ArrayList<ApduTransport>();
+        pendingSessions.drainTo(stale);
+        for (ApduTransport t : stale) {
+            closeQuietly(t);
+        }
+        closeSession(PkiMetrics.DEACTIVATION_DESELECTED);
+        pendingSessions.add(transport);
+    }
+
+    public boolean isRunning() {
+        return transport != null;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Closes the current session. The worker stays up for the next one.
+     */
+    public void stop() {
+        Log.d(TAG, "Stopping session, state: " + state);
+        closeSession(PkiMetrics.DEACTIVATION_DESELECTED);
+    }
+
+    private void serveSessions() {
+        // signers are cached per thread, and this one serves all sessions
+        warmSigner();
+        while (true) {
+            ApduTransport t;
+            try {
+                t = pendingSessions.take();
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Applet worker stopped");
+                return;
+            }
+            runSession(t);
+        }
+    }
+
+    private void runSession(ApduTransport t) {
+        long sessionStart = System.nanoTime();
+        closeReason = PkiMetrics.DEACTIVATION_DESELECTED;
+        state = State.IDLE;
+        transport = t;
+        int reason = PkiMetrics.DEACTIVATION_DESELECTED;
+        try {
+            // room for the status word
+            int maxTransceiveLength = t.getMaxTransceiveLength();
+            Log.d(TAG, "Max transceive length: " + maxTransceiveLength);
+            int maxResponseLength = maxTransceiveLength - 2;
+            engine.setMaxResponseLength(maxResponseLength > 0 ? Math.min(
+                    maxResponseLength,
+                    PkiAppletEngine.DEFAULT_MAX_RESPONSE_LENGTH)
+                    : PkiAppletEngine.DEFAULT_MAX_RESPONSE_LENGTH);
+
+            // send dummy data to get first command APDU
+            // at least two bytes to keep smartcardio happy
+            byte[] cmd = transceive(t, new byte[] { (byte) 0x90, 0x00 });
+            while (cmd != null) {
+                long start = System.nanoTime();
+                byte[] response = engine.process(cmd);
+                metrics.recordCommand(cmd, response, start);
+                if (engine.getLastError() != null) {
+                    Log.e(TAG, "Error: " + engine.getLastMessage(),
+                            engine.getLastError());
+                } else if (engine.getLastMessage() != null) {
+                    Log.d(TAG, engine.getLastMessage());
+                }
+                updateState();
+                cmd = transceive(t, response);
+            }
+            if (state == State.CLOSING) {
+                reason = closeReason;
+            } else {
+                Log.d(TAG, "Reader closed the link");
+            }
+        } catch (Exception e) {
+            if (state == State.CLOSING) {
+                // expected, we closed the transport under the worker
+                reason = closeReason;
+            } else {
+                Log.e(TAG, "SE error: " + e.getMessage(), e);
+                reason = PkiMetrics.DEACTIVATION_LINK_LOSS;
+            }
+        } finally {
+            state = State.CLOSING;
+            ioStart = 0;
+            closeQuietly(t);
+            engine.reset();
+            transport = null;
+            state = State.IDLE;
+            metrics.recordDeactivation(reason);
+            metrics.recordLatency(PkiMetrics.LATENCY_SESSION, sessionStart);
+            Log.d(TAG, "Session ended, reason: "
+                    + PkiMetrics.DEACTIVATION_NAMES[reason]);
+        }
+    }
+
+    private void warmSigner() {
+        try {
+            boolean warmed = false;
+            for (int slot = 0; slot < PkiAppletEngine.SLOT_COUNT; slot++) {
+                PrivateKey pk = KeyHandleCache.getInstance().getPrivateKey(
+                        ctx, slot, getAlias(slot));
+                if (pk != null) {
+                    warmSigner(pk.getAlgorithm(), pk);
+                    warmed = true;
+                }
+            }
+            if (!warmed) {
+                warmSigner(PkiAppletEngine.KEY_ALGORITHM_RSA, null);
+            }
+            Log.d(TAG, "Signer warmed up");
+        } catch (Exception e) {
+            Log.w(TAG, "Error warming up signer: " + e.getMessage(), e);
+        }
+    }
+
+    private static void warmSigner(String keyAlgorithm, PrivateKey pk) {
+        // every algorithm P1 can select, so switching never costs a
+        // provider lookup
+        for (String algorithm : PkiAppletEngine
+                .getSignatureAlgorithms(keyAlgorithm)) {
+            try {
+                SignatureCache.warm(algorithm, pk);
+            } catch (GeneralSecurityException e) {
+                Log.d(TAG, "Signature algorithm not available: " + algorithm);
+            }
+        }
+    }
+
+    private void updateState() {
+        if (state == State.CLOSING) {
+            return;
+        }
+        if (engine.isAuthenticated()) {
+            state = State.AUTHENTICATED;
+        } else if (engine.isSelected()) {
+            state = State.SELECTED;
+        } else {
+            state = State.IDLE;
+        }
+    }
+
+    // closing the transport is the only way to unblock a pending transceive()
+    private void closeSession(int reason) {
+        ApduTransport t = transport;
+        if (t == null) {
+            return;
+        }
+        closeReason = reason;
+        state = State.CLOSING;
+        closeQuietly(t);
+    }
+
+    private void checkTimeout() {
+        long started = ioStart;
+        if (started != 0
+                && System.nanoTime() - started > TimeUnit.MILLISECONDS
+                        .toNanos(IO_TIMEOUT_MILLIS)) {
+            Log.w(TAG, "Reader timed out, closing session");
+            closeSession(PkiMetrics.DEACTIVATION_LINK_LOSS);
+        }
+    }
+
+    private static void closeQuietly(ApduTransport t) {
+        try {
+            if (t.isConnected()) {
+                t.close();
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Error closing transport: " + e.getMessage(), e);
+        }
+    }
+
+    // we send responses and receive commands
+    private byte[] transceive(ApduTransport t, byte[] response)
+            throws IOException {
+        trace.record(ApduTrace.RESPONSE, response);
+        ioStart = System.nanoTime();
+        byte[] cmd;
+        try {
+            cmd = t.transceive(response);
+        } finally {
+            ioStart = 0;
+        }
+        trace.record(ApduTrace.COMMAND, cmd);
+
+        return cmd;
+    }
+
+    public String getAlias(int slot) {
+        return configStore.get().getAlias(slot);
+    }
+
+    /**
+     * Assigns the KeyChain key <code>alias</code> to <code>slot</code>, or
+     * empties the slot if <code>alias</code> is null. The cached handle for
+     * the slot is reloaded on the next use.
+     */
+    public void setAlias(int slot, String alias) {
+        PreferenceManager.getDefaultSharedPreferences(ctx).edit()
+                .putString(CardConfigStore.getAliasKey(slot), alias).commit();
+    }
+
+    public void setPin(String pin) {
+        String protectedPin = Crypto.protectPassword(pin);
+        PreferenceManager.getDefaultSharedPreferences(ctx).edit()
+                .putString(CardConfigStore.PIN_KEY, protectedPin).commit();
+        // also when the applet isn't listening for changes
+        PinGrace.getInstance().revoke();
+    }
+
+    /**
+     * Sets the PIN grace policy, see {@link PinGrace}. A
+     * <code>graceSeconds</code> of 0 disables it.
+     */
+    public void setPinGrace(int graceSeconds, int lifetimeSeconds,
+            int maxSignatures) {
+        PreferenceManager.getDefaultSharedPreferences(ctx).edit()
+                .putInt(CardConfigStore.PIN_GRACE_KEY, graceSeconds)
+                .putInt(CardConfigStore.PIN_GRACE_LIFETIME_KEY, lifetimeSeconds)
+                .putInt(CardConfigStore.PIN_GRACE_MAX_SIGNATURES_KEY,
+                        maxSignatures).commit();
+        PinGrace.getInstance().setPolicy(graceSeconds * 1000L,
+                lifetimeSeconds * 1000L, maxSignatures);
+    }
+
+    /**
+     * Ends the current PIN grace, the next session needs the PIN.
+     */
+    public void revokePinGrace() {
+        PinGrace.getInstance().revoke();
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return configStore.get().isInitialized();
+    }
+
+    @Override
+    public boolean verifyPin(byte[] buff, int offset, int length) {
+        PinVerifier pinVerifier = configStore.get().getPinVerifier();
+        if (pinVerifier == null) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        try {
+            return pinVerifier.verify(buff, offset, length);
+        } finally {
+            metrics.recordLatency(PkiMetrics.LATENCY_PIN_VERIFY, start);
+        }
+    }
+
+    @Override
+    public String getKeyAlgorithm(int slot) throws Exception {
+        // cached with the handle, so this is cheap
+        return KeyHandleCache.getInstance().getKeyAlgorithm(ctx, slot,
+                getAlias(slot));
+    }
+
+    @Override
+    public int sign(int slot, String algorithm, byte[] buff, int offset,
+            int length, byte[] out, int outOffset) throws Exception {
+        String alias = getAlias(slot);
+        PrivateKey pk = getPrivateKey(slot, alias);
+        long start = System.nanoTime();
+        try {
+            return Crypto.sign(pk, algorithm, buff, offset, length, out,
+                    outOffset);
+        } catch (RuntimeException e) {
+            // handle may be stale, reload on next try
+            KeyHandleCache.getInstance().invalidate(alias);
+            throw e;
+        } finally {
+            metrics.recordLatency(PkiMetrics.LATENCY_SIGN, start);
+        }
+    }
+
+    private PrivateKey getPrivateKey(int slot, String alias)
+            throws KeyChainException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            return KeyHandleCache.getInstance().getPrivateKey(ctx, slot,
+                    alias);
+        } finally {
+            metrics.recordLatency(PkiMetrics.LATENCY_KEY_RETRIEVAL, start);
+        }
+    }
+
+    @Override
+    public void signInit(int slot, String algorithm) throws Exception {
+        PrivateKey pk = getPrivateKey(slot, getAlias(slot));
+        // not shared with the cache, an aborted signature leaves data behind
+        if (streamSigner == null || !algorithm.equals(streamAlgorithm)) {
+            streamSigner = PkiAppletEngine.newSignature(algorithm);
+            streamAlgorithm = algorithm;
+        }
+        // also resets an unfinished signature
+        streamSigner.initSign(pk);
+    }
+
+    @Override
+    public byte[] getCertificateChain(int slot) throws Exception {
+        // the worker can wait for KeyChain
+        return KeyHandleCache.getInstance().getCertificateChain(ctx, slot,
+                getAlias(slot));
+    }
+
+    @Override
+    public void signUpdate(byte[] buff, int offset, int length)
+            throws Exception {
+        streamSigner.update(buff, offset, length);
+    }
+
+    @Override
+    public int signFinal(byte[] out, int outOffset) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return streamSigner.sign(out, outOffset, out.length - outOffset);
+        } finally {
+            metrics.recordLatency(PkiMetrics.LATENCY_SIGN, start);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.nick.se.emulator;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Always-on counters and latency histograms for the applet: commands per
+ * INS, responses per status word, time spent in PIN verification, key
+ * retrieval, signing and processing each APDU, how long each reader session
+ * lasted and why the reader went away. Recording is cheap (a lock and a
+ * few array updates, no allocation), so it doesn't need to be switched on.
+ * Read through {@link PkiMetricsProvider} or the status panel in the main
+ * activity.
+ */
+public class PkiMetrics {
+
+    public static final int LATENCY_APDU = 0;
+    public static final int LATENCY_PIN_VERIFY = 1;
+    public static final int LATENCY_KEY_RETRIEVAL = 2;
+    public static final int LATENCY_SIGN = 3;
+    // from the first command to deactivation
+    public static final int LATENCY_SESSION = 4;
+
+    public static final String[] LATENCY_NAMES = { "apdu", "pin_verify",
+            "key_retrieval", "sign", "session" };
+
+    // same values as HostApduService
+    public static final int DEACTIVATION_LINK_LOSS = 0;
+    public static final int DEACTIVATION_DESELECTED = 1;
+    public static final int DEACTIVATION_OTHER = 2;
+
+    public static final String[] DEACTIVATION_NAMES = { "link_loss",
+            "deselected", "other" };
+
+    // distinct status words tracked, the rest are counted as 'other'
+    private static final int MAX_STATUS_WORDS = 32;
+    private static final int SW_OTHER = -1;
+
+    private static final PkiMetrics instance = new PkiMetrics();
+
+    private final long[] instructions = new long[256];
+    private final int[] statusWords = new int[MAX_STATUS_WORDS];
+    private final long[] statusWordCounts = new long[MAX_STATUS_WORDS];
+    private int statusWordCount;
+    private long otherStatusWords;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[LATENCY_NAMES.length];
+    private final long[] deactivations = new long[DEACTIVATION_NAMES.length];
+
+    private long startTime = System.currentTimeMillis();
+
+    private PkiMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public static PkiMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Counts a processed command and its status word, and records the time
+     * since <code>startNanos</code> as APDU latency.
+     */
+    public void recordCommand(byte[] cmd, byte[] response, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        int ins = 0;
+        if (cmd != null && cmd.length > ISO7816.OFFSET_INS) {
+            ins = cmd[ISO7816.OFFSET_INS] & 0xff;
+        }
+        int sw = SW_OTHER;
+        if (response != null && response.length >= 2) {
+            sw = ((response[response.length - 2] & 0xff) << 8)
+                    | (response[response.length - 1] & 0xff);
+        }
+        synchronized (this) {
+            instructions[ins]++;
+            countStatusWord(sw);
+            latencies[LATENCY_APDU].record(TimeUnit.NANOSECONDS
+                    .toMicros(elapsed));
+        }
+    }
+
+    /**
+     * Records the time since <code>startNanos</code> in the
+     * <code>metric</code> histogram.
+     */
+    public void recordLatency(int metric, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        synchronized (this) {
+            latencies[metric].record(TimeUnit.NANOSECONDS.toMicros(elapsed));
+        }
+    }
+
+    public synchronized void recordDeactivation(int reason) {
+        if (reason < 0 || reason >= DEACTIVATION_OTHER) {
+            reason = DEACTIVATION_OTHER;
+        }
+        deactivations[reason]++;
+    }
+
+    /**
+     * Clears all metrics.
+     *
+     * @return the number of counters and histograms that weren't empty
+     */
+    public synchronized int reset() {
+        int cleared = 0;
+        for (int i = 0; i < instructions.length; i++) {
+            if (instructions[i] > 0) {
+                cleared++;
+            }
+            instructions[i] = 0;
+        }
+        cleared += statusWordCount;
+        statusWordCount = 0;
+        if (otherStatusWords > 0) {
+            cleared++;
+        }
+        otherStatusWords = 0;
+        for (LatencyHistogram h : latencies) {
+            if (h.getCount() > 0) {
+                cleared++;
+            }
+            h.reset();
+        }
+        for (int i = 0; i < deactivations.length; i++) {
+            if (deactivations[i] > 0) {
+                cleared++;
+            }
+            deactivations[i] = 0;
+        }
+        startTime = System.currentTimeMillis();
+
+        return cleared;
+    }
+
+    /**
+     * When counting started, in milliseconds since the epoch.
+     */
+    public synchronized long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Command count by INS (0-255).
+     */
+    public synchronized long[] getInstructionCounts() {
+        return instructions.clone();
+    }
+
+    /**
+     * Response count by status word, -1 for status words that weren't
+     * tracked and malformed responses.
+     */
+    public synchronized Map<Integer, Long> getStatusWordCounts() {
+        Map<Integer, Long> result = new TreeMap<Integer, Long>();
+        for (int i = 0; i < statusWordCount; i++) {
+            result.put(statusWords[i], statusWordCounts[i]);
+        }
+        if (otherStatusWords > 0) {
+            result.put(SW_OTHER, otherStatusWords);
+        }
+
+        return result;
+    }
+
+    /**
+     * A copy of the <code>metric</code> histogram, in microseconds.
+     */
+    public synchronized LatencyHistogram getLatency(int metric) {
+        LatencyHistogram result = new LatencyHistogram();
+        result.add(latencies[metric]);
+
+        return result;
+    }
+
+    public synchronized long[] getDeactivationCounts() {
+        return deactivations.clone();
+    }
+
+    /**
+     * Human-readable summary, for display.
+     */
+    public String format() {
+        StringBuilder buff = new StringBuilder();
+        long[] ins = getInstructionCounts();
+        buff.append("Commands:");
+        boolean any = false;
+        for (int i = 0; i < ins.length; i++) {
+            if (ins[i] > 0) {
+                buff.append(String.format(" %02X:%d", i, ins[i]));
+                any = true;
+            }
+        }
+        if (!any) {
+            buff.append(" none");
+        }
+        buff.append("\nStatus words:");
+        for (Map.Entry<Integer, Long> e : getStatusWordCounts().entrySet()) {
+            buff.append(e.getKey() == SW_OTHER ? " other" : String.format(
+                    " %04X", e.getKey()));
+            buff.append(':').append(e.getValue());
+        }
+        buff.append("\nLatency (ms):\n");
+        for (int i = 0; i < LATENCY_NAMES.length; i++) {
+            LatencyHistogram h = getLatency(i);
+            buff.append(String.format(
+                    "  %s: n=%d p50=%.1f p99=%.1f p99.9=%.1f max=%.1f\n",
+                    LATENCY_NAMES[i], h.getCount(),
+                    h.getValueAtPercentile(50) / 1000.0,
+                    h.getValueAtPercentile(99) / 1000.0,
+                    h.getValueAtPercentile(99.9) / 1000.0,
+                    h.getMax() / 1000.0));
+        }
+        long[] deact = getDeactivationCounts();
+        buff.append("Deactivations:");
+        for (int i = 0; i < deact.length; i++) {
+            buff.append(' ').append(DEACTIVATION_NAMES[i]).append(':')
+                    .append(deact[i]);
+        }
+
+        return buff.toString();
+    }
+
+    private void countStatusWord(int sw) {
+        if (sw != SW_OTHER) {
+            for (int i = 0; i < statusWordCount; i++) {
+                if (statusWords[i] == sw) {
+                    statusWordCounts[i]++;
+                    return;
+                }
+            }
+            if (statusWordCount < MAX_STATUS_WORDS) {
+                statusWords[statusWordCount] = sw;
+                statusWordCounts[statusWordCount] = 1;
+                statusWordCount++;
+                return;
+            }
+        }
+        otherStatusWords++;
+    }
+}
@@ -0,0 +1,102 @@
+package org.nick.se.emulator;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-thread cache of initialized Signature objects, by algorithm and key. A
+ * Signature is reset to its post-initSign() state after each sign(), so it
+ * can be reused for the same key without another provider lookup or
+ * re-initialization. Switching between cached algorithms or keys costs a
+ * map lookup.
+ */
+public class SignatureCache {
+
+    // keys cached per algorithm, least recently used ones are dropped
+    private static final int MAX_KEYS = 8;
+
+    private static class Signers {
+        // looked up ahead of time, not yet bound to a key
+        Signature spare;
+
+        final Map<PrivateKey, Signature> byKey = new LinkedHashMap<PrivateKey, Signature>(
+                MAX_KEYS, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<PrivateKey, Signature> eldest) {
+                return size() > MAX_KEYS;
+            }
+        };
+    }
+
+    private static final ThreadLocal<Map<String, Signers>> CACHE = new ThreadLocal<Map<String, Signers>>() {
+        @Override
+        protected Map<String, Signers> initialValue() {
+            return new HashMap<String, Signers>();
+        }
+    };
+
+    private SignatureCache() {
+    }
+
+    /**
+     * Returns a Signature for <code>algorithm</code>, ready to sign with
+     * <code>key</code>.
+     */
+    public static Signature getSigner(String algorithm, PrivateKey key)
+            throws GeneralSecurityException {
+        Signers signers = getSigners(algorithm);
+        Signature signature = signers.byKey.get(key);
+        if (signature == null) {
+            signature = signers.spare;
+            signers.spare = null;
+            if (signature == null) {
+                signature = PkiAppletEngine.newSignature(algorithm);
+            }
+            signature.initSign(key);
+            signers.byKey.put(key, signature);
+        }
+
+        return signature;
+    }
+
+    /**
+     * Performs the provider lookup for <code>algorithm</code> on the current
+     * thread ahead of time, and initializes it if <code>key</code> is known.
+     */
+    public static void warm(String algorithm, PrivateKey key)
+            throws GeneralSecurityException {
+        Signers signers = getSigners(algorithm);
+        if (key != null) {
+            getSigner(algorithm, key);
+        } else if (signers.spare == null) {
+            signers.spare = PkiAppletEngine.newSignature(algorithm);
+        }
+    }
+
+    /**
+     * Drops the current thread's Signatures for <code>algorithm</code>, e.g.
+     * after an error left one in an unknown state.
+     */
+    public static void remove(String algorithm) {
+        CACHE.get().remove(algorithm);
+    }
+
+    private static Signers getSigners(String algorithm) {
+        Map<String, Signers> cache = CACHE.get();
+        Signers signers = cache.get(algorithm);
+        if (signers == null) {
+            signers = new Signers();
+            cache.put(algorithm, signers);
+        }
+
+        return signers;
+    }
+
+}
@@ -1,157 +1,202 @@
-package org.nick.se.emulator;
-
-import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-
-import android.nfc.Tag;
-import android.nfc.tech.TagTechnology;
-
-public class TagWrapper implements TagTechnology {
-
-    private Method isConnected;
-    private Method connect;
-    private Method reconnect;
-    private Method close;
-    private Method getMaxTransceiveLength;
-    private Method transceive;
-
-    private Tag tag;
-    private Object tagTech;
-
-    public TagWrapper(Tag tag, String tech) {
-        try {
-            this.tag = tag;
-
-            Class<?> cls = Class.forName(tech);
-            Method get = cls.getMethod("get", Tag.class);
-            tagTech = get.invoke(null, tag);
-
-            isConnected = cls.getMethod("isConnected");
-            connect = cls.getMethod("connect");
-            reconnect = cls.getMethod("reconnect");
-            close = cls.getMethod("close");
-            getMaxTransceiveLength = cls.getMethod("getMaxTransceiveLength");
-            transceive = cls.getMethod("transceive", byte[].class);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throwCauseAsRE(e);
-        }
-    }
-
-    private void throwCauseAsRE(InvocationTargetException e) {
-        if (e.getTargetException() != null) {
-            throw new RuntimeException(e.getTargetException());
-        }
-
-        throw new RuntimeException(e);
-    }
-
-    private void throwCauseAsIOE(InvocationTargetException e)
-            throws IOException {
-        if (e.getTargetException() != null) {
-            if (e.getTargetException() instanceof IOException) {
-                throw (IOException) e.getTargetException();
-            } else {
-                throw new RuntimeException(e.getTargetException());
-            }
-        }
-
-        throw new RuntimeException(e);
-    }
-
-    @Override
-    public boolean isConnected() {
-        boolean result = false;
-        try {
-            return (Boolean) isConnected.invoke(tagTech);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throwCauseAsRE(e);
-        }
-
-        return result;
-    }
-
-    @Override
-    public void connect() throws IOException {
-        try {
-            connect.invoke(tagTech);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throwCauseAsIOE(e);
-        }
-    }
-
-    //    @Override @hide-n, so can't use annotation
-    public void reconnect() throws IOException {
-        try {
-            reconnect.invoke(tagTech);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throwCauseAsIOE(e);
-        }
-    }
-
-    @Override
-    public void close() throws IOException {
-        try {
-            close.invoke(tagTech);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throwCauseAsIOE(e);
-        }
-    }
-
-    public int getMaxTransceiveLength() {
-        try {
-            return (Integer) getMaxTransceiveLength.invoke(tagTech);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throwCauseAsRE(e);
-        }
-
-        return 0;
-    }
-
-    public byte[] transceive(byte[] data) throws IOException {
-        try {
-            return (byte[]) transceive.invoke(tagTech, data);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throwCauseAsIOE(e);
-        }
-
-        throw new IOException("transceive failed");
-    }
-
-    @Override
-    public Tag getTag() {
-        return tag;
-    }
-}
+package org.nick.se.emulator;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import android.nfc.Tag;
+import android.nfc.tech.TagTechnology;
+
+/**
+ * Wrapper for the hidden IsoPcdA tag technology. Connecting, closing and
+ * checking the connection go through the public {@link TagTechnology}
+ * interface it implements. <code>transceive()</code>, the only call per
+ * APDU, and <code>getMaxTransceiveLength()</code> aren't part of it, so
+ * they are still called through reflection (resolved once, with a reused
+ * argument array); the class isn't in the SDK, and method handles need
+ * API 26.
+ */
+public class TagWrapper implements TagTechnology, ApduTransport {
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private Method isConnected;
+    private Method connect;
+    private Method reconnect;
+    private Method close;
+    private Method getMaxTransceiveLength;
+    private Method transceive;
+
+    private Tag tag;
+    private Object tagTech;
+    // tagTech, if it implements the interface (IsoPcdA does)
+    private TagTechnology tagTechnology;
+
+    // only used by the applet thread
+    private final Object[] transceiveArgs = new Object[1];
+
+    // fixed for the lifetime of the tag
+    private int maxTransceiveLength = -1;
+
+    public TagWrapper(Tag tag, String tech) {
+        try {
+            this.tag = tag;
+
+            Class<?> cls = Class.forName(tech);
+            Method get = cls.getMethod("get", Tag.class);
+            tagTech = get.invoke(null, tag);
+            if (tagTech instanceof TagTechnology) {
+                tagTechnology = (TagTechnology) tagTech;
+            }
+
+            isConnected = cls.getMethod("isConnected");
+            connect = cls.getMethod("connect");
+            reconnect = cls.getMethod("reconnect");
+            close = cls.getMethod("close");
+            getMaxTransceiveLength = cls.getMethod("getMaxTransceiveLength");
+            transceive = cls.getMethod("transceive", byte[].class);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            throwCauseAsRE(e);
+        }
+    }
+
+    private void throwCauseAsRE(InvocationTargetException e) {
+        if (e.getTargetException() != null) {
+            throw new RuntimeException(e.getTargetException());
+        }
+
+        throw new RuntimeException(e);
+    }
+
+    private void throwCauseAsIOE(InvocationTargetException e)
+            throws IOException {
+        if (e.getTargetException() != null) {
+            if (e.getTargetException() instanceof IOException) {
+                throw (IOException) e.getTargetException();
+            } else {
+                throw new RuntimeException(e.getTargetException());
+            }
+        }
+
+        throw new RuntimeException(e);
+    }
+
+    @Override
+    public boolean isConnected() {
+        if (tagTechnology != null) {
+            return tagTechnology.isConnected();
+        }
+
+        boolean result = false;
+        try {
+            return (Boolean) isConnected.invoke(tagTech, NO_ARGS);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            throwCauseAsRE(e);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (tagTechnology != null) {
+            tagTechnology.connect();
+            return;
+        }
+
+        try {
+            connect.invoke(tagTech, NO_ARGS);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            throwCauseAsIOE(e);
+        }
+    }
+
+    //    @Override @hide-n, so can't use annotation
+    public void reconnect() throws IOException {
+        try {
+            reconnect.invoke(tagTech, NO_ARGS);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            throwCauseAsIOE(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (tagTechnology != null) {
+            tagTechnology.close();
+            return;
+        }
+
+        try {
+            close.invoke(tagTech, NO_ARGS);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            throwCauseAsIOE(e);
+        }
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        if (maxTransceiveLength >= 0) {
+            return maxTransceiveLength;
+        }
+        try {
+            maxTransceiveLength = (Integer) getMaxTransceiveLength.invoke(
+                    tagTech, NO_ARGS);
+
+            return maxTransceiveLength;
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            throwCauseAsRE(e);
+        }
+
+        return 0;
+    }
+
+    @Override
+    public byte[] transceive(byte[] data) throws IOException {
+        transceiveArgs[0] = data;
+        try {
+            return (byte[]) transceive.invoke(tagTech, transceiveArgs);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            throwCauseAsIOE(e);
+        }
+
+        throw new IOException("transceive failed");
+    }
+
+    @Override
+    public Tag getTag() {
+        return tag;
+    }
+}
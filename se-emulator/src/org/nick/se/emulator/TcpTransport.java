@@ -0,0 +1,76 @@
+package org.nick.se.emulator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Link to a remote reader over TCP, e.g. the PKI client with
+ * <code>-Dsepkiclient.virtualReader=&lt;phone address&gt;:&lt;port&gt;</code>.
+ * APDUs are framed with a 2-byte big-endian length in both directions, like
+ * the client's virtual card server.
+ */
+public class TcpTransport implements ApduTransport {
+
+    public static final int DEFAULT_PORT = 9797;
+
+    private static final int MAX_FRAME_LENGTH = 0xffff;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    // only accessed by the applet thread
+    private boolean commandPending;
+
+    public TcpTransport(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(socket.getInputStream());
+        out = new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream()));
+    }
+
+    @Override
+    public byte[] transceive(byte[] response) throws IOException {
+        // the first call only primes the link, nobody is waiting for it
+        if (commandPending) {
+            out.writeShort(response.length);
+            out.write(response);
+            out.flush();
+            commandPending = false;
+        }
+
+        int hi = in.read();
+        if (hi == -1) {
+            return null;
+        }
+        int lo = in.read();
+        if (lo == -1) {
+            throw new EOFException("Truncated frame length");
+        }
+        byte[] command = new byte[(hi << 8) | lo];
+        in.readFully(command);
+        commandPending = true;
+
+        return command;
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return MAX_FRAME_LENGTH;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,4 @@
+#!/bin/sh
+
+JAVA_HOME=/usr/local/jdk
+$JAVA_HOME/bin/java -cp bin/ org.nick.sepkiclient.VirtualCardServer $*
@@ -0,0 +1,253 @@
+package org.nick.sepkiclient;
+
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Asynchronous signing on a single card. Requests are sent to the card one
+ * at a time, in the order they were made, by a dedicated thread. Host-side
+ * preparation (hashing) runs on a separate executor, so the next requests
+ * are ready by the time the card is done with the current one. Futures
+ * complete in request order, on the card thread, so callbacks attached with
+ * the non-async <code>then*</code> methods also run in order; attach slow
+ * ones (verification) with the <code>*Async</code> variants to keep them off
+ * the card thread.
+ *
+ * <p>
+ * At most <code>maxInFlight</code> requests are pending at any time;
+ * further calls to {@link #sign(byte[])} block until one completes.
+ * Cancelling a future that hasn't reached the card yet removes it from the
+ * pipeline.
+ */
+@SuppressWarnings("restriction")
+public class AsyncPkiCard implements Closeable {
+
+    private static class Request {
+        final CompletableFuture<byte[]> prepared;
+        final CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+
+        Request(CompletableFuture<byte[]> prepared) {
+            this.prepared = prepared;
+        }
+    }
+
+    private static final Request CLOSE = new Request(null);
+
+    private final CardSession session;
+    private final String hashAlgorithm;
+    private final Executor preparer;
+    private final Semaphore inFlight;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+    private final Thread cardThread;
+
+    // written while holding the queue lock, so that no request is added
+    // behind CLOSE
+    private volatile boolean closed;
+
+    /**
+     * @param hashAlgorithm
+     *            hash data on the host and have the card sign the digest
+     *            (SHA-256, SHA-384 or SHA-512), or <code>null</code> to send
+     *            the data as is
+     */
+    public AsyncPkiCard(CardSession session, String hashAlgorithm,
+            int maxInFlight) {
+        this(session, hashAlgorithm, maxInFlight, ForkJoinPool.commonPool());
+    }
+
+    public AsyncPkiCard(CardSession session, String hashAlgorithm,
+            int maxInFlight, Executor preparer) {
+        if (hashAlgorithm != null) {
+            // fail early on unsupported algorithms
+            PkiCard.prehashSignatureAlgorithm(hashAlgorithm);
+        }
+        this.session = session;
+        this.hashAlgorithm = hashAlgorithm;
+        this.preparer = preparer;
+        this.inFlight = new Semaphore(maxInFlight);
+
+        cardThread = new Thread(this::processRequests);
+        cardThread.setName("Card I/O: " + session.getTerminal().getName());
+        cardThread.start();
+    }
+
+    /**
+     * Signs <code>data</code>, hashing it first on the preparation executor
+     * if a hash algorithm is set.
+     */
+    public CompletableFuture<byte[]> sign(byte[] data) {
+        if (hashAlgorithm == null) {
+            return enqueue(CompletableFuture.completedFuture(data));
+        }
+
+        return signDigest(CompletableFuture.supplyAsync(() -> hash(data),
+                preparer));
+    }
+
+    /**
+     * Signs a digest (or data, if no hash algorithm is set) that is still
+     * being computed, e.g. by reading and hashing a file. Its place in the
+     * card queue is taken right away.
+     */
+    public CompletableFuture<byte[]> signDigest(
+            CompletableFuture<byte[]> digest) {
+        return enqueue(digest);
+    }
+
+    /**
+     * Cancels all requests that haven't been sent to the card yet.
+     */
+    public void cancelAll() {
+        List<Request> pending = new ArrayList<Request>();
+        synchronized (queue) {
+            queue.drainTo(pending);
+            if (pending.contains(CLOSE)) {
+                queue.add(CLOSE);
+            }
+        }
+        cancel(pending);
+    }
+
+    /**
+     * Waits for pending requests to complete and stops the card thread. The
+     * card session is left open.
+     */
+    @Override
+    public void close() {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(CLOSE);
+        }
+        try {
+            cardThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<byte[]> enqueue(
+            CompletableFuture<byte[]> prepared) {
+        if (closed) {
+            throw new IllegalStateException("Closed");
+        }
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+            result.completeExceptionally(e);
+
+            return result;
+        }
+
+        Request request = new Request(prepared);
+        request.result.whenComplete((signature, error) -> inFlight.release());
+        synchronized (queue) {
+            // closed while waiting for a permit
+            if (closed) {
+                request.result.cancel(false);
+                throw new IllegalStateException("Closed");
+            }
+            queue.add(request);
+        }
+
+        return request.result;
+    }
+
+    private void processRequests() {
+        try {
+            serveRequests();
+        } finally {
+            // interrupted: nobody will send what is left
+            List<Request> pending = new ArrayList<Request>();
+            synchronized (queue) {
+                closed = true;
+                queue.drainTo(pending);
+            }
+            cancel(pending);
+        }
+    }
+
+    private static void cancel(List<Request> requests) {
+        for (Request request : requests) {
+            if (request != CLOSE) {
+                request.result.cancel(false);
+            }
+        }
+    }
+
+    private void serveRequests() {
+        while (true) {
+            Request request;
+            try {
+                request = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (request == CLOSE) {
+                break;
+            }
+            if (request.result.isDone()) {
+                // cancelled
+                continue;
+            }
+
+            byte[] data;
+            try {
+                data = request.prepared.get();
+            } catch (ExecutionException e) {
+                request.result.completeExceptionally(e.getCause());
+                continue;
+            } catch (CancellationException e) {
+                request.result.cancel(false);
+                continue;
+            } catch (InterruptedException e) {
+                request.result.cancel(false);
+                break;
+            }
+            if (request.result.isDone()) {
+                continue;
+            }
+
+            try {
+                byte[] signature;
+                if (hashAlgorithm != null) {
+                    signature = session.signDigest(hashAlgorithm, data);
+                } else {
+                    signature = session.sign(data);
+                }
+                request.result.complete(signature);
+            } catch (CardException e) {
+                request.result.completeExceptionally(e);
+            } catch (RuntimeException e) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private byte[] hash(byte[] data) {
+        try {
+            return MessageDigest.getInstance(hashAlgorithm).digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new CompletionException(e);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package org.nick.sepkiclient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Verifies large numbers of signatures in parallel on a fork/join pool.
+ * Certificates are parsed once and cached by fingerprint, and each thread
+ * keeps its own Signature per algorithm, only re-initializing it when the
+ * public key changes.
+ *
+ * <p>
+ * From the command line, verifies each file <code>X</code> in a directory
+ * that has a matching <code>X.sig</code> against the given certificate, or
+ * against <code>X.crt</code> if present.
+ */
+public class BulkVerifier {
+
+    public static final String SIGNATURE_SUFFIX = ".sig";
+    public static final String CERTIFICATE_SUFFIX = ".crt";
+
+    // picked by key type (SHA256withRSA or SHA256withECDSA) if not set
+    private static final String ALGORITHM = System
+            .getProperty("sepkiclient.verifyAlgorithm");
+
+    private static final String DEFAULT_HASH_ALGORITHM = "SHA-256";
+
+    // items per fork/join leaf task
+    private static final int THRESHOLD = 64;
+
+    /**
+     * A signature over the contents of a file, made with the key of the
+     * (encoded) certificate.
+     */
+    public static class Item {
+        final File data;
+        final byte[] signature;
+        final byte[] certificate;
+
+        public Item(File data, byte[] signature, byte[] certificate) {
+            this.data = data;
+            this.signature = signature;
+            this.certificate = certificate;
+        }
+
+        public File getData() {
+            return data;
+        }
+    }
+
+    public static class Result {
+        private int verified;
+        private final List<Item> invalid = new ArrayList<Item>();
+        private final Map<Item, Exception> errors = new HashMap<Item, Exception>();
+
+        public int getVerified() {
+            return verified;
+        }
+
+        public List<Item> getInvalid() {
+            return invalid;
+        }
+
+        public Map<Item, Exception> getErrors() {
+            return errors;
+        }
+
+        void add(Result other) {
+            verified += other.verified;
+            invalid.addAll(other.invalid);
+            errors.putAll(other.errors);
+        }
+    }
+
+    private static class Verifier {
+        final Signature signature;
+        PublicKey key;
+
+        Verifier(Signature signature) {
+            this.signature = signature;
+        }
+    }
+
+    private final ThreadLocal<Map<String, Verifier>> verifiers = new ThreadLocal<Map<String, Verifier>>() {
+        @Override
+        protected Map<String, Verifier> initialValue() {
+            return new HashMap<String, Verifier>();
+        }
+    };
+
+    private final CertificateCache certificates = new CertificateCache();
+    private final String algorithm;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param algorithm
+     *            signature algorithm, or <code>null</code> to use SHA-256
+     *            with the scheme of each certificate's key
+     */
+    public BulkVerifier(String algorithm) {
+        this(algorithm, ForkJoinPool.commonPool());
+    }
+
+    public BulkVerifier(String algorithm, ForkJoinPool pool) {
+        this.algorithm = algorithm;
+        this.pool = pool;
+    }
+
+    public Result verify(List<Item> items) {
+        return pool.invoke(new VerifyTask(items, 0, items.size()));
+    }
+
+    public CertificateCache getCertificateCache() {
+        return certificates;
+    }
+
+    private class VerifyTask extends RecursiveTask<Result> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Item> items;
+        private final int from;
+        private final int to;
+
+        VerifyTask(List<Item> items, int from, int to) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Result compute() {
+            if (to - from <= THRESHOLD) {
+                Result result = new Result();
+                byte[] buff = new byte[8192];
+                for (int i = from; i < to; i++) {
+                    Item item = items.get(i);
+                    try {
+                        if (verify(item, buff)) {
+                            result.verified++;
+                        } else {
+                            result.invalid.add(item);
+                        }
+                    } catch (Exception e) {
+                        result.errors.put(item, e);
+                    }
+                }
+
+                return result;
+            }
+
+            int mid = (from + to) >>> 1;
+            VerifyTask left = new VerifyTask(items, from, mid);
+            left.fork();
+            Result result = new VerifyTask(items, mid, to).compute();
+            result.add(left.join());
+
+            return result;
+        }
+    }
+
+    private boolean verify(Item item, byte[] buff)
+            throws GeneralSecurityException, IOException {
+        X509Certificate cert = certificates.get(item.certificate);
+        String algorithm = getAlgorithm(cert.getPublicKey());
+        Signature s = getVerifier(algorithm, cert.getPublicKey());
+        try {
+            FileInputStream in = new FileInputStream(item.data);
+            try {
+                int read;
+                while ((read = in.read(buff)) != -1) {
+                    s.update(buff, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+
+            return s.verify(item.signature);
+        } catch (IOException | GeneralSecurityException e) {
+            // may have been left half-way, start over next time
+            verifiers.get().remove(algorithm);
+            throw e;
+        }
+    }
+
+    // the configured algorithm, or the default for the key
+    private String getAlgorithm(PublicKey key) {
+        if (algorithm != null) {
+            return algorithm;
+        }
+
+        return PkiCard.prehashSignatureAlgorithm(DEFAULT_HASH_ALGORITHM,
+                key.getAlgorithm());
+    }
+
+    private Signature getVerifier(String algorithm, PublicKey key)
+            throws GeneralSecurityException {
+        Map<String, Verifier> cache = verifiers.get();
+        Verifier verifier = cache.get(algorithm);
+        if (verifier == null) {
+            verifier = new Verifier(Signature.getInstance(algorithm));
+            cache.put(algorithm, verifier);
+        }
+        // verify() resets the Signature for the same key
+        if (verifier.key != key) {
+            verifier.signature.initVerify(key);
+            verifier.key = key;
+        }
+
+        return verifier.signature;
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length < 2) {
+                System.out
+                        .println("se-pki-verify <certificate file> <directory>");
+                System.exit(1);
+            }
+
+            byte[] defaultCert = Files.readAllBytes(new File(args[0].trim())
+                    .toPath());
+            File dir = new File(args[1].trim());
+            List<Item> items = new ArrayList<Item>();
+            for (File f : dir.listFiles()) {
+                String name = f.getName();
+                if (!f.isFile() || name.endsWith(SIGNATURE_SUFFIX)
+                        || name.endsWith(CERTIFICATE_SUFFIX)) {
+                    continue;
+                }
+                File sigFile = new File(dir, name + SIGNATURE_SUFFIX);
+                if (!sigFile.isFile()) {
+                    continue;
+                }
+                File certFile = new File(dir, name + CERTIFICATE_SUFFIX);
+                byte[] cert = certFile.isFile() ? Files.readAllBytes(certFile
+                        .toPath()) : defaultCert;
+                items.add(new Item(f, Files.readAllBytes(sigFile.toPath()),
+                        cert));
+            }
+
+            // one thread per core, the common pool leaves one for the caller
+            BulkVerifier verifier = new BulkVerifier(ALGORITHM,
+                    new ForkJoinPool());
+            long start = System.nanoTime();
+            Result result = verifier.verify(items);
+            long elapsed = (System.nanoTime() - start) / 1000000;
+
+            for (Item item : result.getInvalid()) {
+                System.out.printf("%s: signature is NOT valid\n", item.data
+                        .getName());
+            }
+            for (Map.Entry<Item, Exception> e : result.getErrors().entrySet()) {
+                System.out.printf("%s: %s\n", e.getKey().data.getName(), e
+                        .getValue().getMessage());
+            }
+            System.out.printf(
+                    "Verified %d of %d signatures (%d certificates) in %d ms, %.1f/s, %d threads\n",
+                    result.getVerified(), items.size(), verifier
+                            .getCertificateCache().size(), elapsed,
+                    items.size() * 1000.0 / Math.max(elapsed, 1), verifier.pool
+                            .getParallelism());
+            if (result.getVerified() != items.size()) {
+                System.exit(2);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
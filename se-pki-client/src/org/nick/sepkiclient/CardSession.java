@@ -0,0 +1,244 @@
+package org.nick.sepkiclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+/**
+ * A PKI card session on a single terminal that is kept open between
+ * operations. Connects, selects the applet and verifies the PIN on first use,
+ * and transparently does it again if the card has been removed in the
+ * meantime. If the card grants a PIN grace token, reconnecting presents it
+ * instead of the PIN while it lasts. Operations are serialized.
+ */
+@SuppressWarnings("restriction")
+public class CardSession {
+
+    /**
+     * Something to do with a selected card whose PIN has been verified.
+     */
+    public interface Operation<T> {
+        T run(PkiCard card) throws CardException;
+    }
+
+    private final CardTerminal terminal;
+    private final String pin;
+    private final boolean extendedLength;
+    private final long connectTimeout;
+    private int keySlot = PkiAppletEngine.SLOT_AUTHENTICATION;
+
+    private Card card;
+    private PkiCard pkiCard;
+    private long lastUsed;
+    private long operations;
+    private int reconnects;
+    private int pinResumes;
+    // for the next connection, null if the PIN needs to be verified
+    private byte[] graceToken;
+    // the current connection was authenticated with graceToken
+    private boolean resumed;
+
+    /**
+     * @param connectTimeout
+     *            how long to wait for a card to be placed on the reader, in
+     *            milliseconds
+     */
+    public CardSession(CardTerminal terminal, String pin,
+            boolean extendedLength, long connectTimeout) {
+        this.terminal = terminal;
+        this.pin = pin;
+        this.extendedLength = extendedLength;
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Key used by the sign operations, see {@link PkiCard#setKeySlot(int)}.
+     */
+    public synchronized void setKeySlot(int keySlot) {
+        if (pkiCard != null) {
+            pkiCard.setKeySlot(keySlot);
+        }
+        this.keySlot = keySlot;
+    }
+
+    public CardTerminal getTerminal() {
+        return terminal;
+    }
+
+    /**
+     * Runs <code>op</code>, opening the session first if needed. If the card
+     * was removed, reconnects and tries once more. Errors reported by the
+     * card itself are not retried.
+     */
+    public synchronized <T> T execute(Operation<T> op) throws CardException {
+        boolean wasOpen = pkiCard != null;
+        try {
+            T result = op.run(open());
+            used();
+
+            return result;
+        } catch (PkiCardException e) {
+            // the card is still there and selected
+            lastUsed = System.currentTimeMillis();
+            if (!resumed
+                    || e.getSW() != PkiCard.SW_SECURITY_STATUS_NOT_SATISFIED) {
+                throw e;
+            }
+            // the grace ran out mid-session, the PIN is needed again
+            resumed = false;
+            graceToken = pkiCard.verifyPinWithGrace(pin);
+            T result = op.run(pkiCard);
+            used();
+
+            return result;
+        } catch (CardException e) {
+            close();
+            if (!wasOpen) {
+                throw e;
+            }
+            // card most likely removed since last time, start over with a
+            // new connection
+            reconnects++;
+            T result = op.run(open());
+            used();
+
+            return result;
+        }
+    }
+
+    public byte[] sign(byte[] data) throws CardException {
+        return sign(data, null);
+    }
+
+    /**
+     * @see PkiCard#sign(byte[], String)
+     */
+    public byte[] sign(final byte[] data, final String signatureAlgorithm)
+            throws CardException {
+        return execute(new Operation<byte[]>() {
+            @Override
+            public byte[] run(PkiCard card) throws CardException {
+                // more than a single SIGN can take, stream it
+                if (data.length > PkiAppletEngine.MAX_CHAINED_DATA_LENGTH) {
+                    try {
+                        return card.sign(new ByteArrayInputStream(data),
+                                signatureAlgorithm);
+                    } catch (IOException e) {
+                        throw new CardException(e);
+                    }
+                }
+
+                return card.sign(data, signatureAlgorithm);
+            }
+        });
+    }
+
+    public byte[] signDigest(final String hashAlgorithm, final byte[] digest)
+            throws CardException {
+        return execute(new Operation<byte[]>() {
+            @Override
+            public byte[] run(PkiCard card) throws CardException {
+                return card.signDigest(hashAlgorithm, digest);
+            }
+        });
+    }
+
+    public synchronized boolean isOpen() {
+        return card != null;
+    }
+
+    public synchronized long getOperations() {
+        return operations;
+    }
+
+    public synchronized int getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * Connections authenticated with a PIN grace token.
+     */
+    public synchronized int getPinResumes() {
+        return pinResumes;
+    }
+
+    /**
+     * Closes the session if it hasn't been used for <code>idleMillis</code>.
+     * Resetting the card drops its PIN-verified state.
+     */
+    public synchronized boolean closeIfIdle(long idleMillis) {
+        if (card == null
+                || System.currentTimeMillis() - lastUsed < idleMillis) {
+            return false;
+        }
+        close();
+
+        return true;
+    }
+
+    public synchronized void close() {
+        if (card == null) {
+            return;
+        }
+
+        try {
+            card.endExclusive();
+        } catch (Exception e) {
+            // card is gone or already released
+        }
+        try {
+            card.disconnect(true);
+        } catch (Exception e) {
+            // ditto
+        }
+        card = null;
+        pkiCard = null;
+    }
+
+    private PkiCard open() throws CardException {
+        if (pkiCard != null) {
+            return pkiCard;
+        }
+
+        if (!terminal.waitForCardPresent(connectTimeout)) {
+            throw new CardException("No card on " + terminal.getName());
+        }
+        Card c = terminal.connect("*");
+        try {
+            c.beginExclusive();
+            PkiCard pc = new PkiCard(c.getBasicChannel(), extendedLength);
+            pc.setKeySlot(keySlot);
+            pc.select();
+            authenticate(pc);
+            card = c;
+            pkiCard = pc;
+        } finally {
+            if (card != c) {
+                c.disconnect(true);
+            }
+        }
+
+        return pkiCard;
+    }
+
+    private void authenticate(PkiCard pc) throws CardException {
+        resumed = false;
+        if (graceToken != null) {
+            graceToken = pc.resumePin(graceToken);
+            if (graceToken != null) {
+                resumed = true;
+                pinResumes++;
+                return;
+            }
+        }
+        graceToken = pc.verifyPinWithGrace(pin);
+    }
+
+    private void used() {
+        lastUsed = System.currentTimeMillis();
+        operations++;
+    }
+}
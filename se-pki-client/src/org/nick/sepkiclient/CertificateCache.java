@@ -0,0 +1,44 @@
+package org.nick.sepkiclient;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Parsed certificates keyed by the SHA-256 fingerprint of their encoding, so
+ * each distinct certificate is only parsed once.
+ */
+public class CertificateCache {
+
+    private final ConcurrentMap<ByteBuffer, X509Certificate> certificates = new ConcurrentHashMap<ByteBuffer, X509Certificate>();
+
+    public X509Certificate get(byte[] encoded) throws GeneralSecurityException {
+        // ByteBuffer equality is over the contents
+        ByteBuffer fingerprint = ByteBuffer.wrap(fingerprint(encoded));
+        X509Certificate cert = certificates.get(fingerprint);
+        if (cert != null) {
+            return cert;
+        }
+
+        CertificateFactory cf = CertificateFactory.getInstance("X509");
+        cert = (X509Certificate) cf
+                .generateCertificate(new ByteArrayInputStream(encoded));
+        X509Certificate existing = certificates.putIfAbsent(fingerprint, cert);
+
+        return existing != null ? existing : cert;
+    }
+
+    public int size() {
+        return certificates.size();
+    }
+
+    public static byte[] fingerprint(byte[] encoded)
+            throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-256").digest(encoded);
+    }
+}
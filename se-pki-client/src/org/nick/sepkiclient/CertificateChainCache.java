@@ -0,0 +1,158 @@
+package org.nick.sepkiclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.cert.CertPath;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Certificate chains read from cards, kept on disk under the short hash the
+ * card returns with SELECT. A chain is only read from the card (kilobytes
+ * over NFC) the first time, and again after the key or its certificate
+ * changes.
+ */
+@SuppressWarnings("restriction")
+public class CertificateChainCache {
+
+    private static final String SUFFIX = ".pkipath";
+
+    private final File dir;
+
+    private int hits;
+    private int misses;
+
+    public CertificateChainCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Certificate chain of the current key slot of a selected
+     * <code>card</code>, leaf first.
+     */
+    public synchronized List<X509Certificate> getCertificateChain(
+            PkiCard card) throws CardException {
+        byte[] hash = card.getCertificateHash();
+        File file = hash == null ? null : new File(dir, Main.toHex(hash)
+                + SUFFIX);
+        if (file != null && file.isFile()) {
+            try {
+                byte[] cached = readFile(file);
+                // corrupted or replaced
+                if (!Arrays.equals(hash,
+                        PkiAppletEngine.getCertificateHash(cached))) {
+                    throw new CertificateException(
+                            "Doesn't match its hash");
+                }
+                List<X509Certificate> chain = parse(cached);
+                hits++;
+
+                return chain;
+            } catch (IOException e) {
+                System.err.printf("Ignoring cached chain %s: %s\n", file,
+                        e.getMessage());
+            } catch (CertificateException e) {
+                System.err.printf("Deleting cached chain %s: %s\n", file,
+                        e.getMessage());
+                file.delete();
+            }
+        }
+
+        misses++;
+        byte[] encoded = card.readCertificateChain();
+        if (hash != null
+                && !Arrays.equals(hash,
+                        PkiAppletEngine.getCertificateHash(encoded))) {
+            throw new CardException("Certificate chain doesn't match its hash");
+        }
+        List<X509Certificate> chain;
+        try {
+            chain = parse(encoded);
+        } catch (CertificateException e) {
+            throw new CardException("Invalid certificate chain", e);
+        }
+        // without a hash there is nothing to check the next one against
+        if (file != null) {
+            store(file, encoded);
+        }
+
+        return chain;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    private void store(File file, byte[] encoded) {
+        // rename so that readers never see a partial file
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can't create " + dir);
+            }
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(encoded);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't rename " + tmp);
+            }
+        } catch (IOException e) {
+            // only costs a read on the next run
+            System.err.printf("Error caching certificate chain: %s\n",
+                    e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    private static List<X509Certificate> parse(byte[] encoded)
+            throws CertificateException {
+        CertificateFactory cf = CertificateFactory.getInstance("X509");
+        CertPath path = cf.generateCertPath(new ByteArrayInputStream(encoded),
+                PkiAppletEngine.CERTIFICATE_CHAIN_ENCODING);
+        List<X509Certificate> result = new ArrayList<X509Certificate>();
+        for (Certificate cert : path.getCertificates()) {
+            result.add((X509Certificate) cert);
+        }
+        if (result.isEmpty()) {
+            throw new CertificateException("Empty certificate chain");
+        }
+
+        return result;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] result = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < result.length) {
+                int read = in.read(result, offset, result.length - offset);
+                if (read == -1) {
+                    throw new IOException("Truncated file " + file);
+                }
+                offset += read;
+            }
+
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package org.nick.sepkiclient;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import javax.smartcardio.TerminalFactory;
+
+/**
+ * Puts sustained load on the applet and reports how it holds up over time.
+ * Sends a weighted random mix of SELECT, VERIFY PIN, SIGN and pre-hashed
+ * SIGN commands, either back to back (closed loop) or at a fixed rate (open
+ * loop), and records the latency of each command type in a
+ * {@link LatencyHistogram}. Every interval it prints throughput,
+ * p50/p99/p99.9/max latency and error status words, for the interval and
+ * for the run so far.
+ *
+ * <p>
+ * In open loop mode latency is measured from the time a command was due,
+ * not from when it was sent, so a card that falls behind shows up as
+ * growing latency rather than as a lower request rate.
+ *
+ * <p>
+ * Runs against a real reader, or against a virtual card with
+ * <code>-Dsepkiclient.virtualReader</code>.
+ */
+@SuppressWarnings("restriction")
+public class LoadGenerator {
+
+    // comma-separated operation:weight pairs
+    private static final String MIX = System.getProperty(
+            "sepkiclient.load.mix", "sign:8,digest:8,verify:1,select:1");
+
+    // commands per second, 0 to send them back to back
+    private static final double RATE = Double.parseDouble(System
+            .getProperty("sepkiclient.load.rate", "0"));
+
+    // seconds
+    private static final int DURATION = Integer.getInteger(
+            "sepkiclient.load.duration", 60);
+    private static final int REPORT_INTERVAL = Integer.getInteger(
+            "sepkiclient.load.interval", 10);
+
+    // algorithm of the sign operation, e.g. SHA256withECDSA; SHA-1 with the
+    // key's default scheme if not set
+    private static final String SIGNATURE_ALGORITHM = System
+            .getProperty("sepkiclient.load.signatureAlgorithm");
+
+    // P2 of the sign operations: 0 authentication, 1 signing, 2 key
+    // management key
+    private static final int KEY_SLOT = Integer.getInteger(
+            "sepkiclient.keySlot", PkiAppletEngine.SLOT_AUTHENTICATION);
+
+    // bytes signed by each SIGN command
+    private static final int DATA_SIZE = Integer.getInteger(
+            "sepkiclient.load.dataSize", 64);
+
+    // append interval results to this file as CSV
+    private static final String CSV_FILE = System
+            .getProperty("sepkiclient.load.csv");
+
+    private static final boolean USE_EXTENDED_LENGTH = Boolean
+            .getBoolean("sepkiclient.extendedLength");
+
+    // how long to wait for a removed card to come back, in milliseconds
+    private static final long CARD_RECONNECT_TIMEOUT = 30 * 1000;
+
+    // pseudo status word for commands that failed with an I/O error
+    private static final int SW_IO_ERROR = -1;
+
+    private static final String SELECT = "select";
+    private static final String VERIFY = "verify";
+    private static final String SIGN = "sign";
+    private static final String DIGEST = "digest";
+
+    private static class Operation {
+        final String name;
+        final CommandAPDU command;
+
+        final LatencyHistogram interval = new LatencyHistogram();
+        final LatencyHistogram total = new LatencyHistogram();
+        // status word (other than 9000) -> count
+        final Map<Integer, Long> intervalErrors = new TreeMap<Integer, Long>();
+        final Map<Integer, Long> totalErrors = new TreeMap<Integer, Long>();
+
+        Operation(String name, CommandAPDU command) {
+            this.name = name;
+            this.command = command;
+        }
+
+        void record(long latencyMicros, int sw) {
+            interval.record(latencyMicros);
+            if (sw != (PkiCard.SW_SUCCESS & 0xffff)) {
+                increment(intervalErrors, sw);
+                increment(totalErrors, sw);
+            }
+        }
+
+        void endInterval() {
+            total.add(interval);
+            interval.reset();
+            intervalErrors.clear();
+        }
+
+        private static void increment(Map<Integer, Long> errors, int sw) {
+            Long count = errors.get(sw);
+            errors.put(sw, count == null ? 1 : count + 1);
+        }
+    }
+
+    private final CardTerminal terminal;
+    // all operations, including those only sent when connecting
+    private final List<Operation> reported = new ArrayList<Operation>();
+    // the mix, with cumulative weights in the same order
+    private final List<Operation> operations = new ArrayList<Operation>();
+    private final List<Integer> weights = new ArrayList<Integer>();
+    private final Random random = new Random();
+
+    private final Operation select;
+    private final Operation verify;
+
+    private Card card;
+    private PkiCard pkiCard;
+    private PrintWriter csv;
+
+    public LoadGenerator(CardTerminal terminal, String pin, String mix)
+            throws Exception {
+        this.terminal = terminal;
+
+        byte[] data = new byte[DATA_SIZE];
+        random.nextBytes(data);
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+        select = new Operation(SELECT, new CommandAPDU(
+                PkiCard.SELECT_PKI_APPLET_CMD));
+        verify = new Operation(VERIFY, new CommandAPDU(PkiCard.PKI_APPLET_CLA,
+                PkiCard.INS_VERIFY_PIN, 0, 0, pin.getBytes("ASCII")));
+        Operation sign = new Operation(SIGN, new CommandAPDU(
+                PkiCard.PKI_APPLET_CLA, PkiCard.INS_SIGN,
+                PkiCard.signP1(SIGNATURE_ALGORITHM), KEY_SLOT, data));
+        Operation signDigest = new Operation(DIGEST, new CommandAPDU(
+                PkiCard.PKI_APPLET_CLA, PkiCard.INS_SIGN,
+                PkiCard.prehashP1("SHA-256"), KEY_SLOT, digest));
+        reported.add(select);
+        reported.add(verify);
+        reported.add(sign);
+        reported.add(signDigest);
+
+        int totalWeight = 0;
+        for (String entry : mix.split(",")) {
+            String[] fields = entry.trim().split(":");
+            int weight = fields.length > 1 ? Integer.parseInt(fields[1]
+                    .trim()) : 1;
+            if (weight <= 0) {
+                continue;
+            }
+            Operation op;
+            if (SELECT.equals(fields[0])) {
+                op = select;
+            } else if (VERIFY.equals(fields[0])) {
+                op = verify;
+            } else if (SIGN.equals(fields[0])) {
+                op = sign;
+            } else if (DIGEST.equals(fields[0])) {
+                op = signDigest;
+            } else {
+                throw new IllegalArgumentException("Unknown operation: "
+                        + fields[0]);
+            }
+            totalWeight += weight;
+            operations.add(op);
+            weights.add(totalWeight);
+        }
+        if (operations.isEmpty()) {
+            throw new IllegalArgumentException("Empty operation mix: " + mix);
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length == 0) {
+                System.out.println("se-pki-load <PIN>");
+                System.exit(1);
+            }
+
+            TerminalFactory factory = VirtualReaderProvider
+                    .getTerminalFactory();
+            CardTerminals terminals = factory.terminals();
+            if (terminals.list().isEmpty()) {
+                System.err
+                        .println("No smart card reders found. Connect reader and try again.");
+                System.exit(1);
+            }
+
+            System.out.println("Place phone/card on reader to start");
+            CardTerminal terminal = null;
+            while (terminal == null) {
+                List<CardTerminal> present = terminals
+                        .list(CardTerminals.State.CARD_PRESENT);
+                if (!present.isEmpty()) {
+                    terminal = present.get(0);
+                } else {
+                    terminals.waitForChange();
+                }
+            }
+
+            LoadGenerator generator = new LoadGenerator(terminal,
+                    args[0].trim(), MIX);
+            System.out.printf(
+                    "Using reader '%s', mix %s, %s, %d s\n",
+                    terminal.getName(),
+                    MIX,
+                    RATE > 0 ? String.format("%.1f commands/s", RATE)
+                            : "closed loop", DURATION);
+            generator.run(TimeUnit.SECONDS.toNanos(DURATION),
+                    TimeUnit.SECONDS.toNanos(REPORT_INTERVAL), RATE);
+        } catch (PkiCardException e) {
+            System.err.printf("%s. Exiting.\n", e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param rate
+     *            commands per second, or 0 to send each one as soon as the
+     *            previous one completes
+     */
+    public void run(long durationNanos, long intervalNanos, double rate)
+            throws CardException, IOException {
+        if (CSV_FILE != null) {
+            csv = new PrintWriter(new FileWriter(CSV_FILE, true));
+            csv.println("elapsed_s,operation,count,throughput,p50_us,p99_us,p999_us,max_us,errors");
+        }
+        connect();
+
+        long period = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate)
+                : 0;
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        long nextReport = start + intervalNanos;
+        long intervalStart = start;
+        long due = start;
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= nextReport || now >= end) {
+                    report(now - start, now - intervalStart);
+                    intervalStart = now;
+                    nextReport += intervalNanos;
+                    if (now >= end) {
+                        break;
+                    }
+                }
+
+                if (period > 0) {
+                    while ((now = System.nanoTime()) < due) {
+                        LockSupport.parkNanos(due - now);
+                    }
+                } else {
+                    due = now;
+                }
+                if (pkiCard == null) {
+                    connect();
+                    continue;
+                }
+                execute(pick(), due);
+                due += period;
+            }
+        } finally {
+            disconnect();
+            if (csv != null) {
+                csv.close();
+            }
+            // also when giving up on a removed card
+            System.out.println();
+            System.out.println("Total:");
+            printTotals(System.nanoTime() - start);
+        }
+    }
+
+    private Operation pick() {
+        int r = random.nextInt(weights.get(weights.size() - 1));
+        for (int i = 0; i < weights.size(); i++) {
+            if (r < weights.get(i)) {
+                return operations.get(i);
+            }
+        }
+
+        return operations.get(operations.size() - 1);
+    }
+
+    private void execute(Operation op, long due) throws CardException {
+        int sw;
+        try {
+            ResponseAPDU response;
+            if (op == select) {
+                // sent as is, with Le
+                response = pkiCard.transmit(op.command);
+            } else {
+                // chained if the data doesn't fit
+                response = pkiCard.transmit(op.command.getCLA(),
+                        op.command.getINS(), op.command.getP1(),
+                        op.command.getP2(), op.command.getData());
+            }
+            sw = response.getSW();
+        } catch (CardException e) {
+            op.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due),
+                    SW_IO_ERROR);
+            System.out.printf("Card error: %s, reconnecting\n",
+                    e.getMessage());
+            // reconnected before the next command
+            disconnect();
+            return;
+        }
+        op.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due), sw);
+    }
+
+    private void connect() throws CardException {
+        if (!terminal.waitForCardPresent(CARD_RECONNECT_TIMEOUT)) {
+            throw new CardException("Card not present");
+        }
+        card = terminal.connect("*");
+        card.beginExclusive();
+        pkiCard = new PkiCard(card.getBasicChannel(), USE_EXTENDED_LENGTH);
+        // recorded like any other command
+        execute(select, System.nanoTime());
+        if (pkiCard != null) {
+            execute(verify, System.nanoTime());
+        }
+    }
+
+    private void disconnect() {
+        if (card == null) {
+            return;
+        }
+        try {
+            card.endExclusive();
+            card.disconnect(true);
+        } catch (Exception e) {
+            // gone already
+        }
+        card = null;
+        pkiCard = null;
+    }
+
+    private void report(long elapsedNanos, long intervalNanos) {
+        long elapsedSeconds = TimeUnit.NANOSECONDS.toSeconds(elapsedNanos);
+        long intervalCount = 0;
+        for (Operation op : reported) {
+            intervalCount += op.interval.getCount();
+        }
+        System.out.printf("[%5d s] %.1f commands/s\n", elapsedSeconds,
+                intervalCount * 1e9 / Math.max(intervalNanos, 1));
+        for (Operation op : reported) {
+            print(op.name, op.interval, op.intervalErrors, intervalNanos);
+            if (csv != null) {
+                LatencyHistogram h = op.interval;
+                csv.printf("%d,%s,%d,%.1f,%d,%d,%d,%d,%s\n", elapsedSeconds,
+                        op.name, h.getCount(),
+                        h.getCount() * 1e9 / Math.max(intervalNanos, 1),
+                        h.getValueAtPercentile(50),
+                        h.getValueAtPercentile(99),
+                        h.getValueAtPercentile(99.9), h.getMax(),
+                        formatErrors(op.intervalErrors).replace(',', ' '));
+            }
+            op.endInterval();
+        }
+        if (csv != null) {
+            csv.flush();
+        }
+    }
+
+    private void printTotals(long elapsedNanos) {
+        for (Operation op : reported) {
+            print(op.name, op.total, op.totalErrors, elapsedNanos);
+        }
+    }
+
+    private static void print(String name, LatencyHistogram h,
+            Map<Integer, Long> errors, long nanos) {
+        if (h.getCount() == 0) {
+            return;
+        }
+        System.out.printf(
+                "  %-6s %8d %8.1f/s  p50 %8.2f  p99 %8.2f  p99.9 %8.2f  max %8.2f ms%s\n",
+                name, h.getCount(), h.getCount() * 1e9 / Math.max(nanos, 1),
+                h.getValueAtPercentile(50) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0,
+                h.getValueAtPercentile(99.9) / 1000.0, h.getMax() / 1000.0,
+                errors.isEmpty() ? "" : "  errors " + formatErrors(errors));
+    }
+
+    private static String formatErrors(Map<Integer, Long> errors) {
+        StringBuilder buff = new StringBuilder();
+        for (Map.Entry<Integer, Long> e : errors.entrySet()) {
+            if (buff.length() > 0) {
+                buff.append(", ");
+            }
+            if (e.getKey() == SW_IO_ERROR) {
+                buff.append("I/O");
+            } else {
+                buff.append(String.format("%04X", e.getKey()));
+            }
+            buff.append(": ").append(e.getValue());
+        }
+
+        return buff.toString();
+    }
+}
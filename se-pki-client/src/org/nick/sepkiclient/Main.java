@@ -1,180 +1,597 @@
-package org.nick.sepkiclient;
-
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.security.Signature;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
-
-import javax.smartcardio.Card;
-import javax.smartcardio.CardChannel;
-import javax.smartcardio.CardException;
-import javax.smartcardio.CardTerminal;
-import javax.smartcardio.CardTerminals;
-import javax.smartcardio.CommandAPDU;
-import javax.smartcardio.ResponseAPDU;
-import javax.smartcardio.TerminalFactory;
-
-@SuppressWarnings("restriction")
-public class Main {
-
-    // AID: A0 00 00 00 01 01 01 (probably not unique...)
-    private static final byte[] SELECT_PKI_APPLET_CMD = { 0x00, (byte) 0xA4,
-            0x04, 0x00, 0x06, (byte) 0xA0, 0x00, 0x00, 0x00, 0x01, 0x01, 0x01 };
-
-    private static final short SW_SUCCESS = (short) 0x9000;
-
-    private final static byte PKI_APPLET_CLA = (byte) 0x80;
-    private final static byte INS_VERIFY_PIN = (byte) 0x01;
-    private final static byte INS_SIGN = (byte) 0x02;
-
-    public static void main(String[] args) {
-        try {
-            if (args.length == 0) {
-                usage();
-                return;
-            }
-
-            TerminalFactory factory = TerminalFactory.getDefault();
-            CardTerminals terminals = factory.terminals();
-            if (terminals.list().isEmpty()) {
-                System.err
-                        .println("No smart card reders found. Connect reader and try again.");
-                System.exit(1);
-            }
-
-            System.out.println("Place phone/card on reader to start");
-            Card card = waitForCard(terminals);
-            card.beginExclusive();
-
-            try {
-                CardChannel channel = card.getBasicChannel();
-                CommandAPDU cmd = new CommandAPDU(SELECT_PKI_APPLET_CMD);
-                ResponseAPDU response = transmit(channel, cmd);
-                checkSW(response);
-
-                String pin = args[0].trim();
-                cmd = new CommandAPDU(PKI_APPLET_CLA, INS_VERIFY_PIN, 0x0, 0x0,
-                        pin.getBytes("ASCII"));
-                response = transmit(channel, cmd);
-                checkSW(response);
-
-                byte[] signedData = "sign me!".getBytes("ASCII");
-                cmd = new CommandAPDU(PKI_APPLET_CLA, INS_SIGN, 0x0, 0x0,
-                        signedData);
-                response = transmit(channel, cmd);
-                checkSW(response);
-
-                byte[] signature = response.getData();
-                System.out.println();
-                System.out.printf("Got signature from card: %s\n",
-                        toHex(signature));
-
-                if (args.length > 1) {
-                    String certPath = args[1].trim();
-                    System.out
-                            .printf("Will use certificate from '%s' to verify signature\n",
-                                    certPath);
-                    byte[] certBlob = readFile(certPath);
-                    CertificateFactory cf = CertificateFactory
-                            .getInstance("X509");
-                    X509Certificate cert = (X509Certificate) cf
-                            .generateCertificate(new ByteArrayInputStream(
-                                    certBlob));
-                    System.out.println("\tIssuer: "
-                            + cert.getIssuerDN().getName());
-                    System.out.println("\tSubject: "
-                            + cert.getSubjectDN().getName());
-                    System.out.println("\tNot Before: " + cert.getNotBefore());
-                    System.out.println("\tNot After: " + cert.getNotAfter());
-                    System.out.println();
-
-                    Signature s = Signature.getInstance("SHA1withRSA");
-                    s.initVerify(cert);
-                    s.update(signedData);
-                    boolean valid = s.verify(signature);
-                    System.out.printf("Signature is valid: %s\n", valid);
-                }
-            } finally {
-                card.endExclusive();
-                card.disconnect(false);
-            }
-
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static void usage() {
-        System.out.println("se-pki-client <PIN> [certificate file]");
-        System.exit(1);
-    }
-
-    private static byte[] readFile(String filename) throws Exception {
-        File f = new File(filename);
-        byte[] result = new byte[(int) f.length()];
-        FileInputStream in = new FileInputStream(f);
-        try {
-            in.read(result);
-
-            return result;
-        } finally {
-            in.close();
-        }
-    }
-
-    private static void checkSW(ResponseAPDU response) {
-        if (response.getSW() != (SW_SUCCESS & 0xffff)) {
-            System.err.printf("Received error status: %02X. Exiting.\n",
-                    response.getSW());
-            System.exit(1);
-        }
-    }
-
-    private static ResponseAPDU transmit(CardChannel channel, CommandAPDU cmd)
-            throws CardException {
-        log(cmd);
-        ResponseAPDU response = channel.transmit(cmd);
-        log(response);
-
-        return response;
-    }
-
-    private static void log(CommandAPDU cmd) {
-        System.out.printf("--> %s\n", toHex(cmd.getBytes()),
-                cmd.getBytes().length);
-    }
-
-    private static void log(ResponseAPDU response) {
-        String swStr = String.format("%02X", response.getSW());
-        byte[] data = response.getData();
-        if (data.length > 0) {
-            System.out.printf("<-- %s %s (%d)\n", toHex(data), swStr,
-                    data.length);
-        } else {
-            System.out.printf("<-- %s\n", swStr);
-        }
-    }
-
-    private static Card waitForCard(CardTerminals terminals)
-            throws CardException {
-        while (true) {
-            for (CardTerminal ct : terminals
-                    .list(CardTerminals.State.CARD_INSERTION)) {
-
-                return ct.connect("*");
-            }
-            terminals.waitForChange();
-        }
-    }
-
-    public static String toHex(byte[] bytes) {
-        StringBuilder buff = new StringBuilder();
-        for (byte b : bytes) {
-            buff.append(String.format("%02X", b));
-        }
-
-        return buff.toString();
-    }
-}
+package org.nick.sepkiclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+@SuppressWarnings("restriction")
+public class Main {
+
+    // send long data as a single extended length APDU instead of chaining
+    // short ones. Not all readers support it.
+    private static final boolean USE_EXTENDED_LENGTH = Boolean
+            .getBoolean("sepkiclient.extendedLength");
+
+    // hash data on the host (SHA-256, SHA-384 or SHA-512) and only send the
+    // digest to the card
+    private static final String PREHASH_ALGORITHM = System
+            .getProperty("sepkiclient.prehash");
+
+    // e.g. SHA256withRSA/PSS, when signing data on the card; the key's
+    // default scheme with SHA-1 if not set
+    private static final String SIGNATURE_ALGORITHM = System
+            .getProperty("sepkiclient.signatureAlgorithm");
+
+    // card key to sign with: 0 authentication, 1 signing, 2 key management
+    private static final int KEY_SLOT = Integer.getInteger(
+            "sepkiclient.keySlot", PkiAppletEngine.SLOT_AUTHENTICATION);
+
+    // certificate argument that reads the chain from the card instead
+    private static final String CERTIFICATE_FROM_CARD = "-";
+
+    // certificate chains read from cards, by the hash the card returns with
+    // SELECT
+    private static final CertificateChainCache CERTIFICATE_CHAINS = new CertificateChainCache(
+            new File(System.getProperty("sepkiclient.certCache", new File(
+                    System.getProperty("user.home"), ".se-pki-client/certs")
+                    .getPath())));
+
+    // digests per SIGN BATCH command when signing a directory
+    private static final int BATCH_SIZE = Integer.getInteger(
+            "sepkiclient.batchSize", 16);
+
+    // sign directories using all readers with a card present
+    private static final boolean USE_ALL_READERS = Boolean
+            .getBoolean("sepkiclient.allReaders");
+
+    // sign directories through AsyncPkiCard, hashing and verifying files
+    // while the card is busy
+    private static final boolean USE_PIPELINE = Boolean
+            .getBoolean("sepkiclient.pipeline");
+
+    // write the signature of each file X in a directory to X.sig, for
+    // BulkVerifier
+    private static final boolean SAVE_SIGNATURES = Boolean
+            .getBoolean("sepkiclient.saveSignatures");
+
+    // how long a card worker waits for a removed card to come back, in
+    // milliseconds
+    private static final long CARD_RECONNECT_TIMEOUT = 10 * 1000;
+
+    // print each APDU
+    private static final boolean VERBOSE = Boolean
+            .getBoolean("sepkiclient.verbose");
+
+    // record APDUs in a binary trace and dump it to this file on exit
+    private static final String TRACE_FILE = System
+            .getProperty("sepkiclient.traceFile");
+
+    public static void main(String[] args) {
+        try {
+            if (args.length == 0) {
+                usage();
+                return;
+            }
+
+            if (TRACE_FILE != null) {
+                ApduTrace.getInstance().setHashPayload(true);
+                ApduTrace.getInstance().setEnabled(true);
+                // on exit, whichever mode ran and however it ended
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        dumpTrace();
+                    }
+                }, "APDU trace dump"));
+            }
+
+            TerminalFactory factory = VirtualReaderProvider
+                    .getTerminalFactory();
+            CardTerminals terminals = factory.terminals();
+            if (terminals.list().isEmpty()) {
+                System.err
+                        .println("No smart card reders found. Connect reader and try again.");
+                System.exit(1);
+            }
+
+            System.out.println("Place phone/card on reader to start");
+            if (USE_ALL_READERS && args.length > 2
+                    && new File(args[2].trim()).isDirectory()) {
+                // wait for at least one card, then use all that are present
+                Card card = waitForCard(terminals);
+                X509Certificate cert;
+                try {
+                    PkiCard pkiCard = new PkiCard(card.getBasicChannel(),
+                            USE_EXTENDED_LENGTH);
+                    pkiCard.setKeySlot(KEY_SLOT);
+                    pkiCard.select();
+                    cert = readCertificate(args[1].trim(), pkiCard);
+                } finally {
+                    card.disconnect(false);
+                }
+                signDirectory(terminals, args[0].trim(),
+                        new File(args[2].trim()), cert);
+                return;
+            }
+            if (USE_PIPELINE && args.length > 2
+                    && new File(args[2].trim()).isDirectory()) {
+                CardSession session = new CardSession(
+                        waitForTerminal(terminals), args[0].trim(),
+                        USE_EXTENDED_LENGTH, CARD_RECONNECT_TIMEOUT);
+                session.setKeySlot(KEY_SLOT);
+                final String certPath = args[1].trim();
+                X509Certificate cert = CERTIFICATE_FROM_CARD.equals(certPath) ? session
+                        .execute(new CardSession.Operation<X509Certificate>() {
+                            @Override
+                            public X509Certificate run(PkiCard card)
+                                    throws CardException {
+                                return readCardCertificate(card);
+                            }
+                        }) : readCertificate(certPath);
+                try {
+                    signDirectory(session, new File(args[2].trim()), cert);
+                } finally {
+                    session.close();
+                }
+                return;
+            }
+            Card card = waitForCard(terminals);
+            card.beginExclusive();
+
+            try {
+                PkiCard pkiCard = new PkiCard(card.getBasicChannel(),
+                        USE_EXTENDED_LENGTH);
+                pkiCard.setLogging(VERBOSE);
+                pkiCard.setKeySlot(KEY_SLOT);
+                pkiCard.select();
+
+                String pin = args[0].trim();
+                pkiCard.verifyPin(pin);
+
+                X509Certificate cert = null;
+                if (args.length > 1) {
+                    cert = readCertificate(args[1].trim(), pkiCard);
+                }
+
+                File signedFile = args.length > 2 ? new File(args[2].trim())
+                        : null;
+                if (signedFile != null && signedFile.isDirectory()) {
+                    signDirectory(pkiCard, signedFile, cert);
+                    return;
+                }
+
+                byte[] signedData = "sign me!".getBytes("ASCII");
+                byte[] signature;
+                String sigAlgorithm = SIGNATURE_ALGORITHM;
+                if (sigAlgorithm == null) {
+                    sigAlgorithm = PkiCard.signatureAlgorithm(keyAlgorithm(cert));
+                }
+                if (PREHASH_ALGORITHM != null) {
+                    MessageDigest md = MessageDigest
+                            .getInstance(PREHASH_ALGORITHM);
+                    if (signedFile != null) {
+                        update(md, signedFile);
+                    } else {
+                        md.update(signedData);
+                    }
+                    signature = pkiCard.signDigest(PREHASH_ALGORITHM,
+                            md.digest());
+                    sigAlgorithm = PkiCard.prehashSignatureAlgorithm(
+                            PREHASH_ALGORITHM, keyAlgorithm(cert));
+                } else if (signedFile != null) {
+                    signature = pkiCard.sign(signedFile, SIGNATURE_ALGORITHM);
+                } else {
+                    signature = pkiCard.sign(signedData, SIGNATURE_ALGORITHM);
+                }
+                System.out.println();
+                System.out.printf("Got signature from card: %s\n",
+                        toHex(signature));
+
+                if (cert != null) {
+                    Signature s = PkiAppletEngine.newSignature(sigAlgorithm);
+                    s.initVerify(cert);
+                    if (signedFile != null) {
+                        update(s, signedFile);
+                    } else {
+                        s.update(signedData);
+                    }
+                    boolean valid = s.verify(signature);
+                    System.out.printf("Signature is valid: %s\n", valid);
+                }
+            } catch (PkiCardException e) {
+                System.err.printf("%s. Exiting.\n", e.getMessage());
+                System.exit(1);
+            } finally {
+                card.endExclusive();
+                card.disconnect(false);
+            }
+
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void dumpTrace() {
+        try {
+            int count = ApduTrace.getInstance().dump(new File(TRACE_FILE));
+            System.out.printf("Wrote %d APDUs to '%s'\n", count, TRACE_FILE);
+        } catch (IOException e) {
+            System.err.printf("Error writing APDU trace to '%s': %s\n",
+                    TRACE_FILE, e.getMessage());
+        }
+    }
+
+    private static void usage() {
+        System.out
+                .println("se-pki-client <PIN> [certificate file|-] [file or directory to sign]");
+        System.out
+                .println("  - reads the certificate chain from the card");
+        System.exit(1);
+    }
+
+    /**
+     * Hashes each file in <code>dir</code> (SHA-256 unless pre-hashing is
+     * configured), sending the queued digests to the card in batches.
+     */
+    private static void signDirectory(PkiCard pkiCard, File dir,
+            X509Certificate cert) throws Exception {
+        Deque<File> pending = new ArrayDeque<File>(listFiles(dir));
+
+        String hashAlgorithm = PREHASH_ALGORITHM != null ? PREHASH_ALGORITHM
+                : "SHA-256";
+        MessageDigest md = MessageDigest.getInstance(hashAlgorithm);
+        Signature verifier = null;
+        if (cert != null) {
+            verifier = Signature.getInstance(PkiCard
+                    .prehashSignatureAlgorithm(hashAlgorithm,
+                            keyAlgorithm(cert)));
+        }
+        int invalid = 0;
+        int total = pending.size();
+        long start = System.currentTimeMillis();
+        while (!pending.isEmpty()) {
+            List<File> files = new ArrayList<File>(BATCH_SIZE);
+            List<byte[]> digests = new ArrayList<byte[]>(BATCH_SIZE);
+            while (!pending.isEmpty() && files.size() < BATCH_SIZE) {
+                File f = pending.poll();
+                update(md, f);
+                files.add(f);
+                digests.add(md.digest());
+            }
+
+            List<byte[]> signatures = pkiCard.signDigestBatch(hashAlgorithm,
+                    digests);
+            for (int i = 0; i < files.size(); i++) {
+                byte[] signature = signatures.get(i);
+                signed(files.get(i), signature);
+                if (verifier != null) {
+                    verifier.initVerify(cert);
+                    update(verifier, files.get(i));
+                    if (!verifier.verify(signature)) {
+                        System.out.printf("%s: signature is NOT valid\n",
+                                files.get(i).getName());
+                        invalid++;
+                    }
+                }
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.printf("Signed %d files in %d ms\n", total, elapsed);
+        if (verifier != null) {
+            System.out.printf("Invalid signatures: %d\n", invalid);
+        }
+    }
+
+    /**
+     * Like {@link #signDirectory(PkiCard, File, X509Certificate)}, but
+     * spreads the digests over all cards currently on a reader.
+     */
+    private static void signDirectory(CardTerminals terminals, String pin,
+            File dir, X509Certificate cert) throws Exception {
+        List<CardSession> sessions = SigningScheduler.discover(terminals, pin,
+                USE_EXTENDED_LENGTH, CARD_RECONNECT_TIMEOUT);
+        for (CardSession session : sessions) {
+            session.setKeySlot(KEY_SLOT);
+        }
+        SigningScheduler scheduler = new SigningScheduler(sessions,
+                sessions.size() + 1);
+        System.out.printf("Signing with %d cards\n", scheduler.getCardCount());
+        scheduler.start();
+
+        String hashAlgorithm = PREHASH_ALGORITHM != null ? PREHASH_ALGORITHM
+                : "SHA-256";
+        MessageDigest md = MessageDigest.getInstance(hashAlgorithm);
+        long start = System.currentTimeMillis();
+        List<File> files = new ArrayList<File>();
+        List<SigningScheduler.SignJob> jobs = new ArrayList<SigningScheduler.SignJob>();
+        for (File f : listFiles(dir)) {
+            update(md, f);
+            files.add(f);
+            jobs.add(scheduler.submit(md.digest(), hashAlgorithm));
+        }
+
+        Signature verifier = null;
+        if (cert != null) {
+            verifier = Signature.getInstance(PkiCard
+                    .prehashSignatureAlgorithm(hashAlgorithm,
+                            keyAlgorithm(cert)));
+        }
+        int invalid = 0;
+        int failed = 0;
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                byte[] signature;
+                try {
+                    signature = jobs.get(i).get();
+                } catch (CardException e) {
+                    System.out.printf("%s: %s\n", files.get(i).getName(),
+                            e.getMessage());
+                    failed++;
+                    continue;
+                }
+                signed(files.get(i), signature);
+                if (verifier != null) {
+                    verifier.initVerify(cert);
+                    update(verifier, files.get(i));
+                    if (!verifier.verify(signature)) {
+                        System.out.printf("%s: signature is NOT valid\n",
+                                files.get(i).getName());
+                        invalid++;
+                    }
+                }
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.printf("Signed %d files in %d ms, %d failed\n",
+                files.size() - failed, elapsed, failed);
+        System.out.print(scheduler.getStatus());
+        if (verifier != null) {
+            System.out.printf("Invalid signatures: %d\n", invalid);
+        }
+    }
+
+    /**
+     * Like {@link #signDirectory(PkiCard, File, X509Certificate)}, but
+     * reads and hashes the next files and verifies signatures while the card
+     * is signing.
+     */
+    private static void signDirectory(CardSession session, File dir,
+            X509Certificate cert) throws Exception {
+        String hashAlgorithm = PREHASH_ALGORITHM != null ? PREHASH_ALGORITHM
+                : "SHA-256";
+        String sigAlgorithm = PkiCard.prehashSignatureAlgorithm(hashAlgorithm,
+                keyAlgorithm(cert));
+        AtomicInteger invalid = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        List<CompletableFuture<Void>> results = new ArrayList<CompletableFuture<Void>>();
+        long start = System.currentTimeMillis();
+        try (AsyncPkiCard card = new AsyncPkiCard(session, hashAlgorithm,
+                BATCH_SIZE)) {
+            for (File f : listFiles(dir)) {
+                CompletableFuture<byte[]> digest = CompletableFuture
+                        .supplyAsync(() -> {
+                            try {
+                                MessageDigest md = MessageDigest
+                                        .getInstance(hashAlgorithm);
+                                update(md, f);
+                                return md.digest();
+                            } catch (Exception e) {
+                                throw new CompletionException(e);
+                            }
+                        });
+                // verify on the common pool, off the card thread
+                CompletableFuture<Void> result = card.signDigest(digest)
+                        .thenAcceptAsync(signature -> {
+                            signed(f, signature);
+                            if (cert != null
+                                    && !verify(sigAlgorithm, cert, f, signature)) {
+                                System.out.printf(
+                                        "%s: signature is NOT valid\n",
+                                        f.getName());
+                                invalid.incrementAndGet();
+                            }
+                        }).exceptionally(e -> {
+                            System.out.printf("%s: %s\n", f.getName(),
+                                    e.getMessage());
+                            failed.incrementAndGet();
+                            return null;
+                        });
+                results.add(result);
+            }
+            CompletableFuture.allOf(
+                    results.toArray(new CompletableFuture<?>[results.size()]))
+                    .join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.printf("Signed %d files in %d ms, %d failed\n",
+                results.size() - failed.get(), elapsed, failed.get());
+        if (cert != null) {
+            System.out.printf("Invalid signatures: %d\n", invalid.get());
+        }
+    }
+
+    /**
+     * Files to sign in <code>dir</code>, skipping saved signatures and
+     * certificates.
+     */
+    private static List<File> listFiles(File dir) {
+        List<File> result = new ArrayList<File>();
+        for (File f : dir.listFiles()) {
+            String name = f.getName();
+            if (f.isFile() && !name.endsWith(BulkVerifier.SIGNATURE_SUFFIX)
+                    && !name.endsWith(BulkVerifier.CERTIFICATE_SUFFIX)) {
+                result.add(f);
+            }
+        }
+
+        return result;
+    }
+
+    private static void signed(File f, byte[] signature) {
+        System.out.printf("%s: %s\n", f.getName(), toHex(signature));
+        if (SAVE_SIGNATURES) {
+            try {
+                Files.write(new File(f.getParentFile(), f.getName()
+                        + BulkVerifier.SIGNATURE_SUFFIX).toPath(), signature);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // RSA when there is no certificate to tell
+    private static String keyAlgorithm(X509Certificate cert) {
+        return cert != null ? cert.getPublicKey().getAlgorithm()
+                : PkiAppletEngine.KEY_ALGORITHM_RSA;
+    }
+
+    private static boolean verify(String sigAlgorithm, X509Certificate cert,
+            File file, byte[] signature) {
+        try {
+            Signature s = Signature.getInstance(sigAlgorithm);
+            s.initVerify(cert);
+            update(s, file);
+
+            return s.verify(signature);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static X509Certificate readCertificate(String certPath,
+            PkiCard card) throws Exception {
+        if (CERTIFICATE_FROM_CARD.equals(certPath)) {
+            return readCardCertificate(card);
+        }
+
+        System.out.printf(
+                "Will use certificate from '%s' to verify signature\n",
+                certPath);
+        return readCertificate(certPath);
+    }
+
+    private static X509Certificate readCardCertificate(PkiCard card)
+            throws CardException {
+        int misses = CERTIFICATE_CHAINS.getMisses();
+        List<X509Certificate> chain = CERTIFICATE_CHAINS
+                .getCertificateChain(card);
+        System.out.printf(
+                "Will use certificate from the card (%s, chain of %d)\n",
+                CERTIFICATE_CHAINS.getMisses() == misses ? "cached" : "read",
+                chain.size());
+
+        return printCertificate(chain.get(0));
+    }
+
+    private static X509Certificate readCertificate(String certPath)
+            throws Exception {
+        byte[] certBlob = readFile(certPath);
+        CertificateFactory cf = CertificateFactory.getInstance("X509");
+
+        return printCertificate((X509Certificate) cf
+                .generateCertificate(new ByteArrayInputStream(certBlob)));
+    }
+
+    private static X509Certificate printCertificate(X509Certificate cert) {
+        System.out.println("\tIssuer: " + cert.getIssuerDN().getName());
+        System.out.println("\tSubject: " + cert.getSubjectDN().getName());
+        System.out.println("\tNot Before: " + cert.getNotBefore());
+        System.out.println("\tNot After: " + cert.getNotAfter());
+        System.out.println();
+
+        return cert;
+    }
+
+    private static void update(Signature s, File file) throws Exception {
+        byte[] buff = new byte[8192];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buff)) != -1) {
+                s.update(buff, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void update(MessageDigest md, File file) throws Exception {
+        byte[] buff = new byte[8192];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buff)) != -1) {
+                md.update(buff, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readFile(String filename) throws Exception {
+        File f = new File(filename);
+        byte[] result = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        try {
+            in.read(result);
+
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static CardTerminal waitForTerminal(CardTerminals terminals)
+            throws CardException {
+        while (true) {
+            for (CardTerminal ct : terminals
+                    .list(CardTerminals.State.CARD_PRESENT)) {
+
+                return ct;
+            }
+            terminals.waitForChange();
+        }
+    }
+
+    private static Card waitForCard(CardTerminals terminals)
+            throws CardException {
+        while (true) {
+            for (CardTerminal ct : terminals
+                    .list(CardTerminals.State.CARD_INSERTION)) {
+
+                return ct.connect("*");
+            }
+            terminals.waitForChange();
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder buff = new StringBuilder();
+        for (byte b : bytes) {
+            buff.append(String.format("%02X", b));
+        }
+
+        return buff.toString();
+    }
+}
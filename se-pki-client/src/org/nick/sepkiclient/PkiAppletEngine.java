@@ -0,0 +1,1245 @@
+package org.nick.sepkiclient;
+
+import static org.nick.sepkiclient.ISO7816.CLA_CHAINING;
+import static org.nick.sepkiclient.ISO7816.CLA_ISO7816;
+import static org.nick.sepkiclient.ISO7816.FILE_NOT_FOUND;
+import static org.nick.sepkiclient.ISO7816.INS_GET_RESPONSE;
+import static org.nick.sepkiclient.ISO7816.INS_READ_BINARY;
+import static org.nick.sepkiclient.ISO7816.INS_SELECT;
+import static org.nick.sepkiclient.ISO7816.OFFSET_CDATA;
+import static org.nick.sepkiclient.ISO7816.OFFSET_CLA;
+import static org.nick.sepkiclient.ISO7816.OFFSET_EXT_CDATA;
+import static org.nick.sepkiclient.ISO7816.OFFSET_INS;
+import static org.nick.sepkiclient.ISO7816.OFFSET_LC;
+import static org.nick.sepkiclient.ISO7816.OFFSET_P1;
+import static org.nick.sepkiclient.ISO7816.OFFSET_P2;
+import static org.nick.sepkiclient.ISO7816.SW_BYTES_REMAINING_00;
+import static org.nick.sepkiclient.ISO7816.SW_CLA_NOT_SUPPORTED;
+import static org.nick.sepkiclient.ISO7816.SW_CONDITIONS_NOT_SATISFIED;
+import static org.nick.sepkiclient.ISO7816.SW_END_OF_FILE;
+import static org.nick.sepkiclient.ISO7816.SW_FUNC_NOT_SUPPORTED;
+import static org.nick.sepkiclient.ISO7816.SW_INCORRECT_P1P2;
+import static org.nick.sepkiclient.ISO7816.SW_INS_NOT_SUPPORTED;
+import static org.nick.sepkiclient.ISO7816.SW_LAST_COMMAND_EXPECTED;
+import static org.nick.sepkiclient.ISO7816.SW_REFERENCED_DATA_NOT_FOUND;
+import static org.nick.sepkiclient.ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED;
+import static org.nick.sepkiclient.ISO7816.SW_SUCCESS;
+import static org.nick.sepkiclient.ISO7816.SW_UNKNOWN;
+import static org.nick.sepkiclient.ISO7816.SW_WRONG_LENGTH;
+import static org.nick.sepkiclient.ISO7816.SW_WRONG_P1P2;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.util.Arrays;
+
+/**
+ * Platform-independent PKI applet command processing, shared by all card
+ * front ends. Commands are parsed in place, status word responses are
+ * preallocated and response buffers are reused, so processing a command
+ * allocates nothing in steady state.
+ *
+ * Both short and extended length command APDUs are accepted, as well as
+ * command chaining (CLA bit 0x10) for input that doesn't fit in a single
+ * command. Responses longer than the transport limit are returned in chunks,
+ * with 61xx telling the reader to fetch the rest using GET RESPONSE.
+ *
+ * Data too large for one command can be signed with SIGN INIT, any number of
+ * SIGN UPDATE and a SIGN FINAL command that returns the signature. Only the
+ * signature state is kept between them, so memory use doesn't depend on the
+ * data size. Any other command, apart from GET RESPONSE, aborts such a
+ * session, as does a reset.
+ *
+ * SIGN BATCH takes a list of items, each prefixed with its length as two
+ * bytes (big endian), and returns their signatures in the same format.
+ *
+ * P1 of SIGN, SIGN BATCH and SIGN INIT selects the signature algorithm: the
+ * low nibble is the hash (SHA-1, SHA-256, SHA-384 or SHA-512) and bits 4-5
+ * the scheme (PKCS#1 v1.5, PSS or ECDSA, with DER encoded signatures).
+ * Scheme 0 is the key's default, PKCS#1 v1.5 for RSA keys and ECDSA for EC
+ * keys, so P1 = 0 is SHA-1 with the default scheme. Combinations the key or
+ * the provider can't do are rejected with SW_FUNC_NOT_SUPPORTED.
+ *
+ * With P1_PREHASHED set in P1, SIGN and SIGN BATCH data is a SHA-2 digest
+ * computed by the client, selected by the hash nibble. For RSA keys it is
+ * wrapped in a DigestInfo and signed as is, EC keys sign the digest
+ * directly, so only the digest has to be sent to the card. PSS needs the
+ * data and can't be used with digests.
+ *
+ * P2 selects the key slot: authentication, signing or key management. Each
+ * slot holds its own key, so different relying parties can get different
+ * keys without reconfiguring the card. An empty slot is rejected with
+ * SW_REFERENCED_DATA_NOT_FOUND.
+ *
+ * The certificate chain of each slot is a transparent file, encoded as a
+ * PkiPath (CERTIFICATE_CHAIN_ENCODING). READ BINARY (CLA 00 or 80) with a
+ * short file identifier in P1 (P1_SFI | slot + 1) reads it from the offset
+ * in P2 and makes it the current file; further READ BINARY commands take a
+ * 15-bit offset in P1-P2. Each chunk is at most Le bytes and what the link
+ * can carry, and SW_END_OF_FILE marks the last one. SELECT makes the
+ * authentication key's chain current and returns the first
+ * CERTIFICATE_HASH_LENGTH bytes of the SHA-256 hash of each slot's chain,
+ * all zeros if the slot has none (yet), so that readers can cache chains
+ * and only read them when they change.
+ *
+ * With a {@link PinGrace} set, VERIFY PIN with P1_REQUEST_GRACE also returns
+ * a grace token if the policy allows it. After the link is lost, VERIFY PIN
+ * with P1_RESUME_GRACE and the token as data authenticates the new session
+ * without the PIN, returning the next token. Sessions resumed this way can
+ * only sign while the grace lasts; signatures of the sessions holding the
+ * token count against its limit.
+ *
+ * Not thread safe: commands are expected one at a time, as a reader sends
+ * them.
+ */
+public class PkiAppletEngine {
+
+    /**
+     * Platform-specific key and PIN operations.
+     */
+    public interface Backend {
+
+        boolean isInitialized();
+
+        boolean verifyPin(byte[] buff, int offset, int length);
+
+        /**
+         * Algorithm of the key in <code>slot</code>,
+         * {@link PkiAppletEngine#KEY_ALGORITHM_RSA} or
+         * {@link PkiAppletEngine#KEY_ALGORITHM_EC}, or <code>null</code> if
+         * the slot is empty.
+         */
+        String getKeyAlgorithm(int slot) throws Exception;
+
+        /**
+         * Signs <code>length</code> bytes of <code>buff</code> with the key
+         * in <code>slot</code> using the <code>algorithm</code> Signature,
+         * writing the signature to <code>out</code>.
+         *
+         * @return the signature length
+         */
+        int sign(int slot, String algorithm, byte[] buff, int offset,
+                int length, byte[] out, int outOffset) throws Exception;
+
+        /**
+         * Starts a multi-part signature with the key in <code>slot</code>
+         * using the <code>algorithm</code> Signature, discarding any previous
+         * one.
+         */
+        void signInit(int slot, String algorithm) throws Exception;
+
+        void signUpdate(byte[] buff, int offset, int length) throws Exception;
+
+        /**
+         * Completes the multi-part signature, writing it to <code>out</code>.
+         *
+         * @return the signature length
+         */
+        int signFinal(byte[] out, int outOffset) throws Exception;
+
+        /**
+         * Certificate chain of the key in <code>slot</code>, encoded as a
+         * PkiPath, or <code>null</code> if there is none. Front ends that
+         * process SELECT or READ BINARY on their main thread should return
+         * <code>null</code> rather than block if the chain hasn't been
+         * loaded yet. Must not be modified by the caller.
+         */
+        byte[] getCertificateChain(int slot) throws Exception;
+    }
+
+    // AID: A0 00 00 00 01 01 01 (probably not unique...)
+    public static final byte[] SELECT_PKI_APPLET_CMD = { 0x00, (byte) 0xA4,
+            0x04, 0x00, 0x06, (byte) 0xA0, 0x00, 0x00, 0x00, 0x01, 0x01, 0x01 };
+
+    // applet commands
+    public final static byte PKI_APPLET_CLA = (byte) 0x80;
+    public final static byte INS_VERIFY_PIN = (byte) 0x01;
+    public final static byte INS_SIGN_DATA = (byte) 0x02;
+    public final static byte INS_SIGN_INIT = (byte) 0x03;
+    public final static byte INS_SIGN_UPDATE = (byte) 0x04;
+    public final static byte INS_SIGN_FINAL = (byte) 0x05;
+    public final static byte INS_SIGN_BATCH = (byte) 0x06;
+
+    // VERIFY PIN P1: PIN, PIN asking for a grace token, grace token
+    public final static byte P1_PIN = 0x00;
+    public final static byte P1_REQUEST_GRACE = 0x01;
+    public final static byte P1_RESUME_GRACE = 0x02;
+
+    // READ BINARY P1: short file identifier in the low 5 bits, offset in P2
+    public final static byte P1_SFI = (byte) 0x80;
+    public final static byte SFI_MASK = 0x1f;
+
+    // SIGN, SIGN BATCH and SIGN INIT P1
+    public final static byte P1_PREHASHED = (byte) 0x80;
+    public final static byte P1_RESERVED = 0x40;
+    public final static byte P1_SCHEME_MASK = 0x30;
+    public final static byte P1_HASH_MASK = 0x0f;
+    public final static byte SCHEME_KEY_DEFAULT = 0x00;
+    public final static byte SCHEME_PKCS1 = 0x10;
+    public final static byte SCHEME_PSS = 0x20;
+    public final static byte SCHEME_ECDSA = 0x30;
+    public final static byte HASH_SHA1 = 0x00;
+    public final static byte HASH_SHA256 = 0x01;
+    public final static byte HASH_SHA384 = 0x02;
+    public final static byte HASH_SHA512 = 0x03;
+
+    // key slots, selected by P2
+    public static final int SLOT_AUTHENTICATION = 0;
+    public static final int SLOT_SIGNING = 1;
+    public static final int SLOT_KEY_MANAGEMENT = 2;
+    public static final int SLOT_COUNT = 3;
+
+    public static final String[] SLOT_NAMES = { "authentication", "signing",
+            "key_management" };
+
+    // certificate chain files, the SFI is the slot number + 1
+    public static final String CERTIFICATE_CHAIN_ENCODING = "PkiPath";
+    public static final int CERTIFICATE_HASH_LENGTH = 8;
+    // reachable with a 15-bit READ BINARY offset
+    public static final int MAX_CERTIFICATE_CHAIN_LENGTH = 0x7fff;
+
+    public static final String KEY_ALGORITHM_RSA = "RSA";
+    public static final String KEY_ALGORITHM_EC = "EC";
+
+    public static final String SHA1_WITH_RSA = "SHA1withRSA";
+    // signs a DigestInfo as is
+    public static final String NONE_WITH_RSA = "NONEwithRSA";
+    public static final String SHA1_WITH_ECDSA = "SHA1withECDSA";
+    // signs a digest as is
+    public static final String NONE_WITH_ECDSA = "NONEwithECDSA";
+
+    private static final String PSS_SUFFIX = "/PSS";
+    // provider independent PSS, parameters have to be set explicitly
+    private static final String RSASSA_PSS = "RSASSA-PSS";
+
+    // Signature algorithms, indexed by scheme (bits 4-5 of P1) and hash
+    private static final String[][] SIGNATURE_ALGORITHMS = {
+            null,
+            { SHA1_WITH_RSA, "SHA256withRSA", "SHA384withRSA", "SHA512withRSA" },
+            { "SHA1withRSA/PSS", "SHA256withRSA/PSS", "SHA384withRSA/PSS",
+                    "SHA512withRSA/PSS" },
+            { SHA1_WITH_ECDSA, "SHA256withECDSA", "SHA384withECDSA",
+                    "SHA512withECDSA" } };
+    private static final String[] HASH_ALGORITHMS = { "SHA-1", "SHA-256",
+            "SHA-384", "SHA-512" };
+
+    // DER encoded DigestInfo up to the digest, indexed by hash
+    private static final byte[][] DIGEST_INFO_PREFIXES = {
+            null,
+            { 0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48,
+                    0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20 },
+            { 0x30, 0x41, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48,
+                    0x01, 0x65, 0x03, 0x04, 0x02, 0x02, 0x05, 0x00, 0x04, 0x30 },
+            { 0x30, 0x51, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48,
+                    0x01, 0x65, 0x03, 0x04, 0x02, 0x03, 0x05, 0x00, 0x04, 0x40 } };
+    private static final int[] DIGEST_LENGTHS = { 20, 32, 48, 64 };
+
+    // 4096-bit RSA
+    public static final int MAX_SIGNATURE_LENGTH = 512;
+    // largest input accepted through command chaining
+    public static final int MAX_CHAINED_DATA_LENGTH = 4096;
+    // fits the RSA-4096 signatures for a full chain buffer of SHA-256
+    // digests: 120 items of 2 + 512 bytes
+    public static final int MAX_RESPONSE_DATA_LENGTH = 64 * 1024;
+    // what a short Le can ask for
+    public static final int DEFAULT_MAX_RESPONSE_LENGTH = 256;
+    // total data in a multi-part signature, 1 GB
+    public static final long MAX_SIGN_STREAM_LENGTH = 1L << 30;
+
+    // shared, never modified
+    private static final byte[] RESPONSE_SUCCESS = toBytes(SW_SUCCESS);
+    private static final byte[] RESPONSE_FILE_NOT_FOUND = toBytes(FILE_NOT_FOUND);
+    private static final byte[] RESPONSE_UNKNOWN = toBytes(SW_UNKNOWN);
+    private static final byte[] RESPONSE_CONDITIONS_NOT_SATISFIED = toBytes(SW_CONDITIONS_NOT_SATISFIED);
+    private static final byte[] RESPONSE_CLA_NOT_SUPPORTED = toBytes(SW_CLA_NOT_SUPPORTED);
+    private static final byte[] RESPONSE_INS_NOT_SUPPORTED = toBytes(SW_INS_NOT_SUPPORTED);
+    private static final byte[] RESPONSE_WRONG_LENGTH = toBytes(SW_WRONG_LENGTH);
+    private static final byte[] RESPONSE_SECURITY_STATUS_NOT_SATISFIED = toBytes(SW_SECURITY_STATUS_NOT_SATISFIED);
+    private static final byte[] RESPONSE_LAST_COMMAND_EXPECTED = toBytes(SW_LAST_COMMAND_EXPECTED);
+    private static final byte[] RESPONSE_INCORRECT_P1P2 = toBytes(SW_INCORRECT_P1P2);
+    private static final byte[] RESPONSE_FUNC_NOT_SUPPORTED = toBytes(SW_FUNC_NOT_SUPPORTED);
+    private static final byte[] RESPONSE_REFERENCED_DATA_NOT_FOUND = toBytes(SW_REFERENCED_DATA_NOT_FOUND);
+    private static final byte[] RESPONSE_WRONG_P1P2 = toBytes(SW_WRONG_P1P2);
+
+    private final Backend backend;
+
+    // response data, sent in chunks of at most maxResponseLength
+    private final byte[] responseData = new byte[MAX_RESPONSE_DATA_LENGTH];
+    // single signature of a batch, before it's appended to responseData
+    private final byte[] signatureBuffer = new byte[MAX_SIGNATURE_LENGTH];
+    // DigestInfo of a pre-hashed SIGN
+    private final byte[] digestInfoBuffer = new byte[19 + 64];
+    private int responseOffset;
+    private int responseRemaining;
+    private int maxResponseLength = DEFAULT_MAX_RESPONSE_LENGTH;
+
+    // data response APDUs by data length, allocated on first use. Lengths
+    // vary (DER encoded ECDSA signatures, the last chunk of a response),
+    // but only up to maxResponseLength.
+    private byte[][] responseApdus = new byte[DEFAULT_MAX_RESPONSE_LENGTH + 1][];
+
+    // accumulated data of a chained command
+    private final byte[] chainBuffer = new byte[MAX_CHAINED_DATA_LENGTH];
+    private int chainLength;
+    private byte chainIns;
+
+    // slot whose certificate chain READ BINARY without an SFI reads
+    private int currentFile;
+    // hashes returned by SELECT, recomputed when a chain is replaced
+    private final byte[][] hashedChains = new byte[SLOT_COUNT][];
+    private final byte[][] chainHashes = new byte[SLOT_COUNT][];
+
+    // selected by P1 and P2 of the current SIGN, SIGN BATCH or SIGN INIT
+    private int slot;
+    private String signAlgorithm;
+    // hash of a pre-hashed SIGN or SIGN BATCH, 0 when signing data
+    private int prehash;
+    private boolean ecKey;
+
+    // multi-part signature in progress
+    private boolean signing;
+    private long signedLength;
+
+    private boolean selected = false;
+    private boolean authenticated = false;
+
+    private PinGrace pinGrace;
+    // this session got or presented the current grace token
+    private boolean graceHolder;
+    // authenticated with the grace token rather than the PIN
+    private boolean graceResumed;
+
+    private byte p1;
+    private byte p2;
+
+    // set by parseData()
+    private byte[] dataBuffer;
+    private int dataOffset;
+    private int dataLength;
+    // Le, 0 if absent
+    private int expectedLength;
+
+    private String lastMessage;
+    private Exception lastError;
+
+    public PkiAppletEngine(Backend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Largest response data chunk the transport can carry, not counting the
+     * status word.
+     */
+    public void setMaxResponseLength(int maxResponseLength) {
+        if (maxResponseLength < 1) {
+            throw new IllegalArgumentException("Invalid max response length: "
+                    + maxResponseLength);
+        }
+        this.maxResponseLength = maxResponseLength;
+        if (responseApdus.length != maxResponseLength + 1) {
+            responseApdus = new byte[maxResponseLength + 1][];
+        }
+    }
+
+    /**
+     * Enables grace tokens, see {@link PinGrace}. <code>null</code> (the
+     * default) disables them.
+     */
+    public void setPinGrace(PinGrace pinGrace) {
+        this.pinGrace = pinGrace;
+    }
+
+    /**
+     * Processes a single command APDU. The returned array may be shared or
+     * reused by the next call and must not be modified.
+     */
+    public byte[] process(byte[] cmd) {
+        lastMessage = null;
+        lastError = null;
+
+        if (cmd == null || cmd.length < OFFSET_LC) {
+            return error(RESPONSE_WRONG_LENGTH, "Command too short");
+        }
+
+        if (isSelectPkiApplet(cmd)) {
+            resetTransfers();
+            currentFile = SLOT_AUTHENTICATION;
+            if (!selected) {
+                selected = true;
+                lastMessage = "SELECT success";
+            }
+
+            return selectResponse();
+        }
+
+        if (!selected) {
+            if (cmd[OFFSET_CLA] == CLA_ISO7816 && cmd[OFFSET_INS] == INS_SELECT) {
+                return error(RESPONSE_FILE_NOT_FOUND, "Invalid AID");
+            }
+
+            return error(RESPONSE_UNKNOWN, "First command must be a SELECT");
+        }
+
+        if (cmd[OFFSET_INS] == INS_GET_RESPONSE
+                && (cmd[OFFSET_CLA] == CLA_ISO7816 || cmd[OFFSET_CLA] == PKI_APPLET_CLA)) {
+            return getResponse(cmd);
+        }
+        // any other command discards what the reader didn't fetch
+        responseRemaining = 0;
+
+        if (!backend.isInitialized()) {
+            return error(RESPONSE_CONDITIONS_NOT_SATISFIED,
+                    "Applet not initialized");
+        }
+
+        byte cla = cmd[OFFSET_CLA];
+        byte ins = cmd[OFFSET_INS];
+        if ((cla & ~CLA_CHAINING) != PKI_APPLET_CLA
+                && (cla != CLA_ISO7816 || ins != INS_READ_BINARY)) {
+            return error(RESPONSE_CLA_NOT_SUPPORTED,
+                    "Unsupported command class");
+        }
+
+        p1 = cmd[OFFSET_P1];
+        p2 = cmd[OFFSET_P2];
+        if (!parseData(cmd)) {
+            chainLength = 0;
+            return error(RESPONSE_WRONG_LENGTH, "Invalid command length");
+        }
+
+        if ((cla & CLA_CHAINING) != 0 || chainLength > 0) {
+            byte[] response = chain(ins, (cla & CLA_CHAINING) != 0);
+            if (response != null) {
+                return response;
+            }
+        }
+
+        if (signing && ins != INS_SIGN_UPDATE && ins != INS_SIGN_FINAL) {
+            signing = false;
+            lastMessage = "Multi-part signature aborted";
+        }
+
+        try {
+            return dispatch(ins);
+        } finally {
+            chainLength = 0;
+        }
+    }
+
+    private byte[] dispatch(byte ins) {
+        byte[] rejected;
+        switch (ins) {
+        case INS_VERIFY_PIN:
+            if (dataLength == 0) {
+                return error(RESPONSE_WRONG_LENGTH,
+                        "Expecting command with data");
+            }
+
+            if (p1 == P1_RESUME_GRACE) {
+                return resumeGrace();
+            }
+            if (p1 != P1_PIN && p1 != P1_REQUEST_GRACE) {
+                return error(RESPONSE_INCORRECT_P1P2, "Unsupported P1");
+            }
+
+            if (backend.verifyPin(dataBuffer, dataOffset, dataLength)) {
+                authenticated = true;
+                graceResumed = false;
+                lastMessage = "VERIFY PIN success";
+                if (p1 == P1_REQUEST_GRACE && pinGrace != null) {
+                    int tokenLength = pinGrace.issue(responseData, 0);
+                    if (tokenLength > 0) {
+                        graceHolder = true;
+
+                        return dataResponse(tokenLength);
+                    }
+                }
+
+                return RESPONSE_SUCCESS;
+            }
+
+            return error(RESPONSE_SECURITY_STATUS_NOT_SATISFIED, "Invalid PIN");
+        case INS_SIGN_DATA:
+            if (dataLength == 0) {
+                return error(RESPONSE_WRONG_LENGTH,
+                        "Expecting command with data");
+            }
+
+            if (!canSign(0)) {
+                return error(RESPONSE_SECURITY_STATUS_NOT_SATISFIED,
+                        "Need to authenticate first");
+            }
+
+            rejected = selectAlgorithm(true);
+            if (rejected != null) {
+                return rejected;
+            }
+            if (prehash != 0 && dataLength != DIGEST_LENGTHS[prehash]) {
+                return error(RESPONSE_WRONG_LENGTH, "Invalid digest length");
+            }
+
+            // only for a request that will be signed
+            if (!canSign(1)) {
+                return error(RESPONSE_SECURITY_STATUS_NOT_SATISFIED,
+                        "Need to authenticate first");
+            }
+
+            try {
+                int sigLen = signItem(dataBuffer, dataOffset, dataLength,
+                        responseData, 0);
+                if (sigLen < 0) {
+                    return error(RESPONSE_WRONG_LENGTH, "Invalid digest length");
+                }
+                signed(1);
+                lastMessage = "SIGN DATA success";
+
+                return dataResponse(sigLen);
+            } catch (Exception e) {
+                return signError(e, "Error signing data");
+            }
+        case INS_SIGN_INIT:
+            if (!canSign(0)) {
+                return error(RESPONSE_SECURITY_STATUS_NOT_SATISFIED,
+                        "Need to authenticate first");
+            }
+
+            rejected = selectAlgorithm(false);
+            if (rejected != null) {
+                return rejected;
+            }
+
+            if (!canSign(1)) {
+                return error(RESPONSE_SECURITY_STATUS_NOT_SATISFIED,
+                        "Need to authenticate first");
+            }
+
+            try {
+                backend.signInit(slot, signAlgorithm);
+                signing = true;
+                signedLength = 0;
+                lastMessage = "SIGN INIT success";
+
+                return RESPONSE_SUCCESS;
+            } catch (Exception e) {
+                return signError(e, "Error starting signature");
+            }
+        case INS_SIGN_UPDATE:
+        case INS_SIGN_FINAL:
+            if (!signing) {
+                return error(RESPONSE_CONDITIONS_NOT_SATISFIED,
+                        "SIGN INIT expected");
+            }
+
+            if (ins == INS_SIGN_UPDATE && dataLength == 0) {
+                return error(RESPONSE_WRONG_LENGTH,
+                        "Expecting command with data");
+            }
+
+            if (signedLength + dataLength > MAX_SIGN_STREAM_LENGTH) {
+                signing = false;
+                return error(RESPONSE_WRONG_LENGTH, "Signed data too long");
+            }
+
+            try {
+                if (dataLength > 0) {
+                    backend.signUpdate(dataBuffer, dataOffset, dataLength);
+                    signedLength += dataLength;
+                }
+                if (ins == INS_SIGN_UPDATE) {
+                    return RESPONSE_SUCCESS;
+                }
+
+                signing = false;
+                int sigLen = backend.signFinal(responseData, 0);
+                signed(1);
+                lastMessage = "SIGN FINAL success";
+
+                return dataResponse(sigLen);
+            } catch (Exception e) {
+                signing = false;
+                lastError = e;
+
+                return error(RESPONSE_UNKNOWN, "Error signing data");
+            }
+        case INS_SIGN_BATCH:
+            if (dataLength == 0) {
+                return error(RESPONSE_WRONG_LENGTH,
+                        "Expecting command with data");
+            }
+
+            if (!canSign(0)) {
+                return error(RESPONSE_SECURITY_STATUS_NOT_SATISFIED,
+                        "Need to authenticate first");
+            }
+
+            rejected = selectAlgorithm(true);
+            if (rejected != null) {
+                return rejected;
+            }
+
+            int items = countBatchItems();
+            if (items < 0) {
+                return error(RESPONSE_WRONG_LENGTH, "Invalid batch item");
+            }
+            // before signing any of them
+            if (items * (2 + MAX_SIGNATURE_LENGTH) > responseData.length) {
+                return error(RESPONSE_WRONG_LENGTH, "Batch too large");
+            }
+
+            if (!canSign(items)) {
+                return error(RESPONSE_SECURITY_STATUS_NOT_SATISFIED,
+                        "Need to authenticate first");
+            }
+
+            return signBatch();
+        case INS_READ_BINARY:
+            if (dataLength != 0) {
+                return error(RESPONSE_WRONG_LENGTH, "Unexpected command data");
+            }
+
+            return readBinary();
+        default:
+            return error(RESPONSE_INS_NOT_SUPPORTED, "Unsupported instruction");
+        }
+    }
+
+    private byte[] signBatch() {
+        int offset = dataOffset;
+        int end = dataOffset + dataLength;
+        int outOffset = 0;
+        int count = 0;
+        try {
+            while (offset < end) {
+                if (end - offset < 2) {
+                    return error(RESPONSE_WRONG_LENGTH, "Invalid batch item");
+                }
+                int len = ((dataBuffer[offset] & 0xff) << 8)
+                        | (dataBuffer[offset + 1] & 0xff);
+                offset += 2;
+                if (len == 0 || len > end - offset) {
+                    return error(RESPONSE_WRONG_LENGTH, "Invalid batch item");
+                }
+
+                int sigLen = signItem(dataBuffer, offset, len,
+                        signatureBuffer, 0);
+                if (sigLen < 0) {
+                    return error(RESPONSE_WRONG_LENGTH, "Invalid digest length");
+                }
+                responseData[outOffset++] = (byte) (sigLen >> 8);
+                responseData[outOffset++] = (byte) sigLen;
+                System.arraycopy(signatureBuffer, 0, responseData, outOffset,
+                        sigLen);
+                outOffset += sigLen;
+                offset += len;
+                count++;
+            }
+        } catch (Exception e) {
+            return signError(e, "Error signing batch item " + count);
+        } finally {
+            signed(count);
+        }
+        lastMessage = "SIGN BATCH success";
+
+        return dataResponse(outOffset);
+    }
+
+    private byte[] resumeGrace() {
+        int tokenLength = 0;
+        if (pinGrace != null) {
+            tokenLength = pinGrace.resume(dataBuffer, dataOffset, dataLength,
+                    responseData, 0);
+        }
+        if (tokenLength == 0) {
+            graceHolder = false;
+            return error(RESPONSE_SECURITY_STATUS_NOT_SATISFIED,
+                    "PIN grace expired");
+        }
+        authenticated = true;
+        graceHolder = true;
+        graceResumed = true;
+        lastMessage = "PIN grace resumed";
+
+        return dataResponse(tokenLength);
+    }
+
+    // Number of items in the SIGN BATCH data, -1 if it is malformed or,
+    // when pre-hashed, an item isn't a digest of the selected hash.
+    private int countBatchItems() {
+        int offset = dataOffset;
+        int end = dataOffset + dataLength;
+        int count = 0;
+        while (offset < end) {
+            if (end - offset < 2) {
+                return -1;
+            }
+            int len = ((dataBuffer[offset] & 0xff) << 8)
+                    | (dataBuffer[offset + 1] & 0xff);
+            offset += 2;
+            if (len == 0 || len > end - offset
+                    || (prehash != 0 && len != DIGEST_LENGTHS[prehash])) {
+                return -1;
+            }
+            offset += len;
+            count++;
+        }
+
+        return count;
+    }
+
+    // Whether the session may make count signatures. One resumed with a
+    // grace token takes them from the grace up front, and loses its
+    // authentication when the grace can't cover them.
+    private boolean canSign(int count) {
+        if (graceResumed
+                && (pinGrace == null || !pinGrace.reserveSignatures(count))) {
+            authenticated = false;
+            graceHolder = false;
+            graceResumed = false;
+        }
+
+        return authenticated;
+    }
+
+    private void signed(int count) {
+        // resumed sessions have reserved theirs
+        if (graceHolder && !graceResumed && count > 0 && pinGrace != null) {
+            pinGrace.recordSignatures(count);
+        }
+    }
+
+    private byte[] selectResponse() {
+        int offset = 0;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            byte[] chain = null;
+            try {
+                chain = backend.getCertificateChain(i);
+            } catch (Exception e) {
+                // still selectable, the reader just can't use its cache
+                lastError = e;
+                lastMessage = "Error reading certificate chain " + i;
+            }
+            if (chain != null && chain != hashedChains[i]) {
+                chainHashes[i] = getCertificateHash(chain);
+                hashedChains[i] = chain;
+            }
+            if (chain == null) {
+                Arrays.fill(responseData, offset, offset
+                        + CERTIFICATE_HASH_LENGTH, (byte) 0);
+            } else {
+                System.arraycopy(chainHashes[i], 0, responseData, offset,
+                        CERTIFICATE_HASH_LENGTH);
+            }
+            offset += CERTIFICATE_HASH_LENGTH;
+        }
+
+        return dataResponse(offset);
+    }
+
+    private byte[] readBinary() {
+        int offset;
+        if ((p1 & P1_SFI) != 0) {
+            int sfi = p1 & SFI_MASK;
+            if ((p1 & ~(P1_SFI | SFI_MASK)) != 0) {
+                return error(RESPONSE_INCORRECT_P1P2, "Unsupported P1");
+            }
+            if (sfi < 1 || sfi > SLOT_COUNT) {
+                return error(RESPONSE_FILE_NOT_FOUND, "No such file: " + sfi);
+            }
+            currentFile = sfi - 1;
+            offset = p2 & 0xff;
+        } else {
+            offset = (p1 << 8) | (p2 & 0xff);
+        }
+
+        byte[] chain;
+        try {
+            chain = backend.getCertificateChain(currentFile);
+        } catch (Exception e) {
+            lastError = e;
+
+            return error(RESPONSE_UNKNOWN, "Error reading certificate chain");
+        }
+        if (chain == null) {
+            return error(RESPONSE_FILE_NOT_FOUND, "No certificate chain in slot "
+                    + currentFile);
+        }
+        if (offset > chain.length) {
+            return error(RESPONSE_WRONG_P1P2, "Offset beyond end of file");
+        }
+
+        // Le 0 or absent means as much as fits
+        int le = expectedLength == 0 ? DEFAULT_MAX_RESPONSE_LENGTH
+                : expectedLength;
+        int available = chain.length - offset;
+        int len = Math.min(Math.min(le, maxResponseLength), available);
+        System.arraycopy(chain, offset, responseData, 0, len);
+        responseOffset = 0;
+        responseRemaining = len;
+        byte[] apdu = nextChunk(len);
+        // not when the link limit cut the chunk short
+        if (len == available && available < le) {
+            apdu[len] = (byte) (SW_END_OF_FILE >> 8);
+            apdu[len + 1] = (byte) SW_END_OF_FILE;
+        }
+
+        return apdu;
+    }
+
+    // Sets slot from P2 and signAlgorithm, prehash and ecKey from P1.
+    // Returns the error response if the combination isn't supported, null
+    // otherwise.
+    private byte[] selectAlgorithm(boolean allowPrehashed) {
+        int hash = p1 & P1_HASH_MASK;
+        boolean prehashed = (p1 & P1_PREHASHED) != 0;
+        if (p2 < 0 || p2 >= SLOT_COUNT || (p1 & P1_RESERVED) != 0
+                || hash > HASH_SHA512
+                || (prehashed && (!allowPrehashed || hash == HASH_SHA1))) {
+            return error(RESPONSE_INCORRECT_P1P2, "Unsupported P1/P2");
+        }
+
+        slot = p2;
+        String keyAlgorithm;
+        try {
+            keyAlgorithm = backend.getKeyAlgorithm(slot);
+        } catch (Exception e) {
+            lastError = e;
+
+            return error(RESPONSE_UNKNOWN, "Error reading key");
+        }
+        if (keyAlgorithm == null) {
+            return error(RESPONSE_REFERENCED_DATA_NOT_FOUND, "No key in slot "
+                    + slot);
+        }
+        ecKey = KEY_ALGORITHM_EC.equals(keyAlgorithm);
+        int scheme = p1 & P1_SCHEME_MASK;
+        if (scheme == SCHEME_KEY_DEFAULT) {
+            scheme = ecKey ? SCHEME_ECDSA : SCHEME_PKCS1;
+        }
+        if ((scheme == SCHEME_ECDSA) != ecKey) {
+            return error(RESPONSE_FUNC_NOT_SUPPORTED,
+                    "Signature scheme doesn't match the key");
+        }
+
+        if (!prehashed) {
+            signAlgorithm = SIGNATURE_ALGORITHMS[scheme >> 4][hash];
+            prehash = 0;
+
+            return null;
+        }
+        if (scheme == SCHEME_PSS) {
+            return error(RESPONSE_FUNC_NOT_SUPPORTED,
+                    "PSS can't sign a digest");
+        }
+        signAlgorithm = ecKey ? NONE_WITH_ECDSA : NONE_WITH_RSA;
+        prehash = hash;
+
+        return null;
+    }
+
+    // Signs one SIGN or SIGN BATCH item as selected by P1. Returns -1 if a
+    // digest has the wrong length.
+    private int signItem(byte[] buff, int offset, int length, byte[] out,
+            int outOffset) throws Exception {
+        if (prehash == 0) {
+            return backend.sign(slot, signAlgorithm, buff, offset, length,
+                    out, outOffset);
+        }
+
+        if (length != DIGEST_LENGTHS[prehash]) {
+            return -1;
+        }
+        if (ecKey) {
+            return backend.sign(slot, signAlgorithm, buff, offset, length,
+                    out, outOffset);
+        }
+        byte[] prefix = DIGEST_INFO_PREFIXES[prehash];
+        System.arraycopy(prefix, 0, digestInfoBuffer, 0, prefix.length);
+        System.arraycopy(buff, offset, digestInfoBuffer, prefix.length, length);
+
+        return backend.sign(slot, signAlgorithm, digestInfoBuffer, 0,
+                prefix.length + length, out, outOffset);
+    }
+
+    private byte[] signError(Exception e, String message) {
+        lastError = e;
+        // the provider doesn't do this algorithm, e.g. PSS on older devices
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof NoSuchAlgorithmException
+                    || t instanceof InvalidAlgorithmParameterException) {
+                return error(RESPONSE_FUNC_NOT_SUPPORTED,
+                        "Unsupported signature algorithm " + signAlgorithm);
+            }
+        }
+
+        return error(RESPONSE_UNKNOWN, message);
+    }
+
+    // Returns the response to an intermediate command of a chain, or null
+    // when the chain is complete and the accumulated data is ready in
+    // dataBuffer.
+    private byte[] chain(byte ins, boolean more) {
+        if (chainLength > 0 && ins != chainIns) {
+            chainLength = 0;
+            return error(RESPONSE_LAST_COMMAND_EXPECTED,
+                    "Chained command INS mismatch");
+        }
+
+        // don't buffer data that can't be signed, signatures are only
+        // reserved when the chain is complete
+        if ((ins == INS_SIGN_DATA || ins == INS_SIGN_BATCH
+                || ins == INS_SIGN_INIT) && !canSign(0)) {
+            chainLength = 0;
+            return error(RESPONSE_SECURITY_STATUS_NOT_SATISFIED,
+                    "Need to authenticate first");
+        }
+        // SIGN INIT has already checked
+        if ((ins == INS_SIGN_UPDATE || ins == INS_SIGN_FINAL) && !signing) {
+            chainLength = 0;
+            return error(RESPONSE_CONDITIONS_NOT_SATISFIED,
+                    "SIGN INIT expected");
+        }
+
+        if (chainLength + dataLength > chainBuffer.length) {
+            chainLength = 0;
+            return error(RESPONSE_WRONG_LENGTH, "Chained data too long");
+        }
+        System.arraycopy(dataBuffer, dataOffset, chainBuffer, chainLength,
+                dataLength);
+        chainLength += dataLength;
+        chainIns = ins;
+
+        if (more) {
+            return RESPONSE_SUCCESS;
+        }
+
+        dataBuffer = chainBuffer;
+        dataOffset = 0;
+        dataLength = chainLength;
+
+        return null;
+    }
+
+    private byte[] getResponse(byte[] cmd) {
+        if (responseRemaining == 0) {
+            return error(RESPONSE_CONDITIONS_NOT_SATISFIED,
+                    "No response data available");
+        }
+
+        // P3 is Le in a case 2 short APDU, 0 meaning 256
+        int le = 0;
+        if (cmd.length == OFFSET_LC + 1) {
+            le = cmd[OFFSET_LC] & 0xff;
+        }
+        if (le == 0) {
+            le = 256;
+        }
+
+        return nextChunk(le);
+    }
+
+    /**
+     * Whether the command may take long enough that front ends should
+     * process it off the calling thread.
+     */
+    public static boolean isLongRunning(byte[] cmd) {
+        if (cmd == null || cmd.length <= OFFSET_INS
+                || (cmd[OFFSET_CLA] & ~CLA_CHAINING) != PKI_APPLET_CLA) {
+            return false;
+        }
+
+        switch (cmd[OFFSET_INS]) {
+        case INS_SIGN_DATA:
+        case INS_SIGN_INIT:
+        case INS_SIGN_UPDATE:
+        case INS_SIGN_FINAL:
+        case INS_SIGN_BATCH:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Signature algorithm of SIGN without pre-hashing and of multi-part
+     * signatures, for a <code>keyAlgorithm</code> key.
+     */
+    public static String getSignatureAlgorithm(String keyAlgorithm) {
+        return KEY_ALGORITHM_EC.equals(keyAlgorithm) ? SHA1_WITH_ECDSA
+                : SHA1_WITH_RSA;
+    }
+
+    /**
+     * All signature algorithms SIGN can select for a <code>keyAlgorithm</code>
+     * key, e.g. to look them up ahead of time.
+     */
+    public static String[] getSignatureAlgorithms(String keyAlgorithm) {
+        if (KEY_ALGORITHM_EC.equals(keyAlgorithm)) {
+            String[] ecdsa = SIGNATURE_ALGORITHMS[SCHEME_ECDSA >> 4];
+            String[] result = new String[ecdsa.length + 1];
+            System.arraycopy(ecdsa, 0, result, 0, ecdsa.length);
+            result[ecdsa.length] = NONE_WITH_ECDSA;
+
+            return result;
+        }
+
+        String[] pkcs1 = SIGNATURE_ALGORITHMS[SCHEME_PKCS1 >> 4];
+        String[] pss = SIGNATURE_ALGORITHMS[SCHEME_PSS >> 4];
+        String[] result = new String[pkcs1.length + pss.length + 1];
+        System.arraycopy(pkcs1, 0, result, 0, pkcs1.length);
+        System.arraycopy(pss, 0, result, pkcs1.length, pss.length);
+        result[result.length - 1] = NONE_WITH_RSA;
+
+        return result;
+    }
+
+    /**
+     * Encodes a certificate chain, leaf first, for
+     * {@link Backend#getCertificateChain(int)}.
+     */
+    public static byte[] encodeCertificateChain(X509Certificate[] chain)
+            throws CertificateException {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+
+        return cf.generateCertPath(Arrays.asList(chain)).getEncoded(
+                CERTIFICATE_CHAIN_ENCODING);
+    }
+
+    /**
+     * Short hash identifying a certificate chain, as returned by SELECT.
+     */
+    public static byte[] getCertificateHash(byte[] chain) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(chain);
+
+            return Arrays.copyOf(hash, CERTIFICATE_HASH_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns a Signature for <code>algorithm</code>. Providers that don't
+     * know <code>SHAxxxwithRSA/PSS</code> get RSASSA-PSS with the same
+     * parameters: MGF1 with the message hash and a salt as long as the
+     * hash.
+     */
+    public static Signature newSignature(String algorithm)
+            throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+        try {
+            return Signature.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            if (!algorithm.endsWith(PSS_SUFFIX)) {
+                throw e;
+            }
+        }
+
+        int hash = 0;
+        String[] pss = SIGNATURE_ALGORITHMS[SCHEME_PSS >> 4];
+        while (hash < pss.length && !pss[hash].equals(algorithm)) {
+            hash++;
+        }
+        if (hash == pss.length) {
+            throw new NoSuchAlgorithmException(algorithm);
+        }
+        String hashAlgorithm = HASH_ALGORITHMS[hash];
+        Signature result = Signature.getInstance(RSASSA_PSS);
+        result.setParameter(new PSSParameterSpec(hashAlgorithm, "MGF1",
+                new MGF1ParameterSpec(hashAlgorithm), DIGEST_LENGTHS[hash], 1));
+
+        return result;
+    }
+
+    /**
+     * Returns a status word only response, preallocated for the status words
+     * the engine itself uses. Must not be modified.
+     */
+    public static byte[] statusResponse(short sw) {
+        switch (sw) {
+        case SW_INCORRECT_P1P2:
+            return RESPONSE_INCORRECT_P1P2;
+        case SW_FUNC_NOT_SUPPORTED:
+            return RESPONSE_FUNC_NOT_SUPPORTED;
+        case SW_REFERENCED_DATA_NOT_FOUND:
+            return RESPONSE_REFERENCED_DATA_NOT_FOUND;
+        case SW_WRONG_P1P2:
+            return RESPONSE_WRONG_P1P2;
+        case SW_SUCCESS:
+            return RESPONSE_SUCCESS;
+        case FILE_NOT_FOUND:
+            return RESPONSE_FILE_NOT_FOUND;
+        case SW_UNKNOWN:
+            return RESPONSE_UNKNOWN;
+        case SW_CONDITIONS_NOT_SATISFIED:
+            return RESPONSE_CONDITIONS_NOT_SATISFIED;
+        case SW_CLA_NOT_SUPPORTED:
+            return RESPONSE_CLA_NOT_SUPPORTED;
+        case SW_INS_NOT_SUPPORTED:
+            return RESPONSE_INS_NOT_SUPPORTED;
+        case SW_WRONG_LENGTH:
+            return RESPONSE_WRONG_LENGTH;
+        case SW_SECURITY_STATUS_NOT_SATISFIED:
+            return RESPONSE_SECURITY_STATUS_NOT_SATISFIED;
+        case SW_LAST_COMMAND_EXPECTED:
+            return RESPONSE_LAST_COMMAND_EXPECTED;
+        default:
+            return toBytes(sw);
+        }
+    }
+
+    public boolean isSelected() {
+        return selected;
+    }
+
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    /**
+     * Message describing the outcome of the last command, or
+     * <code>null</code>.
+     */
+    public String getLastMessage() {
+        return lastMessage;
+    }
+
+    /**
+     * Exception thrown while processing the last command, or
+     * <code>null</code>.
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    public void reset() {
+        selected = false;
+        currentFile = SLOT_AUTHENTICATION;
+        authenticated = false;
+        if (graceHolder && pinGrace != null) {
+            // starts the grace period
+            pinGrace.deactivated();
+            graceHolder = false;
+        }
+        graceResumed = false;
+        signing = false;
+        resetTransfers();
+    }
+
+    private void resetTransfers() {
+        chainLength = 0;
+        responseRemaining = 0;
+    }
+
+    private byte[] error(byte[] response, String message) {
+        lastMessage = message;
+
+        return response;
+    }
+
+    // Locates the command data, short or extended length. Returns false if
+    // Lc doesn't match the command length.
+    private boolean parseData(byte[] cmd) {
+        dataBuffer = cmd;
+        dataOffset = OFFSET_CDATA;
+        dataLength = 0;
+        expectedLength = 0;
+
+        // case 1 or case 2 short (Le only)
+        if (cmd.length <= OFFSET_CDATA) {
+            if (cmd.length == OFFSET_CDATA) {
+                expectedLength = cmd[OFFSET_LC] & 0xff;
+            }
+            return true;
+        }
+
+        int lc = cmd[OFFSET_LC] & 0xff;
+        if (lc == 0) {
+            // case 2 extended: 00 Le1 Le2
+            if (cmd.length == OFFSET_EXT_CDATA) {
+                expectedLength = ((cmd[OFFSET_LC + 1] & 0xff) << 8)
+                        | (cmd[OFFSET_LC + 2] & 0xff);
+                return true;
+            }
+            if (cmd.length < OFFSET_EXT_CDATA) {
+                return false;
+            }
+
+            // extended length: 00 Lc1 Lc2
+            lc = ((cmd[OFFSET_LC + 1] & 0xff) << 8)
+                    | (cmd[OFFSET_LC + 2] & 0xff);
+            if (lc == 0) {
+                return false;
+            }
+            dataOffset = OFFSET_EXT_CDATA;
+        }
+
+        // followed by nothing, or by Le (one byte short, two extended)
+        int rest = cmd.length - dataOffset - lc;
+        if (rest < 0 || rest > (dataOffset == OFFSET_CDATA ? 1 : 2)) {
+            return false;
+        }
+        dataLength = lc;
+        if (rest == 1) {
+            expectedLength = cmd[cmd.length - 1] & 0xff;
+        } else if (rest == 2) {
+            expectedLength = ((cmd[cmd.length - 2] & 0xff) << 8)
+                    | (cmd[cmd.length - 1] & 0xff);
+        }
+
+        return true;
+    }
+
+    private byte[] dataResponse(int length) {
+        responseOffset = 0;
+        responseRemaining = length;
+
+        return nextChunk(maxResponseLength);
+    }
+
+    private byte[] nextChunk(int le) {
+        int len = Math.min(Math.min(le, maxResponseLength), responseRemaining);
+        int remaining = responseRemaining - len;
+
+        byte[] apdu = responseApdus[len];
+        if (apdu == null) {
+            apdu = new byte[len + 2];
+            responseApdus[len] = apdu;
+        }
+
+        System.arraycopy(responseData, responseOffset, apdu, 0, len);
+        if (remaining == 0) {
+            apdu[len] = RESPONSE_SUCCESS[0];
+            apdu[len + 1] = RESPONSE_SUCCESS[1];
+        } else {
+            // 61xx, xx = 00 if 256 or more bytes are left
+            apdu[len] = (byte) (SW_BYTES_REMAINING_00 >> 8);
+            apdu[len + 1] = remaining > 0xff ? 0 : (byte) remaining;
+        }
+        responseOffset += len;
+        responseRemaining = remaining;
+
+        return apdu;
+    }
+
+    private static boolean isSelectPkiApplet(byte[] cmd) {
+        if (cmd.length != SELECT_PKI_APPLET_CMD.length) {
+            return false;
+        }
+        for (int i = 0; i < cmd.length; i++) {
+            if (cmd[i] != SELECT_PKI_APPLET_CMD[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    static byte[] toBytes(short s) {
+        return new byte[] { (byte) ((s & 0xff00) >> 8), (byte) (s & 0xff) };
+    }
+}
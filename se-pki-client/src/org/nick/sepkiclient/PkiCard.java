@@ -0,0 +1,521 @@
+package org.nick.sepkiclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * PKI applet commands over a card channel. Takes care of command chaining
+ * (or extended length) for long data and of collecting responses the card
+ * returns in several chunks.
+ */
+@SuppressWarnings("restriction")
+public class PkiCard {
+
+    // AID: A0 00 00 00 01 01 01 (probably not unique...)
+    static final byte[] SELECT_PKI_APPLET_CMD = { 0x00, (byte) 0xA4, 0x04,
+            0x00, 0x06, (byte) 0xA0, 0x00, 0x00, 0x00, 0x01, 0x01, 0x01 };
+
+    static final short SW_SUCCESS = (short) 0x9000;
+    static final short SW_END_OF_FILE = 0x6282;
+    static final short SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+    private static final int SW1_BYTES_REMAINING = 0x61;
+
+    private static final int CLA_CHAINING = 0x10;
+    private static final int INS_GET_RESPONSE = 0xC0;
+    private static final int INS_READ_BINARY = 0xB0;
+    // READ BINARY P1 with a short file identifier
+    private static final int P1_SFI = 0x80;
+    private static final int READ_CHUNK = 256;
+    private static final int MAX_SHORT_LC = 255;
+
+    final static byte PKI_APPLET_CLA = (byte) 0x80;
+    final static byte INS_VERIFY_PIN = (byte) 0x01;
+    final static byte INS_SIGN = (byte) 0x02;
+    final static byte INS_SIGN_INIT = (byte) 0x03;
+    final static byte INS_SIGN_UPDATE = (byte) 0x04;
+    final static byte INS_SIGN_FINAL = (byte) 0x05;
+    final static byte INS_SIGN_BATCH = (byte) 0x06;
+
+    // VERIFY PIN P1
+    private final static int P1_REQUEST_GRACE = 0x01;
+    private final static int P1_RESUME_GRACE = 0x02;
+
+    // SIGN and SIGN BATCH P1 for pre-hashed data
+    private final static int P1_PREHASHED = 0x80;
+    private static final String[] PREHASH_ALGORITHMS = { null, "SHA-256",
+            "SHA-384", "SHA-512" };
+
+    // parts of JCA signature algorithm names, indexed by the hash (low
+    // nibble of P1) and scheme (bits 4-5) they select
+    private static final String[] SIGN_HASHES = { "SHA1", "SHA256", "SHA384",
+            "SHA512" };
+    private static final String[] SIGN_SCHEMES = { null, "withRSA",
+            "withRSA/PSS", "withECDSA" };
+
+    // file data sent per SIGN UPDATE
+    private static final int SHORT_UPDATE_CHUNK = MAX_SHORT_LC;
+    private static final int EXTENDED_UPDATE_CHUNK = 4096;
+
+    private final CardChannel channel;
+    private final boolean extendedLength;
+    private boolean logging = false;
+    // P2 of the sign commands
+    private int keySlot = PkiAppletEngine.SLOT_AUTHENTICATION;
+    // returned by SELECT, a short hash per slot
+    private byte[] certificateHashes;
+
+    private final ApduTrace trace = ApduTrace.getInstance();
+
+    /**
+     * @param extendedLength
+     *            send long data as a single extended length APDU instead of
+     *            chaining short ones. Not all readers support it.
+     */
+    public PkiCard(CardChannel channel, boolean extendedLength) {
+        this.channel = channel;
+        this.extendedLength = extendedLength;
+    }
+
+    /**
+     * Print each APDU to the console. Formatting is slow, so prefer
+     * {@link ApduTrace} when measuring performance.
+     */
+    public void setLogging(boolean logging) {
+        this.logging = logging;
+    }
+
+    public CardChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Selects the card key used by the sign methods, one of the
+     * <code>PkiAppletEngine.SLOT_*</code> constants. Defaults to the
+     * authentication key.
+     */
+    public void setKeySlot(int keySlot) {
+        if (keySlot < 0 || keySlot >= PkiAppletEngine.SLOT_COUNT) {
+            throw new IllegalArgumentException("Invalid key slot: " + keySlot);
+        }
+        this.keySlot = keySlot;
+    }
+
+    public int getKeySlot() {
+        return keySlot;
+    }
+
+    public void select() throws CardException {
+        ResponseAPDU response = transmit(new CommandAPDU(SELECT_PKI_APPLET_CMD));
+        checkSW(response);
+        certificateHashes = response.getData();
+    }
+
+    /**
+     * Short hash of the certificate chain of the current key slot, as
+     * returned by the last SELECT. <code>null</code> if the card didn't
+     * return one, or hasn't loaded the chain yet.
+     */
+    public byte[] getCertificateHash() {
+        int length = PkiAppletEngine.CERTIFICATE_HASH_LENGTH;
+        int offset = keySlot * length;
+        if (certificateHashes == null
+                || certificateHashes.length < offset + length) {
+            return null;
+        }
+
+        byte[] hash = Arrays.copyOfRange(certificateHashes, offset, offset
+                + length);
+        for (byte b : hash) {
+            if (b != 0) {
+                return hash;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads the PkiPath encoded certificate chain of the current key slot
+     * with READ BINARY, one chunk at a time. Doesn't need the PIN.
+     */
+    public byte[] readCertificateChain() throws CardException {
+        ByteArrayOutputStream chain = new ByteArrayOutputStream();
+        // the first read selects the file, the rest continue at an offset
+        ResponseAPDU response = transmit(new CommandAPDU(0x00,
+                INS_READ_BINARY, P1_SFI | (keySlot + 1), 0x0, READ_CHUNK));
+        while (true) {
+            int sw = response.getSW();
+            if (sw != (SW_SUCCESS & 0xffff) && sw != SW_END_OF_FILE) {
+                throw new PkiCardException(sw);
+            }
+            chain.write(response.getData(), 0, response.getNr());
+            if (sw == SW_END_OF_FILE) {
+                return chain.toByteArray();
+            }
+
+            int offset = chain.size();
+            if (response.getNr() == 0
+                    || offset > PkiAppletEngine.MAX_CERTIFICATE_CHAIN_LENGTH) {
+                throw new CardException("Invalid certificate chain length");
+            }
+            response = transmit(new CommandAPDU(0x00, INS_READ_BINARY,
+                    offset >> 8, offset & 0xff, READ_CHUNK));
+        }
+    }
+
+    public void verifyPin(String pin) throws CardException {
+        checkSW(transmit(PKI_APPLET_CLA, INS_VERIFY_PIN, 0x0, 0x0,
+                asciiBytes(pin)));
+    }
+
+    /**
+     * Verifies the PIN and asks for a PIN grace token, which can
+     * authenticate the next connection to this card with
+     * {@link #resumePin(byte[])} if it is lost.
+     *
+     * @return the token, or <code>null</code> if the card doesn't grant PIN
+     *         grace
+     */
+    public byte[] verifyPinWithGrace(String pin) throws CardException {
+        ResponseAPDU response = transmit(PKI_APPLET_CLA, INS_VERIFY_PIN,
+                P1_REQUEST_GRACE, 0x0, asciiBytes(pin));
+        checkSW(response);
+
+        return response.getNr() == 0 ? null : response.getData();
+    }
+
+    /**
+     * Authenticates with a PIN grace token instead of the PIN.
+     *
+     * @return the token to use next time, or <code>null</code> if the grace
+     *         has ended and the PIN is needed
+     */
+    public byte[] resumePin(byte[] token) throws CardException {
+        ResponseAPDU response = transmit(PKI_APPLET_CLA, INS_VERIFY_PIN,
+                P1_RESUME_GRACE, 0x0, token);
+        if (response.getSW() == SW_SECURITY_STATUS_NOT_SATISFIED) {
+            return null;
+        }
+        checkSW(response);
+
+        return response.getData();
+    }
+
+    public byte[] sign(byte[] data) throws CardException {
+        return sign(data, null);
+    }
+
+    /**
+     * Signs <code>data</code> with <code>signatureAlgorithm</code>, e.g.
+     * SHA256withRSA, SHA256withRSA/PSS or SHA256withECDSA, which has to fit
+     * the card's key. <code>null</code> selects SHA-1 with the key's default
+     * scheme.
+     */
+    public byte[] sign(byte[] data, String signatureAlgorithm)
+            throws CardException {
+        ResponseAPDU response = transmit(PKI_APPLET_CLA, INS_SIGN,
+                signP1(signatureAlgorithm), keySlot, data);
+        checkSW(response);
+
+        return response.getData();
+    }
+
+    /**
+     * Signs a digest computed on the host. The card only wraps it in a
+     * DigestInfo (RSA) or signs it as is (EC), so the signature is the same
+     * as that of <code>SHAxxxwithRSA</code> or <code>SHAxxxwithECDSA</code>
+     * over the original data.
+     *
+     * @param hashAlgorithm
+     *            SHA-256, SHA-384 or SHA-512
+     */
+    public byte[] signDigest(String hashAlgorithm, byte[] digest)
+            throws CardException {
+        ResponseAPDU response = transmit(PKI_APPLET_CLA, INS_SIGN,
+                prehashP1(hashAlgorithm), keySlot, digest);
+        checkSW(response);
+
+        return response.getData();
+    }
+
+    /**
+     * Returns the JCA signature algorithm that verifies signatures over
+     * <code>hashAlgorithm</code> digests, e.g. SHA256withRSA for SHA-256.
+     */
+    public static String prehashSignatureAlgorithm(String hashAlgorithm) {
+        return prehashSignatureAlgorithm(hashAlgorithm,
+                PkiAppletEngine.KEY_ALGORITHM_RSA);
+    }
+
+    /**
+     * Like {@link #prehashSignatureAlgorithm(String)}, for a
+     * <code>keyAlgorithm</code> (RSA or EC) key, e.g. SHA256withECDSA.
+     */
+    public static String prehashSignatureAlgorithm(String hashAlgorithm,
+            String keyAlgorithm) {
+        prehashP1(hashAlgorithm);
+
+        return hashAlgorithm.replace("-", "")
+                + (PkiAppletEngine.KEY_ALGORITHM_EC.equals(keyAlgorithm) ? "withECDSA"
+                        : "withRSA");
+    }
+
+    /**
+     * Returns the JCA signature algorithm that verifies {@link #sign(byte[])}
+     * signatures made with a <code>keyAlgorithm</code> (RSA or EC) key.
+     */
+    public static String signatureAlgorithm(String keyAlgorithm) {
+        return PkiAppletEngine.getSignatureAlgorithm(keyAlgorithm);
+    }
+
+    static int signP1(String signatureAlgorithm) {
+        if (signatureAlgorithm == null) {
+            return 0;
+        }
+
+        int with = signatureAlgorithm.indexOf("with");
+        if (with > 0) {
+            String hash = signatureAlgorithm.substring(0, with);
+            String scheme = signatureAlgorithm.substring(with);
+            for (int h = 0; h < SIGN_HASHES.length; h++) {
+                if (!SIGN_HASHES[h].equalsIgnoreCase(hash)) {
+                    continue;
+                }
+                for (int s = 1; s < SIGN_SCHEMES.length; s++) {
+                    if (SIGN_SCHEMES[s].equalsIgnoreCase(scheme)) {
+                        return (s << 4) | h;
+                    }
+                }
+            }
+        }
+
+        throw new IllegalArgumentException("Unsupported signature algorithm: "
+                + signatureAlgorithm);
+    }
+
+    static int prehashP1(String hashAlgorithm) {
+        for (int i = 1; i < PREHASH_ALGORITHMS.length; i++) {
+            if (PREHASH_ALGORITHMS[i].equalsIgnoreCase(hashAlgorithm)) {
+                return P1_PREHASHED | i;
+            }
+        }
+
+        throw new IllegalArgumentException("Unsupported hash algorithm: "
+                + hashAlgorithm);
+    }
+
+    /**
+     * Signs a stream of any size on the card with SIGN INIT/UPDATE/FINAL,
+     * reading it one chunk at a time.
+     */
+    public byte[] sign(InputStream in) throws CardException, IOException {
+        return sign(in, null);
+    }
+
+    /**
+     * Like {@link #sign(InputStream)}, with <code>signatureAlgorithm</code>
+     * as in {@link #sign(byte[], String)}.
+     */
+    public byte[] sign(InputStream in, String signatureAlgorithm)
+            throws CardException, IOException {
+        checkSW(transmit(new CommandAPDU(PKI_APPLET_CLA, INS_SIGN_INIT,
+                signP1(signatureAlgorithm), keySlot)));
+
+        byte[] chunk = new byte[extendedLength ? EXTENDED_UPDATE_CHUNK
+                : SHORT_UPDATE_CHUNK];
+        int read;
+        while ((read = readFully(in, chunk)) > 0) {
+            checkSW(transmit(new CommandAPDU(PKI_APPLET_CLA, INS_SIGN_UPDATE,
+                    0x0, 0x0, chunk, 0, read)));
+        }
+
+        ResponseAPDU response = transmit(new CommandAPDU(PKI_APPLET_CLA,
+                INS_SIGN_FINAL, 0x0, 0x0, 256));
+        checkSW(response);
+
+        return response.getData();
+    }
+
+    public byte[] sign(File file) throws CardException, IOException {
+        return sign(file, null);
+    }
+
+    public byte[] sign(File file, String signatureAlgorithm)
+            throws CardException, IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return sign(in, signatureAlgorithm);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Signs all items with a single SIGN BATCH command.
+     */
+    public List<byte[]> signBatch(List<byte[]> items) throws CardException {
+        return signBatch(0x0, items);
+    }
+
+    /**
+     * Signs digests computed on the host with a single SIGN BATCH command.
+     */
+    public List<byte[]> signDigestBatch(String hashAlgorithm,
+            List<byte[]> digests) throws CardException {
+        return signBatch(prehashP1(hashAlgorithm), digests);
+    }
+
+    private List<byte[]> signBatch(int p1, List<byte[]> items)
+            throws CardException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (byte[] item : items) {
+            data.write(item.length >> 8);
+            data.write(item.length);
+            data.write(item, 0, item.length);
+        }
+        ResponseAPDU response = transmit(PKI_APPLET_CLA, INS_SIGN_BATCH, p1,
+                keySlot, data.toByteArray());
+        checkSW(response);
+
+        byte[] sigs = response.getData();
+        List<byte[]> result = new ArrayList<byte[]>(items.size());
+        int offset = 0;
+        while (offset + 2 <= sigs.length) {
+            int len = ((sigs[offset] & 0xff) << 8) | (sigs[offset + 1] & 0xff);
+            offset += 2;
+            if (len > sigs.length - offset) {
+                break;
+            }
+            byte[] sig = new byte[len];
+            System.arraycopy(sigs, offset, sig, 0, len);
+            result.add(sig);
+            offset += len;
+        }
+        if (result.size() != items.size() || offset != sigs.length) {
+            throw new CardException("Malformed SIGN BATCH response");
+        }
+
+        return result;
+    }
+
+    /**
+     * Sends a command, chaining it if the data doesn't fit in a short APDU
+     * (or using extended length if enabled), and collects a response that
+     * the card returns in several chunks.
+     */
+    public ResponseAPDU transmit(int cla, int ins, int p1, int p2, byte[] data)
+            throws CardException {
+        if (extendedLength || data.length <= MAX_SHORT_LC) {
+            return transmit(new CommandAPDU(cla, ins, p1, p2, data));
+        }
+
+        int offset = 0;
+        while (data.length - offset > MAX_SHORT_LC) {
+            CommandAPDU cmd = new CommandAPDU(cla | CLA_CHAINING, ins, p1, p2,
+                    data, offset, MAX_SHORT_LC);
+            ResponseAPDU response = transmit(cmd);
+            if (response.getSW() != (SW_SUCCESS & 0xffff)) {
+                return response;
+            }
+            offset += MAX_SHORT_LC;
+        }
+
+        return transmit(new CommandAPDU(cla, ins, p1, p2, data, offset,
+                data.length - offset));
+    }
+
+    public ResponseAPDU transmit(CommandAPDU cmd) throws CardException {
+        log(cmd);
+        ResponseAPDU response = channel.transmit(cmd);
+        log(response);
+
+        if (response.getSW1() != SW1_BYTES_REMAINING) {
+            return response;
+        }
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        do {
+            data.write(response.getData(), 0, response.getNr());
+            // SW2 is how much is left, 0 meaning 256 or more
+            int le = response.getSW2() == 0 ? 256 : response.getSW2();
+            CommandAPDU getResponse = new CommandAPDU(0x00, INS_GET_RESPONSE,
+                    0x0, 0x0, le);
+            log(getResponse);
+            response = channel.transmit(getResponse);
+            log(response);
+        } while (response.getSW1() == SW1_BYTES_REMAINING);
+        data.write(response.getData(), 0, response.getNr());
+        data.write(response.getSW1());
+        data.write(response.getSW2());
+
+        return new ResponseAPDU(data.toByteArray());
+    }
+
+    static void checkSW(ResponseAPDU response) throws PkiCardException {
+        if (response.getSW() != (SW_SUCCESS & 0xffff)) {
+            throw new PkiCardException(response.getSW());
+        }
+    }
+
+    private void log(CommandAPDU cmd) {
+        if (trace.isEnabled()) {
+            trace.record(ApduTrace.COMMAND, cmd.getBytes());
+        }
+        if (!logging) {
+            return;
+        }
+        System.out.printf("--> %s\n", Main.toHex(cmd.getBytes()),
+                cmd.getBytes().length);
+    }
+
+    private void log(ResponseAPDU response) {
+        if (trace.isEnabled()) {
+            trace.record(ApduTrace.RESPONSE, response.getBytes());
+        }
+        if (!logging) {
+            return;
+        }
+        String swStr = String.format("%02X", response.getSW());
+        byte[] data = response.getData();
+        if (data.length > 0) {
+            System.out.printf("<-- %s %s (%d)\n", Main.toHex(data), swStr,
+                    data.length);
+        } else {
+            System.out.printf("<-- %s\n", swStr);
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buff)
+            throws IOException {
+        int total = 0;
+        while (total < buff.length) {
+            int read = in.read(buff, total, buff.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+
+        return total;
+    }
+
+    private static byte[] asciiBytes(String str) {
+        try {
+            return str.getBytes("ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.nick.sepkiclient;
+
+import javax.smartcardio.CardException;
+
+/**
+ * The card returned an error status word.
+ */
+@SuppressWarnings("restriction")
+public class PkiCardException extends CardException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int sw;
+
+    public PkiCardException(int sw) {
+        super(String.format("Received error status: %02X", sw));
+        this.sw = sw;
+    }
+
+    public int getSW() {
+        return sw;
+    }
+}
@@ -0,0 +1,348 @@
+package org.nick.sepkiclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-running signing service. Keeps a {@link CardSession} open and serves
+ * sign requests from local processes over HTTP on the loopback interface:
+ *
+ * <pre>
+ * POST /sign                  body is the data to sign (SHA-1)
+ * POST /sign?algorithm=SHA256withRSA/PSS
+ *                             data signed with the given algorithm
+ * POST /sign?hash=SHA-256     body is a SHA-256 (SHA-384, SHA-512) digest
+ * GET  /status
+ * </pre>
+ *
+ * Requests need an <code>Authorization: Bearer &lt;token&gt;</code> header
+ * with the token written to a file only the current user can read when the
+ * daemon starts, so that other local users can't use the verified PIN.
+ * Requests with an <code>Origin</code> header, i.e., sent by a web page, are
+ * rejected. Data longer than a single SIGN command can take is streamed to
+ * the card with SIGN INIT/UPDATE/FINAL.
+ *
+ * The signature is returned as the response body. The card session is closed
+ * (and the card reset) after it has been idle for a while, and reopened on
+ * the next request.
+ */
+@SuppressWarnings("restriction")
+public class SigningDaemon {
+
+    private static final int PORT = Integer.getInteger(
+            "sepkiclient.daemon.port", 8989);
+
+    // seconds without requests after which the PIN needs to be verified
+    // again
+    private static final int IDLE_TIMEOUT = Integer.getInteger(
+            "sepkiclient.daemon.idleTimeout", 300);
+
+    // seconds to wait for the card when handling a request
+    private static final int CONNECT_TIMEOUT = Integer.getInteger(
+            "sepkiclient.daemon.connectTimeout", 30);
+
+    private static final boolean USE_EXTENDED_LENGTH = Boolean
+            .getBoolean("sepkiclient.extendedLength");
+
+    // card key to sign with: 0 authentication, 1 signing, 2 key management
+    private static final int KEY_SLOT = Integer.getInteger(
+            "sepkiclient.keySlot", PkiAppletEngine.SLOT_AUTHENTICATION);
+
+    // readable by the current user only, replaced on each start
+    private static final String TOKEN_FILE = System.getProperty(
+            "sepkiclient.daemon.tokenFile", new File(
+                    System.getProperty("user.home"),
+                    ".se-pki-client/daemon-token").getPath());
+
+    private static final int TOKEN_LENGTH = 32;
+    private static final String BEARER = "Bearer ";
+
+    private static final int MAX_REQUEST_LENGTH = 64 * 1024;
+
+    private final CardSession session;
+    private final long idleMillis;
+    private final byte[] token;
+
+    private HttpServer server;
+    private ScheduledExecutorService idleChecker;
+
+    /**
+     * @param token
+     *            what requests need to send as the bearer token
+     */
+    public SigningDaemon(CardSession session, long idleMillis, String token) {
+        this.session = session;
+        this.idleMillis = idleMillis;
+        this.token = token.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length == 0) {
+                System.out.println("se-pki-client-daemon <PIN>");
+                System.exit(1);
+            }
+
+            TerminalFactory factory = VirtualReaderProvider
+                    .getTerminalFactory();
+            CardTerminals terminals = factory.terminals();
+            if (terminals.list().isEmpty()) {
+                System.err
+                        .println("No smart card reders found. Connect reader and try again.");
+                System.exit(1);
+            }
+
+            System.out.println("Place phone/card on reader to start");
+            CardTerminal terminal = waitForTerminal(terminals);
+            CardSession session = new CardSession(terminal, args[0].trim(),
+                    USE_EXTENDED_LENGTH,
+                    TimeUnit.SECONDS.toMillis(CONNECT_TIMEOUT));
+            session.setKeySlot(KEY_SLOT);
+            // check the PIN before accepting requests
+            session.execute(new CardSession.Operation<Void>() {
+                @Override
+                public Void run(PkiCard card) {
+                    return null;
+                }
+            });
+
+            String token = createToken(new File(TOKEN_FILE).toPath());
+            SigningDaemon daemon = new SigningDaemon(session,
+                    TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT), token);
+            daemon.start(PORT);
+            System.out.printf("Using reader '%s', listening on port %d\n",
+                    terminal.getName(), PORT);
+            System.out.printf("Access token in %s\n", TOKEN_FILE);
+        } catch (PkiCardException e) {
+            System.err.printf("%s. Exiting.\n", e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getByName(null), port), 0);
+        server.createContext("/sign", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleSign(exchange);
+            }
+        });
+        server.createContext("/status", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleStatus(exchange);
+            }
+        });
+        // the card does one thing at a time anyway
+        server.setExecutor(Executors.newSingleThreadExecutor());
+        server.start();
+
+        idleChecker = Executors.newSingleThreadScheduledExecutor();
+        long period = Math.max(idleMillis / 10, 1000);
+        idleChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (session.closeIfIdle(idleMillis)) {
+                    System.out.println("Session idle, card reset");
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (idleChecker != null) {
+            idleChecker.shutdownNow();
+        }
+        session.close();
+    }
+
+    private void handleSign(HttpExchange exchange) throws IOException {
+        try {
+            if (!checkAccess(exchange)) {
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "POST data to sign");
+                return;
+            }
+
+            byte[] data = readBody(exchange.getRequestBody());
+            if (data == null) {
+                sendText(exchange, 413, "Request too large");
+                return;
+            }
+
+            String hash = getParameter(exchange, "hash");
+            byte[] signature;
+            try {
+                if (hash != null) {
+                    signature = session.signDigest(hash, data);
+                } else {
+                    signature = session.sign(data,
+                            getParameter(exchange, "algorithm"));
+                }
+            } catch (IllegalArgumentException e) {
+                sendText(exchange, 400, e.getMessage());
+                return;
+            } catch (PkiCardException e) {
+                sendText(exchange, 502, e.getMessage());
+                return;
+            } catch (CardException e) {
+                sendText(exchange, 503, e.getMessage());
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type",
+                    "application/octet-stream");
+            exchange.sendResponseHeaders(200, signature.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(signature);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        try {
+            if (!checkAccess(exchange)) {
+                return;
+            }
+            String status = String.format(
+                    "reader: %s\nsession open: %s\noperations: %d\nreconnects: %d\npin resumes: %d\n",
+                    session.getTerminal().getName(), session.isOpen(),
+                    session.getOperations(), session.getReconnects(),
+                    session.getPinResumes());
+            sendText(exchange, 200, status);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Sends an error response and returns false if the request isn't
+    // allowed.
+    private boolean checkAccess(HttpExchange exchange) throws IOException {
+        // browsers send it with cross-origin requests, local tools don't
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            sendText(exchange, 403, "Cross-origin requests not allowed");
+            return false;
+        }
+
+        String auth = exchange.getRequestHeaders().getFirst("Authorization");
+        if (auth == null || !auth.startsWith(BEARER)
+                || !MessageDigest.isEqual(token, auth.substring(BEARER.length())
+                        .trim().getBytes(StandardCharsets.US_ASCII))) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            sendText(exchange, 401, "Missing or wrong access token");
+            return false;
+        }
+
+        return true;
+    }
+
+    // Writes a new random token to file, readable by the current user only.
+    private static String createToken(Path file) throws IOException {
+        byte[] random = new byte[TOKEN_LENGTH];
+        new SecureRandom().nextBytes(random);
+        String token = Main.toHex(random);
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions
+                    .asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system
+            Files.createFile(file);
+            File f = file.toFile();
+            f.setReadable(false, false);
+            f.setWritable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(true, true);
+        }
+        Files.write(file, token.getBytes(StandardCharsets.US_ASCII));
+
+        return token;
+    }
+
+    private static String getParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String param : query.split("&")) {
+            int idx = param.indexOf('=');
+            if (idx > 0 && param.substring(0, idx).equals(name)) {
+                return param.substring(idx + 1);
+            }
+        }
+
+        return null;
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buff = new byte[4096];
+        int read;
+        while ((read = in.read(buff)) != -1) {
+            body.write(buff, 0, read);
+            if (body.size() > MAX_REQUEST_LENGTH) {
+                return null;
+            }
+        }
+
+        return body.toByteArray();
+    }
+
+    private static void sendText(HttpExchange exchange, int code, String text)
+            throws IOException {
+        byte[] body = text.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static CardTerminal waitForTerminal(CardTerminals terminals)
+            throws CardException {
+        while (true) {
+            for (CardTerminal ct : terminals
+                    .list(CardTerminals.State.CARD_PRESENT)) {
+
+                return ct;
+            }
+            terminals.waitForChange();
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package org.nick.sepkiclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+
+/**
+ * Spreads sign jobs across all connected cards. Each card has its own worker
+ * thread and job queue. New jobs go to the shortest queue of a healthy card,
+ * and a worker that runs out of jobs steals from the longest queue of
+ * another one. A job that fails because of a card (not because the card
+ * rejected it) is retried on a different card. A card that fails several
+ * times in a row is benched for a while, and its queued jobs are handed over
+ * to the other cards.
+ */
+@SuppressWarnings("restriction")
+public class SigningScheduler {
+
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 60 * 1000;
+    private static final long POLL_TIMEOUT = 100;
+
+    /**
+     * A pending signature.
+     */
+    public static class SignJob {
+        private final byte[] data;
+        private final String hashAlgorithm;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private int attempts;
+        private Worker lastWorker;
+        private volatile byte[] signature;
+        private volatile CardException error;
+        private volatile boolean cancelled;
+
+        SignJob(byte[] data, String hashAlgorithm) {
+            this.data = data;
+            this.hashAlgorithm = hashAlgorithm;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Waits for the signature.
+         *
+         * @throws CardException
+         *             if the job failed on all cards it was tried on, or the
+         *             card rejected it
+         * @throws CancellationException
+         *             if the scheduler was shut down before the job was
+         *             signed
+         */
+        public byte[] get() throws CardException, InterruptedException {
+            done.await();
+            if (cancelled) {
+                throw new CancellationException("Signing scheduler shut down");
+            }
+            if (error != null) {
+                throw error;
+            }
+
+            return signature;
+        }
+
+        void complete(byte[] signature) {
+            this.signature = signature;
+            done.countDown();
+        }
+
+        void fail(CardException error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        void cancel() {
+            cancelled = true;
+            done.countDown();
+        }
+    }
+
+    private class Worker implements Runnable {
+        final CardSession session;
+        final LinkedBlockingDeque<SignJob> queue = new LinkedBlockingDeque<SignJob>();
+
+        volatile boolean healthy = true;
+        long benchedUntil;
+        long backoff = MIN_BACKOFF;
+        int consecutiveFailures;
+        volatile long signed;
+        volatile long failed;
+
+        Worker(CardSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    if (!healthy) {
+                        long wait = benchedUntil - System.currentTimeMillis();
+                        if (wait > 0) {
+                            Thread.sleep(Math.min(wait, POLL_TIMEOUT));
+                            continue;
+                        }
+                    }
+
+                    SignJob job = queue.pollFirst();
+                    if (job == null) {
+                        job = steal(this);
+                    }
+                    if (job == null) {
+                        job = queue.pollFirst(POLL_TIMEOUT,
+                                TimeUnit.MILLISECONDS);
+                    }
+                    if (job != null) {
+                        process(job);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shutting down
+            } finally {
+                session.close();
+            }
+        }
+
+        private void process(SignJob job) {
+            job.attempts++;
+            job.lastWorker = this;
+            try {
+                byte[] signature;
+                if (job.hashAlgorithm != null) {
+                    signature = session.signDigest(job.hashAlgorithm,
+                            job.data);
+                } else {
+                    signature = session.sign(job.data);
+                }
+                succeeded();
+                job.complete(signature);
+            } catch (PkiCardException e) {
+                // the card is fine, the job isn't
+                succeeded();
+                job.fail(e);
+            } catch (CardException e) {
+                failed();
+                retry(job, e);
+            }
+        }
+
+        private void succeeded() {
+            signed++;
+            consecutiveFailures = 0;
+            backoff = MIN_BACKOFF;
+            healthy = true;
+        }
+
+        private void failed() {
+            failed++;
+            if (++consecutiveFailures < MAX_CONSECUTIVE_FAILURES) {
+                return;
+            }
+
+            healthy = false;
+            benchedUntil = System.currentTimeMillis() + backoff;
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            consecutiveFailures = 0;
+            SignJob job;
+            while ((job = queue.pollFirst()) != null) {
+                enqueue(job);
+            }
+        }
+    }
+
+    private final List<Worker> workers = new ArrayList<Worker>();
+    private final int maxAttempts;
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    private volatile boolean running;
+    // guarded by this
+    private boolean shutDown;
+
+    /**
+     * @param maxAttempts
+     *            how many cards to try a job on before giving up
+     */
+    public SigningScheduler(List<CardSession> sessions, int maxAttempts) {
+        if (sessions.isEmpty()) {
+            throw new IllegalArgumentException("No card sessions");
+        }
+        for (CardSession session : sessions) {
+            workers.add(new Worker(session));
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Creates a session for each terminal that has a card present.
+     */
+    public static List<CardSession> discover(CardTerminals terminals,
+            String pin, boolean extendedLength, long connectTimeout)
+            throws CardException {
+        List<CardSession> result = new ArrayList<CardSession>();
+        for (CardTerminal terminal : terminals
+                .list(CardTerminals.State.CARD_PRESENT)) {
+            result.add(new CardSession(terminal, pin, extendedLength,
+                    connectTimeout));
+        }
+
+        return result;
+    }
+
+    public synchronized void start() {
+        running = true;
+        for (Worker worker : workers) {
+            Thread t = new Thread(worker);
+            t.setName("Signing worker: "
+                    + worker.session.getTerminal().getName());
+            threads.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * Stops all workers and closes their card sessions. Jobs still queued,
+     * and jobs submitted afterwards, are cancelled.
+     */
+    public synchronized void shutdown() throws InterruptedException {
+        running = false;
+        shutDown = true;
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        threads.clear();
+
+        // including jobs the workers put back while stopping
+        for (Worker worker : workers) {
+            SignJob job;
+            while ((job = worker.queue.pollFirst()) != null) {
+                job.cancel();
+            }
+        }
+    }
+
+    public SignJob submit(byte[] data) {
+        return submit(data, null);
+    }
+
+    /**
+     * Queues a signature over <code>data</code>, or over a digest if
+     * <code>hashAlgorithm</code> is not <code>null</code>.
+     */
+    public synchronized SignJob submit(byte[] data, String hashAlgorithm) {
+        SignJob job = new SignJob(data, hashAlgorithm);
+        if (shutDown) {
+            job.cancel();
+        } else {
+            enqueue(job);
+        }
+
+        return job;
+    }
+
+    public int getCardCount() {
+        return workers.size();
+    }
+
+    /**
+     * One line per card with its health and counters.
+     */
+    public String getStatus() {
+        StringBuilder buff = new StringBuilder();
+        for (Worker worker : workers) {
+            buff.append(String.format(
+                    "%s: %s, signed %d, failed %d, queued %d\n",
+                    worker.session.getTerminal().getName(),
+                    worker.healthy ? "healthy" : "benched", worker.signed,
+                    worker.failed, worker.queue.size()));
+        }
+
+        return buff.toString();
+    }
+
+    private void enqueue(SignJob job) {
+        Worker target = null;
+        for (Worker worker : workers) {
+            if (!worker.healthy || worker == job.lastWorker) {
+                continue;
+            }
+            if (target == null || worker.queue.size() < target.queue.size()) {
+                target = worker;
+            }
+        }
+        if (target == null) {
+            // nothing better available, wait for the card that failed
+            target = job.lastWorker != null ? job.lastWorker : workers.get(0);
+        }
+        target.queue.addLast(job);
+    }
+
+    private void retry(SignJob job, CardException e) {
+        if (job.attempts >= maxAttempts) {
+            job.fail(e);
+            return;
+        }
+        enqueue(job);
+    }
+
+    private SignJob steal(Worker thief) {
+        Worker victim = null;
+        for (Worker worker : workers) {
+            if (worker == thief) {
+                continue;
+            }
+            if (victim == null || worker.queue.size() > victim.queue.size()) {
+                victim = worker;
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+
+        SignJob job = victim.queue.pollLast();
+        if (job != null && job.lastWorker == thief && workers.size() > 1) {
+            // failed here before, leave it to someone else
+            victim.queue.addLast(job);
+            return null;
+        }
+
+        return job;
+    }
+}
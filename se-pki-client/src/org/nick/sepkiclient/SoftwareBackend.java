@@ -0,0 +1,114 @@
+package org.nick.sepkiclient;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applet backend with software keys, for running {@link PkiAppletEngine}
+ * on the host behind a virtual reader. Each engine needs its own backend;
+ * the keys and PIN verifier can be shared.
+ */
+public class SoftwareBackend implements PkiAppletEngine.Backend {
+
+    // indexed by slot, null for empty slots
+    private final PrivateKey[] privateKeys;
+    // PkiPath encoded, indexed by slot
+    private final byte[][] certificateChains;
+    private final PinVerifier pinVerifier;
+
+    // initialized signers by slot and algorithm
+    private final List<Map<String, Signature>> signers = new ArrayList<Map<String, Signature>>();
+
+    private Signature streamSigner;
+    private String streamAlgorithm;
+
+    /**
+     * @param privateKeys
+     *            keys by slot number, up to
+     *            {@link PkiAppletEngine#SLOT_COUNT}
+     * @param certificateChains
+     *            PkiPath encoded chains of the keys, null entries for keys
+     *            without one
+     */
+    public SoftwareBackend(PrivateKey[] privateKeys,
+            byte[][] certificateChains, PinVerifier pinVerifier) {
+        this.privateKeys = new PrivateKey[PkiAppletEngine.SLOT_COUNT];
+        System.arraycopy(privateKeys, 0, this.privateKeys, 0,
+                privateKeys.length);
+        this.certificateChains = new byte[PkiAppletEngine.SLOT_COUNT][];
+        System.arraycopy(certificateChains, 0, this.certificateChains, 0,
+                certificateChains.length);
+        this.pinVerifier = pinVerifier;
+        for (int i = 0; i < PkiAppletEngine.SLOT_COUNT; i++) {
+            signers.add(new HashMap<String, Signature>());
+        }
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return true;
+    }
+
+    @Override
+    public boolean verifyPin(byte[] buff, int offset, int length) {
+        return pinVerifier.verify(buff, offset, length);
+    }
+
+    @Override
+    public String getKeyAlgorithm(int slot) {
+        PrivateKey privateKey = privateKeys[slot];
+
+        return privateKey == null ? null : privateKey.getAlgorithm();
+    }
+
+    @Override
+    public int sign(int slot, String algorithm, byte[] buff, int offset,
+            int length, byte[] out, int outOffset) throws Exception {
+        Map<String, Signature> slotSigners = signers.get(slot);
+        Signature sig = slotSigners.get(algorithm);
+        if (sig == null) {
+            sig = PkiAppletEngine.newSignature(algorithm);
+            sig.initSign(privateKeys[slot]);
+            slotSigners.put(algorithm, sig);
+        }
+        try {
+            sig.update(buff, offset, length);
+
+            // sign() resets the Signature for the next use
+            return sig.sign(out, outOffset, out.length - outOffset);
+        } catch (GeneralSecurityException e) {
+            slotSigners.remove(algorithm);
+            throw e;
+        }
+    }
+
+    @Override
+    public void signInit(int slot, String algorithm) throws Exception {
+        if (streamSigner == null || !algorithm.equals(streamAlgorithm)) {
+            streamSigner = PkiAppletEngine.newSignature(algorithm);
+            streamAlgorithm = algorithm;
+        }
+        streamSigner.initSign(privateKeys[slot]);
+    }
+
+    @Override
+    public byte[] getCertificateChain(int slot) {
+        return certificateChains[slot];
+    }
+
+    @Override
+    public void signUpdate(byte[] buff, int offset, int length)
+            throws Exception {
+        streamSigner.update(buff, offset, length);
+    }
+
+    @Override
+    public int signFinal(byte[] out, int outOffset) throws Exception {
+        return streamSigner.sign(out, outOffset, out.length - outOffset);
+    }
+}
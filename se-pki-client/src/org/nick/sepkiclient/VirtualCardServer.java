@@ -0,0 +1,114 @@
+package org.nick.sepkiclient;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Serves a virtual card over TCP on the loopback interface, for load tests
+ * that run the client in another process or under a profiler. Each
+ * connection gets its own applet instance, reset when the connection is
+ * closed; all of them share the software key and PIN of
+ * {@link VirtualReaderProvider}.
+ *
+ * <p>
+ * APDUs are framed with a 2-byte big-endian length, in both directions.
+ */
+public class VirtualCardServer {
+
+    public static final int DEFAULT_PORT = 9797;
+
+    private static final int MAX_FRAME_LENGTH = 0xffff;
+
+    public static void main(String[] args) {
+        try {
+            int port = args.length > 0 ? Integer.parseInt(args[0].trim())
+                    : DEFAULT_PORT;
+            // create the key before accepting connections
+            VirtualReaderProvider.createEngine();
+
+            ServerSocket server = new ServerSocket(port, 50,
+                    InetAddress.getByName(null));
+            System.out.printf("Virtual card listening on port %d\n", port);
+            int count = 0;
+            while (true) {
+                final Socket socket = server.accept();
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+                t.setName("Virtual card connection#" + count++);
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void serve(Socket socket) {
+        PkiAppletEngine engine = null;
+        try {
+            socket.setTcpNoDelay(true);
+            engine = VirtualReaderProvider.createEngine();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream()));
+            byte[] cmd;
+            while ((cmd = readFrame(in)) != null) {
+                writeFrame(out, engine.process(cmd));
+            }
+        } catch (Exception e) {
+            System.err.printf("Virtual card connection error: %s\n",
+                    e.getMessage());
+        } finally {
+            if (engine != null) {
+                // starts the PIN grace period, if any
+                engine.reset();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Reads a length-prefixed APDU.
+     *
+     * @return the APDU, or <code>null</code> if the stream ended between
+     *         frames
+     */
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int hi = in.read();
+        if (hi == -1) {
+            return null;
+        }
+        int lo = in.read();
+        if (lo == -1) {
+            throw new EOFException("Truncated frame length");
+        }
+        byte[] frame = new byte[(hi << 8) | lo];
+        in.readFully(frame);
+
+        return frame;
+    }
+
+    static void writeFrame(DataOutputStream out, byte[] apdu)
+            throws IOException {
+        if (apdu.length > MAX_FRAME_LENGTH) {
+            throw new IOException("APDU too long: " + apdu.length);
+        }
+        out.writeShort(apdu.length);
+        out.write(apdu);
+        out.flush();
+    }
+}
@@ -0,0 +1,329 @@
+package org.nick.sepkiclient;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Reader with a card that is always present. APDUs go either straight to a
+ * {@link PkiAppletEngine} in the same process, or to a
+ * {@link VirtualCardServer} over TCP. Disconnecting resets the applet, like
+ * taking the phone off the reader.
+ */
+@SuppressWarnings("restriction")
+public class VirtualCardTerminal extends CardTerminal {
+
+    // T=1 contactless card, no historical bytes
+    private static final byte[] ATR_BYTES = { 0x3B, (byte) 0x80, (byte) 0x80,
+            0x01, 0x01 };
+
+    private static final int CONNECT_TIMEOUT = 5 * 1000;
+
+    /**
+     * Carries APDUs between the reader and the card.
+     */
+    interface Transport {
+
+        void open() throws CardException;
+
+        byte[] transmit(byte[] command) throws CardException;
+
+        /**
+         * Resets the applet and releases any resources.
+         */
+        void close();
+    }
+
+    /**
+     * Applet in this process.
+     */
+    static class LocalTransport implements Transport {
+
+        private final PkiAppletEngine engine;
+
+        LocalTransport(PkiAppletEngine engine) {
+            this.engine = engine;
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public synchronized byte[] transmit(byte[] command) {
+            byte[] response = engine.process(command);
+
+            // the engine reuses response buffers
+            return Arrays.copyOf(response, response.length);
+        }
+
+        @Override
+        public synchronized void close() {
+            engine.reset();
+        }
+    }
+
+    /**
+     * Applet served by {@link VirtualCardServer}. Each connection starts with
+     * a freshly reset applet.
+     */
+    static class TcpTransport implements Transport {
+
+        private final String host;
+        private final int port;
+
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        TcpTransport(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public synchronized void open() throws CardException {
+            if (socket != null) {
+                return;
+            }
+            try {
+                socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, port),
+                        CONNECT_TIMEOUT);
+                in = new DataInputStream(socket.getInputStream());
+                out = new DataOutputStream(new BufferedOutputStream(
+                        socket.getOutputStream()));
+            } catch (IOException e) {
+                close();
+                throw new CardException("Cannot connect to virtual card at "
+                        + host + ":" + port, e);
+            }
+        }
+
+        @Override
+        public synchronized byte[] transmit(byte[] command)
+                throws CardException {
+            if (socket == null) {
+                throw new CardException("Not connected");
+            }
+            try {
+                VirtualCardServer.writeFrame(out, command);
+                byte[] response = VirtualCardServer.readFrame(in);
+                if (response == null) {
+                    throw new IOException("Connection closed");
+                }
+
+                return response;
+            } catch (IOException e) {
+                close();
+                throw new CardException("Virtual card I/O error", e);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            socket = null;
+            in = null;
+            out = null;
+        }
+    }
+
+    private class VirtualCard extends Card {
+
+        private final CardChannel basicChannel = new VirtualChannel(this);
+
+        private volatile boolean connected = true;
+
+        @Override
+        public ATR getATR() {
+            return new ATR(ATR_BYTES);
+        }
+
+        @Override
+        public String getProtocol() {
+            return "T=1";
+        }
+
+        @Override
+        public CardChannel getBasicChannel() {
+            checkConnected();
+
+            return basicChannel;
+        }
+
+        @Override
+        public CardChannel openLogicalChannel() throws CardException {
+            throw new CardException("Logical channels not supported");
+        }
+
+        @Override
+        public void beginExclusive() {
+            checkConnected();
+        }
+
+        @Override
+        public void endExclusive() {
+            checkConnected();
+        }
+
+        @Override
+        public byte[] transmitControlCommand(int controlCode, byte[] command)
+                throws CardException {
+            throw new CardException("Control commands not supported");
+        }
+
+        @Override
+        public void disconnect(boolean reset) {
+            if (!connected) {
+                return;
+            }
+            connected = false;
+            synchronized (VirtualCardTerminal.this) {
+                if (card == this) {
+                    card = null;
+                    transport.close();
+                }
+            }
+        }
+
+        void checkConnected() {
+            if (!connected) {
+                throw new IllegalStateException("Card has been disconnected");
+            }
+        }
+
+        byte[] transmit(byte[] command) throws CardException {
+            checkConnected();
+
+            return transport.transmit(command);
+        }
+    }
+
+    private static class VirtualChannel extends CardChannel {
+
+        private final VirtualCard card;
+
+        VirtualChannel(VirtualCard card) {
+            this.card = card;
+        }
+
+        @Override
+        public Card getCard() {
+            return card;
+        }
+
+        @Override
+        public int getChannelNumber() {
+            card.checkConnected();
+
+            return 0;
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+            return new ResponseAPDU(card.transmit(command.getBytes()));
+        }
+
+        @Override
+        public int transmit(ByteBuffer command, ByteBuffer response)
+                throws CardException {
+            byte[] cmd = new byte[command.remaining()];
+            command.get(cmd);
+            byte[] resp = card.transmit(cmd);
+            response.put(resp);
+
+            return resp.length;
+        }
+
+        @Override
+        public void close() {
+            throw new IllegalStateException("Cannot close basic channel");
+        }
+    }
+
+    private final String name;
+    private final Transport transport;
+
+    // guarded by this
+    private VirtualCard card;
+
+    VirtualCardTerminal(String name, Transport transport) {
+        this.name = name;
+        this.transport = transport;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public synchronized Card connect(String protocol) throws CardException {
+        if (!"*".equals(protocol) && !"T=1".equals(protocol)) {
+            throw new CardException("Unsupported protocol: " + protocol);
+        }
+        if (card != null) {
+            // shared, like a PC/SC connection in shared mode
+            return card;
+        }
+        transport.open();
+        card = new VirtualCard();
+
+        return card;
+    }
+
+    @Override
+    public boolean isCardPresent() {
+        return true;
+    }
+
+    @Override
+    public boolean waitForCardPresent(long timeout) {
+        return true;
+    }
+
+    @Override
+    public boolean waitForCardAbsent(long timeout) throws CardException {
+        // never removed
+        try {
+            if (timeout == 0) {
+                while (true) {
+                    Thread.sleep(Long.MAX_VALUE);
+                }
+            }
+            Thread.sleep(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CardException("Interrupted", e);
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "Virtual terminal " + name;
+    }
+}
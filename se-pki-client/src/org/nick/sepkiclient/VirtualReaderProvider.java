@@ -0,0 +1,278 @@
+package org.nick.sepkiclient;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+import javax.smartcardio.TerminalFactorySpi;
+
+/**
+ * javax.smartcardio provider for {@link VirtualCardTerminal}s, so that the
+ * client and load tools can run against the applet without a reader, a
+ * phone or a PC/SC stack.
+ *
+ * <p>
+ * {@link #getTerminalFactory()} returns the default (PC/SC) factory unless
+ * <code>sepkiclient.virtualReader</code> is set to a comma-separated list of
+ * terminals, each either <code>local</code> (the applet runs in this
+ * process) or <code>host:port</code> (a {@link VirtualCardServer}).
+ */
+@SuppressWarnings("restriction")
+public class VirtualReaderProvider extends Provider {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String TYPE = "PkiVirtual";
+
+    public static final String LOCAL = "local";
+
+    private static final String VIRTUAL_READER = System
+            .getProperty("sepkiclient.virtualReader");
+
+    // keys (and certificates) of local virtual cards, assigned to the key
+    // slots in alias order. A key for slot 0 is generated if not set.
+    private static final String PKCS12_FILE = System
+            .getProperty("sepkiclient.virtualCard.pkcs12");
+    private static final String PKCS12_PASSWORD = System.getProperty(
+            "sepkiclient.virtualCard.password", "");
+    // type of the generated key, RSA or EC
+    private static final String KEY_ALGORITHM = System.getProperty(
+            "sepkiclient.virtualCard.keyAlgorithm",
+            PkiAppletEngine.KEY_ALGORITHM_RSA);
+
+    private static final String PIN = System.getProperty(
+            "sepkiclient.virtualCard.pin", "1234");
+
+    // PIN grace policy, in seconds (0 disables it) and signatures
+    private static final int PIN_GRACE = Integer.getInteger(
+            "sepkiclient.virtualCard.pinGrace", 0);
+    private static final int PIN_GRACE_LIFETIME = Integer.getInteger(
+            "sepkiclient.virtualCard.pinGraceLifetime",
+            (int) (PinGrace.DEFAULT_LIFETIME_MILLIS / 1000));
+    private static final int PIN_GRACE_MAX_SIGNATURES = Integer.getInteger(
+            "sepkiclient.virtualCard.pinGraceSignatures",
+            PinGrace.DEFAULT_MAX_SIGNATURES);
+
+    private static final int GENERATED_RSA_KEY_SIZE = 2048;
+    // P-256
+    private static final int GENERATED_EC_KEY_SIZE = 256;
+    private static final int PIN_SALT_LENGTH = 8;
+    private static final int PIN_VERIFIER_LENGTH = 20;
+
+    // shared by all local virtual cards, guarded by the class
+    private static PrivateKey[] privateKeys;
+    private static byte[][] certificateChains;
+    private static PinVerifier pinVerifier;
+    // one card, however many readers it is tapped on
+    private static PinGrace pinGrace;
+
+    public static class FactorySpi extends TerminalFactorySpi {
+
+        private final CardTerminals terminals;
+
+        public FactorySpi(Object params) {
+            if (!(params instanceof List)) {
+                throw new IllegalArgumentException(
+                        "Expected a list of virtual terminals");
+            }
+            List<CardTerminal> list = new ArrayList<CardTerminal>();
+            for (Object t : (List<?>) params) {
+                list.add((CardTerminal) t);
+            }
+            terminals = new VirtualTerminals(list);
+        }
+
+        @Override
+        protected CardTerminals engineTerminals() {
+            return terminals;
+        }
+    }
+
+    private static class VirtualTerminals extends CardTerminals {
+
+        private final List<CardTerminal> terminals;
+
+        // cards count as inserted until the first waitForChange(), like
+        // PC/SC reports cards that were present at startup
+        private volatile boolean inserted = true;
+
+        VirtualTerminals(List<CardTerminal> terminals) {
+            this.terminals = Collections.unmodifiableList(terminals);
+        }
+
+        @Override
+        public List<CardTerminal> list(State state) {
+            switch (state) {
+            case ALL:
+            case CARD_PRESENT:
+                return terminals;
+            case CARD_INSERTION:
+                return inserted ? terminals : Collections
+                        .<CardTerminal> emptyList();
+            default:
+                // cards are never removed
+                return Collections.emptyList();
+            }
+        }
+
+        @Override
+        public boolean waitForChange(long timeout) {
+            if (inserted) {
+                inserted = false;
+                return true;
+            }
+            try {
+                if (timeout == 0) {
+                    while (true) {
+                        Thread.sleep(Long.MAX_VALUE);
+                    }
+                }
+                Thread.sleep(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return false;
+        }
+    }
+
+    public VirtualReaderProvider() {
+        super("PkiVirtualReader", 1.0, "Virtual PKI card readers");
+        put("TerminalFactory." + TYPE, FactorySpi.class.getName());
+    }
+
+    /**
+     * Virtual terminals if <code>sepkiclient.virtualReader</code> is set,
+     * otherwise the platform default.
+     */
+    public static TerminalFactory getTerminalFactory()
+            throws GeneralSecurityException, IOException {
+        if (VIRTUAL_READER == null) {
+            return TerminalFactory.getDefault();
+        }
+
+        return getTerminalFactory(VIRTUAL_READER);
+    }
+
+    public static TerminalFactory getTerminalFactory(String spec)
+            throws GeneralSecurityException, IOException {
+        List<CardTerminal> terminals = new ArrayList<CardTerminal>();
+        for (String t : spec.split(",")) {
+            t = t.trim();
+            String name = String.format("Virtual PKI reader %d (%s)",
+                    terminals.size(), t);
+            if (LOCAL.equals(t)) {
+                terminals.add(new VirtualCardTerminal(name,
+                        new VirtualCardTerminal.LocalTransport(createEngine())));
+                continue;
+            }
+
+            int idx = t.lastIndexOf(':');
+            if (idx < 1) {
+                throw new IllegalArgumentException(
+                        "Invalid virtual reader, expected 'local' or host:port: "
+                                + t);
+            }
+            terminals.add(new VirtualCardTerminal(name,
+                    new VirtualCardTerminal.TcpTransport(t.substring(0, idx),
+                            Integer.parseInt(t.substring(idx + 1)))));
+        }
+
+        return TerminalFactory.getInstance(TYPE, terminals,
+                new VirtualReaderProvider());
+    }
+
+    /**
+     * A new applet instance using the software keys and PIN.
+     */
+    static PkiAppletEngine createEngine() throws GeneralSecurityException,
+            IOException {
+        synchronized (VirtualReaderProvider.class) {
+            if (privateKeys == null) {
+                loadKeys();
+                byte[] salt = new byte[PIN_SALT_LENGTH];
+                new SecureRandom().nextBytes(salt);
+                pinVerifier = PinVerifier.create(PinVerifier.HMAC_SHA1,
+                        PinVerifier.LEGACY_ITERATIONS, salt,
+                        PIN.getBytes("ASCII"), PIN_VERIFIER_LENGTH);
+                pinGrace = new PinGrace();
+                pinGrace.setPolicy(PIN_GRACE * 1000L,
+                        PIN_GRACE_LIFETIME * 1000L, PIN_GRACE_MAX_SIGNATURES);
+            }
+
+            PkiAppletEngine engine = new PkiAppletEngine(new SoftwareBackend(
+                    privateKeys, certificateChains, pinVerifier));
+            engine.setPinGrace(pinGrace);
+
+            return engine;
+        }
+    }
+
+    // sets privateKeys and certificateChains
+    private static void loadKeys() throws GeneralSecurityException,
+            IOException {
+        if (PKCS12_FILE == null) {
+            int keySize = PkiAppletEngine.KEY_ALGORITHM_EC
+                    .equals(KEY_ALGORITHM) ? GENERATED_EC_KEY_SIZE
+                    : GENERATED_RSA_KEY_SIZE;
+            System.err.printf(
+                    "Virtual card: using a generated %d bit %s key\n",
+                    keySize, KEY_ALGORITHM);
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+            kpg.initialize(keySize);
+
+            privateKeys = new PrivateKey[] { kpg.generateKeyPair()
+                    .getPrivate() };
+            // no certificate
+            certificateChains = new byte[1][];
+            return;
+        }
+
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        char[] password = PKCS12_PASSWORD.toCharArray();
+        InputStream in = new FileInputStream(PKCS12_FILE);
+        try {
+            ks.load(in, password);
+        } finally {
+            in.close();
+        }
+        List<String> aliases = Collections.list(ks.aliases());
+        Collections.sort(aliases);
+        List<PrivateKey> keys = new ArrayList<PrivateKey>();
+        List<byte[]> chains = new ArrayList<byte[]>();
+        for (String alias : aliases) {
+            if (ks.isKeyEntry(alias)
+                    && keys.size() < PkiAppletEngine.SLOT_COUNT) {
+                System.err.printf("Virtual card: slot %d: %s\n",
+                        keys.size(), alias);
+                keys.add((PrivateKey) ks.getKey(alias, password));
+                Certificate[] chain = ks.getCertificateChain(alias);
+                chains.add(chain == null ? null : PkiAppletEngine
+                        .encodeCertificateChain(Arrays.copyOf(chain,
+                                chain.length, X509Certificate[].class)));
+            }
+        }
+        if (keys.isEmpty()) {
+            throw new GeneralSecurityException("No private key in "
+                    + PKCS12_FILE);
+        }
+
+        privateKeys = keys.toArray(new PrivateKey[keys.size()]);
+        certificateChains = chains.toArray(new byte[chains.size()][]);
+    }
+}